@@ -0,0 +1,67 @@
+package rubiktreelang.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converter.convertCode on the BF examples, and on sort.bf repeated to
+ * 1 MiB, in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConverterBenchmark {
+
+    private static final int LARGE_BF_SIZE = 1 << 20;
+
+    private static final MethodHandle CONVERT_CODE = Handles.staticMethod(
+            "Converter", "convertCode", "java.lang.String",
+            "java.lang.String");
+
+    @Param({"sort.bf", "hello-world.bf", "sort.bf-1MiB"})
+    public String input;
+
+    private String bf;
+
+    @Setup
+    public void setUp() throws Exception {
+        String file = input.endsWith("-1MiB")
+                ? input.substring(0, input.length() - "-1MiB".length())
+                : input;
+        bf = new String(Files.readAllBytes(Handles.examples().resolve(file)),
+                StandardCharsets.US_ASCII);
+
+        if (file != input) {
+            StringBuilder large = new StringBuilder(LARGE_BF_SIZE
+                    + bf.length());
+            while (large.length() < LARGE_BF_SIZE)
+                large.append(bf);
+            bf = large.toString();
+        }
+    }
+
+    /**
+     * @return the .rtl code
+     */
+    @Benchmark
+    public Object convert() throws Throwable {
+        return (Object) CONVERT_CODE.invokeExact((Object) bf);
+    }
+}
@@ -0,0 +1,143 @@
+package rubiktreelang.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Method handles onto the interpreter's classes, for the benchmarks to call
+ * them through. The interpreter's classes are all in the default package and
+ * mostly package-private, and JMH refuses benchmarks in the default package,
+ * so the benchmarks are in a package of their own where they cannot name
+ * those classes. Each handle has its reference types erased to Object, and
+ * the benchmarks keep them in static final fields, so that the JIT compiles
+ * invokeExact on them into a plain call.
+ */
+final class Handles {
+
+    private Handles() {
+    }
+
+    /**
+     * @return where the example programs are: the system property
+     * rubiktreelang.examples, or examples in the working directory
+     */
+    static Path examples() {
+        return Paths.get(System.getProperty("rubiktreelang.examples",
+                "examples"));
+    }
+
+    /**
+     * @param className      an interpreter class
+     * @param parameterTypes names of the constructor's parameter types
+     * @return a handle creating an instance, returned as an Object
+     */
+    static MethodHandle constructor(String className,
+                                    String... parameterTypes) {
+        try {
+            Class<?> owner = type(className);
+            return lookup(owner).findConstructor(owner,
+                    MethodType.methodType(void.class, types(parameterTypes)))
+                    .asType(MethodType.methodType(Object.class,
+                            erase(types(parameterTypes))));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param className      an interpreter class
+     * @param name           name of one of its instance methods
+     * @param returnType     name of the method's return type
+     * @param parameterTypes names of the method's parameter types
+     * @return a handle calling the method, taking the instance first
+     */
+    static MethodHandle method(String className, String name,
+                               String returnType, String... parameterTypes) {
+        try {
+            Class<?> owner = type(className);
+            MethodType type = MethodType.methodType(type(returnType),
+                    types(parameterTypes));
+            return lookup(owner).findVirtual(owner, name, type)
+                    .asType(type.insertParameterTypes(0, owner).erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Like method, for a static method.
+     */
+    static MethodHandle staticMethod(String className, String name,
+                                     String returnType,
+                                     String... parameterTypes) {
+        try {
+            Class<?> owner = type(className);
+            MethodType type = MethodType.methodType(type(returnType),
+                    types(parameterTypes));
+            return lookup(owner).findStatic(owner, name, type)
+                    .asType(type.erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the value of a static int field of an interpreter class
+     */
+    static int staticInt(String className, String name) {
+        try {
+            Class<?> owner = type(className);
+            return (int) lookup(owner).findStaticGetter(owner, name, int.class)
+                    .invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a lookup with access to owner's package-private members, which
+     * the unnamed module every class here is in allows
+     */
+    private static MethodHandles.Lookup lookup(Class<?> owner)
+            throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+    }
+
+    private static Class<?>[] types(String[] names)
+            throws ClassNotFoundException {
+        Class<?>[] types = new Class<?>[names.length];
+        for (int i = 0; i < names.length; i++)
+            types[i] = type(names[i]);
+
+        return types;
+    }
+
+    private static Class<?>[] erase(Class<?>[] types) {
+        Class<?>[] erased = new Class<?>[types.length];
+        for (int i = 0; i < types.length; i++)
+            erased[i] = types[i].isPrimitive() ? types[i] : Object.class;
+
+        return erased;
+    }
+
+    private static Class<?> type(String name) throws ClassNotFoundException {
+        switch (name) {
+            case "void":
+                return void.class;
+            case "boolean":
+                return boolean.class;
+            case "char":
+                return char.class;
+            case "int":
+                return int.class;
+            case "long":
+                return long.class;
+            default:
+                return Class.forName(name, false,
+                        Handles.class.getClassLoader());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package rubiktreelang.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole runs of every example program, and of what the Converter turns the
+ * two BF examples into, both interpreted and compiled by BytecodeCompiler.
+ * Each run gets a new trie and reads its input from and writes its output to
+ * memory, as a BatchRunner run does; the program is decoded or compiled once
+ * per trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProgramBenchmark {
+
+    // input for the examples that read some, like the README's examples
+    private static final Map<String, String> INPUTS = Map.of(
+            "add.rtl", "5\n",
+            "subtract.rtl", "5\n",
+            "left-shift.rtl", "5\n",
+            "right-shift.rtl", "5\n",
+            "cat.rtl", "hello cat\n",
+            "io-test.rtl", "10110\nA\n200\nfe\n",
+            "bf-sort.rtl", "dcba\n",
+            "sort.bf", "dcba\n");
+
+    private static final MethodHandle LOAD_PROGRAM = Handles.staticMethod(
+            "Interpreter", "loadProgram", "Program", "java.nio.file.Path");
+    private static final MethodHandle CONVERT_TO_PROGRAM =
+            Handles.staticMethod("Converter", "convertToProgram", "Program",
+                    "java.nio.channels.ReadableByteChannel", "boolean");
+    private static final MethodHandle COMPILE = Handles.staticMethod(
+            "BytecodeCompiler", "compile", "CompiledProgram", "Program");
+    private static final MethodHandle NEW_TRIE =
+            Handles.constructor("RubiksTrie");
+    private static final MethodHandle NEW_INPUT = Handles.constructor(
+            "InputSource", "java.io.InputStream", "java.nio.charset.Charset");
+    private static final MethodHandle NEW_OUTPUT = Handles.constructor(
+            "OutputSink", "java.io.OutputStream");
+    private static final MethodHandle NEW_INTERPRETER = Handles.constructor(
+            "Interpreter", "Program", "RubiksTrie", "InputSource",
+            "OutputSink");
+    private static final MethodHandle RUN =
+            Handles.method("Interpreter", "run", "void", "long");
+    private static final MethodHandle GET_STEPS_RUN =
+            Handles.method("Interpreter", "getStepsRun", "long");
+    private static final MethodHandle RUN_COMPILED = Handles.method(
+            "CompiledProgram", "run", "int", "RubiksTrie", "InputSource",
+            "OutputSink", "int");
+    private static final MethodHandle FLUSH =
+            Handles.method("OutputSink", "flush", "void");
+
+    @Param({"add.rtl", "bf-hello-world.rtl", "bf-sort.rtl", "cat.rtl",
+            "io-test.rtl", "left-shift.rtl", "right-shift.rtl",
+            "subtract.rtl", "sort.bf", "hello-world.bf"})
+    public String program;
+
+    private Object decoded;
+    private Object compiled;
+    private byte[] input;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Path path = Handles.examples().resolve(program);
+        if (program.endsWith(".bf")) {
+            try (ReadableByteChannel bf = FileChannel.open(path)) {
+                decoded = (Object) CONVERT_TO_PROGRAM.invokeExact(
+                        (Object) bf, true);
+            }
+        } else {
+            decoded = (Object) LOAD_PROGRAM.invokeExact((Object) path);
+        }
+
+        compiled = (Object) COMPILE.invokeExact(decoded);
+        input = INPUTS.getOrDefault(program, "")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private Object newInput() throws Throwable {
+        InputStream in = new ByteArrayInputStream(input);
+        Charset charset = StandardCharsets.US_ASCII;
+        return (Object) NEW_INPUT.invokeExact((Object) in, (Object) charset);
+    }
+
+    private static Object newOutput() throws Throwable {
+        OutputStream out = OutputStream.nullOutputStream();
+        return (Object) NEW_OUTPUT.invokeExact((Object) out);
+    }
+
+    /**
+     * @return how many instructions the run took
+     */
+    @Benchmark
+    public long interpret() throws Throwable {
+        Object interp = (Object) NEW_INTERPRETER.invokeExact(decoded,
+                (Object) NEW_TRIE.invokeExact(), newInput(), newOutput());
+        RUN.invokeExact(interp, Long.MAX_VALUE);
+        return (long) GET_STEPS_RUN.invokeExact(interp);
+    }
+
+    /**
+     * @return the cube and global byte the run ended on, packed into an int
+     */
+    @Benchmark
+    public int compiled() throws Throwable {
+        Object out = newOutput();
+        int end = (int) RUN_COMPILED.invokeExact(compiled,
+                (Object) NEW_TRIE.invokeExact(), newInput(), out, 0);
+        FLUSH.invokeExact(out);
+        return end;
+    }
+}
@@ -0,0 +1,58 @@
+package rubiktreelang.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Growing a new trie breadth first from the root through
+ * Node.initializeChildRubiksCube, reported in cubes created per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TrieGrowthBenchmark {
+
+    private static final int CUBES_PER_INVOCATION = 1 << 16;
+
+    private static final MethodHandle NEW_TRIE =
+            Handles.constructor("RubiksTrie");
+    private static final MethodHandle NEW_NODE =
+            Handles.constructor("Node", "RubiksTrie", "int", "int");
+    private static final MethodHandle INITIALIZE_CHILD = Handles.method(
+            "Node", "initializeChildRubiksCube", "void");
+    private static final int STICKERS =
+            Handles.staticInt("RubiksTrie", "STICKERS");
+
+    /**
+     * @return the grown trie
+     */
+    @Benchmark
+    @OperationsPerInvocation(CUBES_PER_INVOCATION)
+    public Object grow() throws Throwable {
+        Object trie = (Object) NEW_TRIE.invokeExact();
+        int parent = 0;
+        int slot = 0;
+        for (int i = 0; i < CUBES_PER_INVOCATION; i++) {
+            INITIALIZE_CHILD.invokeExact(
+                    (Object) NEW_NODE.invokeExact(trie, parent, slot));
+
+            if (++slot == STICKERS) {
+                slot = 0;
+                parent++;
+            }
+        }
+
+        return trie;
+    }
+}
@@ -0,0 +1,56 @@
+package rubiktreelang.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RubiksCube.turn on the root of a new trie, for every face and kind of
+ * turn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TurnBenchmark {
+
+    private static final MethodHandle NEW_TRIE =
+            Handles.constructor("RubiksTrie");
+    private static final MethodHandle GET_ROOT =
+            Handles.method("RubiksTrie", "getRoot", "RubiksCube");
+    private static final MethodHandle TURN =
+            Handles.method("RubiksCube", "turn", "void", "char", "int");
+
+    @Param({"U", "L", "F", "R", "B", "D"})
+    public char face;
+
+    @Param({"1", "2", "-1"})
+    public int type;
+
+    private Object cube;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object trie = (Object) NEW_TRIE.invokeExact();
+        cube = (Object) GET_ROOT.invokeExact(trie);
+    }
+
+    @Benchmark
+    public Object turn() throws Throwable {
+        TURN.invokeExact(cube, face, type);
+        return cube;
+    }
+}
@@ -0,0 +1,183 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that compacting an ArrayTrieStorage, which makes cubes share their
+ * blocks, never changes what a cube holds: writing to a shared block must
+ * copy it, removing a cube must only drop its reference, and forks must copy
+ * the blocks the original shares before writing them.
+ */
+class ArrayTrieStorageTest {
+
+    private static final int STICKERS = RubiksTrie.STICKERS;
+
+    /**
+     * A storage in use and what it should hold. Forking replaces the
+     * storage with a fork of itself, as RubiksTrie.fork does, since a
+     * forked storage must not change again.
+     */
+    private static final class Trie {
+        TrieStorage storage;
+        final TrieModel model;
+
+        Trie(TrieStorage storage, TrieModel model) {
+            this.storage = storage;
+            this.model = model;
+        }
+    }
+
+    @Test
+    void compactionSharesLeavesUntilTheyAreWritten() {
+        ArrayTrieStorage storage = new ArrayTrieStorage();
+        TrieModel model = new TrieModel();
+        storage.createCube(RubiksTrie.NO_CUBE);
+        model.createCube(RubiksTrie.NO_CUBE);
+
+        // 24 inner cubes with 24 leaves each, holding one of four patterns
+        for (int slot = 0; slot < STICKERS; slot++) {
+            int inner = storage.createCube(0);
+            model.createCube(0);
+            storage.setChild(0, slot, inner);
+            model.children.get(0)[slot] = inner;
+
+            for (int leafSlot = 0; leafSlot < STICKERS; leafSlot++) {
+                int leaf = storage.createCube(inner);
+                model.createCube(inner);
+                storage.setChild(inner, leafSlot, leaf);
+                model.children.get(inner)[leafSlot] = leaf;
+
+                byte pattern = (byte) (leaf % 4);
+                storage.setPayload(leaf, 0, pattern);
+                storage.setPayload(leaf, 1, (byte) 7);
+                model.payloads.get(leaf)[0] = pattern;
+                model.payloads.get(leaf)[1] = 7;
+            }
+        }
+        model.check(storage);
+
+        assertTrue(storage.compact() > 0);
+        model.check(storage);
+        // the root, the inner cubes, and one block per pattern
+        assertEquals(1 + STICKERS + 4, storage.getNumBlocks());
+
+        // writing a leaf gives it a block of its own, and no other leaf
+        // sees the write
+        int leaf = storage.getNumCubes() - 5;
+        storage.setPayload(leaf, 2, (byte) 9);
+        model.payloads.get(leaf)[2] = 9;
+        model.check(storage);
+        assertEquals(1 + STICKERS + 5, storage.getNumBlocks());
+
+        // removing leaves drops their references, and cubes created in
+        // their place start out empty
+        for (int i = 0; i < 30; i++) {
+            storage.removeLastCube();
+            model.removeLastCube();
+        }
+        model.check(storage);
+        for (int i = 0; i < 30; i++) {
+            int parent = storage.getNumCubes() - 1;
+            storage.createCube(parent);
+            model.createCube(parent);
+        }
+        model.check(storage);
+
+        // compacting again is stable
+        storage.compact();
+        model.check(storage);
+    }
+
+    @Test
+    void randomOperationsMatchTheModel() {
+        for (long seed = 0; seed < 20; seed++)
+            fuzz(seed, false);
+    }
+
+    @Test
+    void randomOperationsOnForksMatchTheModel() {
+        for (long seed = 0; seed < 20; seed++)
+            fuzz(seed, true);
+    }
+
+    /**
+     * @param forks whether to fork the storage now and then, after which
+     *              the forks are changed rather than the storage itself
+     */
+    private static void fuzz(long seed, boolean forks) {
+        Random random = new Random(seed);
+        int[] states = new int[8];
+        for (int i = 1; i < states.length; i++)
+            states[i] = PermutationTable.apply(states[i - 1],
+                    random.nextInt(PermutationTable.NUM_BASIC_MOVES));
+
+        // half the runs also compact whenever the blocks need more room
+        ArrayTrieStorage root = new ArrayTrieStorage(seed % 2);
+        TrieModel rootModel = new TrieModel();
+        root.createCube(RubiksTrie.NO_CUBE);
+        rootModel.createCube(RubiksTrie.NO_CUBE);
+        List<Trie> tries = new ArrayList<>();
+        tries.add(new Trie(root, rootModel));
+
+        for (int step = 0; step < 20_000; step++) {
+            Trie trie = tries.get(random.nextInt(tries.size()));
+            TrieStorage storage = trie.storage;
+            TrieModel model = trie.model;
+            int numCubes = model.parents.size();
+            int cube = random.nextInt(numCubes);
+            int slot = random.nextInt(STICKERS);
+            int operation = random.nextInt(100);
+
+            if (operation < 20 && numCubes < 400) {
+                if (model.children.get(cube)[slot] == RubiksTrie.NO_CUBE) {
+                    int child = storage.createCube(cube);
+                    assertEquals(model.createCube(cube), child);
+                    storage.setChild(cube, slot, child);
+                    model.children.get(cube)[slot] = child;
+                }
+            } else if (operation < 35) {
+                if (numCubes > 1) {
+                    storage.removeLastCube();
+                    model.removeLastCube();
+                }
+            } else if (operation < 80) {
+                // few slots and values, so that many blocks are alike
+                slot %= 2;
+                byte b = (byte) random.nextInt(3);
+                storage.setPayload(cube, slot, b);
+                model.payloads.get(cube)[slot] = b;
+            } else if (operation < 88) {
+                int state = states[random.nextInt(states.length)];
+                storage.setState(cube, state);
+                model.states.set(cube, state);
+            } else if (operation < 96) {
+                storage.compact();
+            } else if (!forks || random.nextInt(20) != 0) {
+                continue;
+            } else if (operation < 98) {
+                if (tries.size() < 8) {
+                    tries.add(new Trie(storage.fork(), model.copy()));
+                    trie.storage = storage.fork();
+                }
+            } else if (tries.size() > 1) {
+                tries.remove(trie);
+            }
+
+            if (step % 100 == 0) {
+                model.check(trie.storage);
+            } else if (cube < model.parents.size()) {
+                assertEquals(model.parents.size(),
+                        trie.storage.getNumCubes());
+                model.check(trie.storage, cube);
+            }
+        }
+
+        for (Trie trie : tries)
+            trie.model.check(trie.storage);
+    }
+}
@@ -0,0 +1,264 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Cuts checkpoint files off at many points, as a crash while writing them
+ * would, and checks that resuming from what is left gets back to the last
+ * complete checkpoint: the examples must then finish as if they had never
+ * stopped, and a trie whose log has been compacted must come back exactly as
+ * it was when that checkpoint was written.
+ */
+class CheckpointFileTest {
+
+    private static final int CUT_POINTS = 25;
+    // start writes the header before any checkpoint, so every cut leaves it
+    private static final int HEADER_SIZE = 16;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * @return a copy of the file, cut off after length bytes
+     */
+    private Path cut(Path file, long length, String name)
+            throws IOException {
+        Path copy = directory.resolve(name);
+        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(copy,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+        return copy;
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("ExamplesTest#examples")
+    void examplesResumeFromAnyPoint(String name, String input,
+                                    String expectedOutput,
+                                    String expectedDigest)
+            throws IOException {
+        Program program = ExamplesTest.load(name);
+        Path file = directory.resolve(name + ".checkpoint");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TrackedTrieStorage storage =
+                new TrackedTrieStorage(new ArrayTrieStorage());
+        RubiksTrie trie = new RubiksTrie(storage);
+        Interpreter interp = new Interpreter(program, trie,
+                ExamplesTest.input(input), ExamplesTest.output(bytes));
+        try (CheckpointFile checkpoints = new CheckpointFile(file, program,
+                trie, storage, 37, 0)) {
+            checkpoints.start();
+            interp.processRemainingCommands(checkpoints);
+        }
+        assertEquals(expectedOutput, ExamplesTest.printed(bytes));
+        assertEquals(expectedDigest, Tries.digest(trie,
+                interp.getCurrCube().getID()));
+
+        long records = Files.size(file) - HEADER_SIZE;
+        for (int i = 0; i <= CUT_POINTS; i++) {
+            Path copy = cut(file, HEADER_SIZE + records * i / CUT_POINTS,
+                    name + "." + i);
+
+            bytes = new ByteArrayOutputStream();
+            storage = new TrackedTrieStorage(new ArrayTrieStorage());
+            trie = new RubiksTrie(storage);
+            interp = new Interpreter(program, trie,
+                    ExamplesTest.input(input), ExamplesTest.output(bytes));
+            try (CheckpointFile checkpoints = new CheckpointFile(copy,
+                    program, trie, storage, 37, 0)) {
+                interp.restore(checkpoints.resume());
+                interp.processRemainingCommands(checkpoints);
+            }
+
+            // output after the last checkpoint is written again
+            String output = ExamplesTest.printed(bytes);
+            assertTrue(expectedOutput.endsWith(output),
+                    "resumed output " + output);
+            assertEquals(expectedDigest, Tries.digest(trie,
+                    interp.getCurrCube().getID()), "cut at " + i);
+        }
+    }
+
+    /**
+     * A checkpoint written to the file, and what it saved.
+     */
+    private static final class Written {
+        final long end; // of the checkpoint in the file
+        final int pc;
+        final int currCube;
+        final long inputChars;
+        final String digest;
+
+        Written(long end, int pc, int currCube, long inputChars,
+                String digest) {
+            this.end = end;
+            this.pc = pc;
+            this.currCube = currCube;
+            this.inputChars = inputChars;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Makes random changes to about a third of the cubes, growing the trie
+     * until it has maxCubes cubes.
+     */
+    private static void change(RubiksTrie trie, Random random,
+                               int maxCubes) {
+        int numChanges = trie.getNumCubes() / 3 + 50;
+        for (int i = 0; i < numChanges; i++) {
+            int cube = random.nextInt(trie.getNumCubes());
+            int slot = random.nextInt(RubiksTrie.STICKERS);
+            switch (random.nextInt(3)) {
+                case 0:
+                    if (trie.getNumCubes() < maxCubes)
+                        trie.getOrCreateChild(cube, slot);
+                    break;
+                case 1:
+                    trie.setPayload(cube, slot, (byte) random.nextInt());
+                    break;
+                default:
+                    trie.move(cube, random.nextInt(
+                            PermutationTable.NUM_BASIC_MOVES));
+                    break;
+            }
+        }
+        trie.setGlobalByte((byte) random.nextInt());
+    }
+
+    private Written write(CheckpointFile checkpoints, Path file,
+                          RubiksTrie trie, Program program, Random random)
+            throws IOException {
+        int pc = random.nextInt(program.length() + 1);
+        int currCube = random.nextInt(trie.getNumCubes());
+        long inputChars = random.nextInt(1 << 20);
+        checkpoints.write(pc, currCube, inputChars);
+
+        return new Written(Files.size(file), pc, currCube, inputChars,
+                Tries.digest(trie, currCube));
+    }
+
+    /**
+     * Resumes from the file into a new trie and checks that it is where the
+     * checkpoint left it.
+     *
+     * @return the checkpoints of the new trie, ready for more
+     */
+    private CheckpointFile resume(Path file, Program program,
+                                  Written expected, RubiksTrie[] trie)
+            throws IOException {
+        TrackedTrieStorage storage =
+                new TrackedTrieStorage(new ArrayTrieStorage());
+        trie[0] = new RubiksTrie(storage);
+        CheckpointFile checkpoints = new CheckpointFile(file, program,
+                trie[0], storage, 0, 0);
+        CheckpointFile.Position position = checkpoints.resume();
+
+        assertEquals(expected.pc, position.pc);
+        assertEquals(expected.currCube, position.currCube);
+        assertEquals(expected.inputChars, position.inputChars);
+        assertEquals(expected.digest, Tries.digest(trie[0],
+                position.currCube));
+        return checkpoints;
+    }
+
+    @Test
+    void compactedLogsResumeToTheLastCheckpoint() throws IOException {
+        Random random = new Random(1);
+        Program program = ExamplesTest.load("add.rtl");
+        Path file = directory.resolve("trie.checkpoint");
+
+        TrackedTrieStorage storage =
+                new TrackedTrieStorage(new ArrayTrieStorage());
+        RubiksTrie trie = new RubiksTrie(storage);
+        // the checkpoints since the log was last compacted
+        List<Written> log = new ArrayList<>();
+        int compactions = 0;
+        try (CheckpointFile checkpoints = new CheckpointFile(file, program,
+                trie, storage, 0, 0)) {
+            checkpoints.start();
+            log.add(new Written(Files.size(file), 0, 0, 0,
+                    Tries.digest(trie, 0)));
+
+            // go on until there are checkpoints since the last compaction
+            // to cut off
+            for (int i = 0; i < 60 || log.size() < 4; i++) {
+                change(trie, random, 3000);
+                Written written = write(checkpoints, file, trie, program,
+                        random);
+
+                if (written.end < log.get(log.size() - 1).end) {
+                    // the log was rewritten as this one checkpoint
+                    compactions++;
+                    log.clear();
+                }
+                log.add(written);
+            }
+        }
+        assertTrue(compactions >= 2, compactions + " compactions");
+
+        // cut the file off at and just past the end of each checkpoint, and
+        // in the middle of the one after it
+        for (int i = 0; i < log.size(); i++) {
+            Written expected = log.get(i);
+            long next = i + 1 < log.size() ? log.get(i + 1).end
+                    : expected.end + 1;
+            for (long length : new long[]{expected.end, expected.end + 1,
+                    (expected.end + next) / 2, next - 1}) {
+                if (length >= next)
+                    continue;
+
+                RubiksTrie[] resumed = new RubiksTrie[1];
+                Path copy = cut(file, length, "cut");
+                try (CheckpointFile checkpoints = resume(copy, program,
+                        expected, resumed)) {
+                    // a resumed file takes more checkpoints, which can be
+                    // resumed in turn
+                    change(resumed[0], random, 3500);
+                    Written more = write(checkpoints, copy, resumed[0],
+                            program, random);
+                    resume(copy, program, more, new RubiksTrie[1]).close();
+                }
+            }
+
+            // a checkpoint whose length made it to disk but whose contents
+            // did not fails its checksum, and is dropped with the rest
+            if (i + 1 < log.size()) {
+                Path copy = zero(file, expected.end + 8, next - 4, "zeroed");
+                resume(copy, program, expected, new RubiksTrie[1]).close();
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the file with the bytes from from up to to zeroed
+     */
+    private Path zero(Path file, long from, long to, String name)
+            throws IOException {
+        Path copy = directory.resolve(name);
+        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(copy,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate((int) (to - from)), from);
+        }
+        return copy;
+    }
+}
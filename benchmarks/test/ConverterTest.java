@@ -0,0 +1,185 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Checks the Converter against the examples it was used to write, and
+ * against a plain BF interpreter on random programs, which are full of the
+ * loops BFReader recognizes and of runs it folds, so that a translation that
+ * goes wrong for some position of the cell in its cube or some amount shows
+ * up as different output.
+ */
+class ConverterTest {
+
+    private static final int PROGRAMS = 250;
+    // BF steps a random program may take before it is given up on
+    private static final int MAX_BF_STEPS = 20_000;
+    private static final String INPUT = "a1\nZz9 ~\n";
+
+    // loops BFReader recognizes, and ones it must not mistake for them
+    private static final String[] IDIOMS = {
+            "[-]", "[+]", "[->+<]", "[-<+>]", "[->>+<<]", "[->+>+<<]",
+            "[->+++<]", "[-<<--->>]", "[>+<-]", "[>]", "[<]", "[>>]",
+            "[+>-<]", "[>++<+]", "[+<<+>>]", "[->+<<]", "[--]", "[-.]",
+            "[-[-]]"};
+
+    private static Path example(String name) {
+        return Paths.get(System.getProperty("rubiktreelang.examples",
+                "examples")).resolve(name);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @CsvSource({"hello-world.bf, bf-hello-world.rtl", "sort.bf, bf-sort.rtl"})
+    void unoptimizedConversionMatchesTheExamples(String bf, String rtl)
+            throws IOException {
+        String bfCode = new String(Files.readAllBytes(example(bf)),
+                StandardCharsets.US_ASCII);
+        String expected = new String(Files.readAllBytes(example(rtl)),
+                StandardCharsets.US_ASCII);
+
+        // convertCode leaves out the new line the files end with
+        assertEquals(expected, Converter.convertCode(bfCode, false) + "\n");
+    }
+
+    /**
+     * Runs BF code the plain way: 8-bit cells that wrap around, and , storing
+     * 0 at the end of the input or of a line, as inputc does.
+     *
+     * @return what the code prints, with each cell printed as outputc would,
+     * or null if the code moves left of the first cell or does not finish
+     * within MAX_BF_STEPS steps
+     */
+    private static String run(String bf, String input) {
+        int[] match = new int[bf.length()];
+        int[] open = new int[bf.length()];
+        int depth = 0;
+        for (int pc = 0; pc < bf.length(); pc++) {
+            if (bf.charAt(pc) == '[') {
+                open[depth++] = pc;
+            } else if (bf.charAt(pc) == ']') {
+                int start = open[--depth];
+                match[start] = pc;
+                match[pc] = start;
+            }
+        }
+
+        int[] tape = new int[MAX_BF_STEPS + 1];
+        int cell = 0;
+        int read = 0;
+        StringBuilder out = new StringBuilder();
+        int steps = 0;
+        for (int pc = 0; pc < bf.length(); pc++, steps++) {
+            if (steps == MAX_BF_STEPS)
+                return null;
+
+            switch (bf.charAt(pc)) {
+                case '+':
+                    tape[cell] = (tape[cell] + 1) & 0xFF;
+                    break;
+                case '-':
+                    tape[cell] = (tape[cell] - 1) & 0xFF;
+                    break;
+                case '>':
+                    cell++;
+                    break;
+                case '<':
+                    if (--cell < 0)
+                        return null;
+                    break;
+                case '.':
+                    out.append((char) (byte) tape[cell]);
+                    break;
+                case ',':
+                    char c = read < input.length() ? input.charAt(read++)
+                            : '\n';
+                    tape[cell] = c == '\n' ? 0 : c;
+                    break;
+                case '[':
+                    if (tape[cell] == 0)
+                        pc = match[pc];
+                    break;
+                case ']':
+                    if (tape[cell] != 0)
+                        pc = match[pc];
+                    break;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return random BF code with balanced brackets, nested at most depth
+     * deep
+     */
+    private static String program(Random random, int depth) {
+        StringBuilder bf = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            int choice = random.nextInt(20);
+            if (choice < 3) {
+                // runs long enough to wrap a cell or cross a cube
+                char c = "+-><".charAt(random.nextInt(4));
+                int run = 1 + random.nextInt(c == '+' || c == '-' ? 300 : 30);
+                for (int j = 0; j < run; j++)
+                    bf.append(c);
+            } else if (choice < 8) {
+                bf.append("+-><".charAt(random.nextInt(4)));
+            } else if (choice < 10) {
+                bf.append(".,".charAt(random.nextInt(2)));
+            } else if (choice < 15) {
+                bf.append(IDIOMS[random.nextInt(IDIOMS.length)]);
+            } else if (depth > 0) {
+                bf.append('[').append(program(random, depth - 1)).append(']');
+            }
+        }
+        return bf.toString();
+    }
+
+    private static String printed(String bf, boolean optimize)
+            throws IOException {
+        Program program = Converter.convertToProgram(Channels.newChannel(
+                new ByteArrayInputStream(bf.getBytes(
+                        StandardCharsets.US_ASCII))), optimize);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Interpreter interp = new Interpreter(program, new RubiksTrie(),
+                ExamplesTest.input(INPUT), ExamplesTest.output(bytes));
+        // far more than any translation of MAX_BF_STEPS steps needs, in
+        // case one goes round a loop forever
+        interp.run(1L << 30);
+
+        assertTrue(interp.isFinished(), bf);
+        return ExamplesTest.printed(bytes);
+    }
+
+    @Test
+    void randomProgramsRunLikeAPlainInterpreter() throws IOException {
+        Random random = new Random(0);
+        int checked = 0;
+        while (checked < PROGRAMS) {
+            // a few commands first, so that the program does not start
+            // with the current cell known to be zero
+            String bf = program(random, 0) + ".>" + program(random, 3)
+                    + ".>.<<.";
+            String expected = run(bf, INPUT);
+            if (expected == null)
+                continue;
+
+            assertEquals(expected, printed(bf, true), bf);
+            assertEquals(expected, printed(bf, false), bf);
+            checked++;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Runs every example program in each way the Interpreter can run it, and
+ * checks that each way prints the same output and leaves the same trie. The
+ * tries are compared by Tries.digest, which does not depend on the
+ * PermutationTable's cap, so the digests below hold whether or not the cubes
+ * go past the interned states.
+ */
+class ExamplesTest {
+
+    /**
+     * The examples, what to give them as input, what they print, and the
+     * digest of the trie they leave.
+     */
+    static Stream<Arguments> examples() {
+        return Stream.of(
+                Arguments.of("add.rtl", "", "", "1a2aa9810f935778"),
+                Arguments.of("subtract.rtl", "", "", "88e64a9e8c5caffa"),
+                Arguments.of("left-shift.rtl", "3\n", "",
+                        "19f28dcacdda5e48"),
+                Arguments.of("right-shift.rtl", "96\n", "",
+                        "cbbcaed769dd070e"),
+                Arguments.of("cat.rtl", "hello\n", "hello",
+                        "a668bfe494237213"),
+                Arguments.of("io-test.rtl", "101\nq\n42\n7f\n",
+                        "00000101\n\u0005\n5\n5\n5\n01110001\nq\n113\n71\n"
+                        + "71\n00101010\n*\n42\n2a\n2A\n01111111\n\u007f\n"
+                        + "127\n7f\n7F\n", "46ad0fe7a1fc861c"),
+                Arguments.of("bf-hello-world.rtl", "", "Hello World!\n",
+                        "d030bc14baffa4a7"),
+                Arguments.of("bf-sort.rtl", "dcba\n", "abcd",
+                        "03ec1938304928a5"),
+                Arguments.of("hello-world.bf", "", "Hello World!\n",
+                        "897fbfcaf7ece012"),
+                Arguments.of("sort.bf", "dcba\n", "abcd",
+                        "1625259862097fba"));
+    }
+
+    @TempDir
+    Path mappedDirectory;
+
+    private static Path example(String name) {
+        return Paths.get(System.getProperty("rubiktreelang.examples",
+                "examples")).resolve(name);
+    }
+
+    static Program load(String name) throws IOException {
+        if (!name.endsWith(".bf"))
+            return Interpreter.loadProgram(example(name));
+
+        try (FileChannel bf = FileChannel.open(example(name))) {
+            return Converter.convertToProgram(bf, true);
+        }
+    }
+
+    static InputSource input(String input) {
+        return new InputSource(new ByteArrayInputStream(
+                input.getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+    }
+
+    static OutputSink output(ByteArrayOutputStream bytes) {
+        return new OutputSink(bytes, 0, StandardCharsets.UTF_8);
+    }
+
+    static String printed(ByteArrayOutputStream bytes) {
+        return bytes.toString(StandardCharsets.UTF_8)
+                .replace(System.lineSeparator(), "\n");
+    }
+
+    private static void check(String mode, String expectedOutput,
+                              String expectedDigest, String output,
+                              String digest) {
+        assertEquals(expectedOutput, output, mode + " output");
+        assertEquals(expectedDigest, digest, mode + " trie");
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("examples")
+    void interpreted(String name, String input, String expectedOutput,
+                     String expectedDigest) throws IOException {
+        for (boolean superinstructions : new boolean[]{true, false}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Interpreter interp = new Interpreter(load(name), new RubiksTrie(),
+                    input(input), output(bytes));
+            interp.setSuperinstructions(superinstructions);
+            interp.run(Long.MAX_VALUE);
+
+            check(superinstructions ? "interpreted"
+                            : "interpreted without superinstructions",
+                    expectedOutput, expectedDigest, printed(bytes),
+                    Tries.digest(interp.getTrie(),
+                            interp.getCurrCube().getID()));
+        }
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("examples")
+    void compiled(String name, String input, String expectedOutput,
+                  String expectedDigest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RubiksTrie trie = new RubiksTrie();
+        OutputSink out = output(bytes);
+        int cube = BytecodeCompiler.compile(load(name))
+                .run(trie, input(input), out, 0);
+        out.flush();
+
+        check("compiled", expectedOutput, expectedDigest, printed(bytes),
+                Tries.digest(trie, cube));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("examples")
+    void mapped(String name, String input, String expectedOutput,
+                String expectedDigest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Interpreter interp = new Interpreter(load(name),
+                new RubiksTrie(new MappedTrieStorage(mappedDirectory)),
+                input(input), output(bytes));
+        interp.run(Long.MAX_VALUE);
+
+        check("mapped", expectedOutput, expectedDigest, printed(bytes),
+                Tries.digest(interp.getTrie(),
+                        interp.getCurrCube().getID()));
+    }
+}
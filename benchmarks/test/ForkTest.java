@@ -0,0 +1,243 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Forks tries and Interpreters and checks that neither side of a fork sees
+ * the other's changes: forks of forks, forks that remove cubes and reuse
+ * their blocks, and forks of compacted tries must all hold what a deep copy
+ * would, and a forked Interpreter must finish as if it had never been
+ * forked.
+ */
+class ForkTest {
+
+    private static final int STICKERS = RubiksTrie.STICKERS;
+    private static final int FORK_POINTS = 20;
+
+    /**
+     * A forked Interpreter, and what its original had printed when it was
+     * forked.
+     */
+    private static final class Fork {
+        final Interpreter interp;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final InputSource in;
+        final String printedBefore;
+
+        /**
+         * Forks interp, giving the fork the input interp has not read yet.
+         */
+        Fork(Interpreter interp, InputSource interpIn, String input,
+             String printedBefore) {
+            in = ExamplesTest.input(input);
+            in.skipChars(interpIn.getCharsConsumed());
+            this.interp = interp.fork(in, ExamplesTest.output(bytes));
+            this.printedBefore = printedBefore;
+        }
+
+        String printed() {
+            interp.flushOutput();
+            return printedBefore + ExamplesTest.printed(bytes);
+        }
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("ExamplesTest#examples")
+    void forksFinishLikeUninterruptedRuns(String name, String input,
+                                          String expectedOutput,
+                                          String expectedDigest)
+            throws IOException {
+        Program program = ExamplesTest.load(name);
+
+        int numSteps = 0;
+        Interpreter counter = new Interpreter(program, new RubiksTrie(),
+                ExamplesTest.input(input),
+                ExamplesTest.output(new ByteArrayOutputStream()));
+        for (; !counter.isFinished(); numSteps++)
+            counter.processNextCommand();
+        int interval = Math.max(1, numSteps / FORK_POINTS);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputSource in = ExamplesTest.input(input);
+        Interpreter interp = new Interpreter(program, new RubiksTrie(), in,
+                ExamplesTest.output(bytes));
+        List<Fork> forks = new ArrayList<>();
+        for (int step = 0; step < numSteps; step++) {
+            if (step % interval == 0) {
+                interp.flushOutput();
+                Fork fork = new Fork(interp, in, input,
+                        ExamplesTest.printed(bytes));
+                forks.add(fork);
+
+                // every other fork runs for a while and is forked in turn
+                if (forks.size() % 2 == 0) {
+                    for (int i = 0; i < interval / 2
+                            && !fork.interp.isFinished(); i++)
+                        fork.interp.processNextCommand();
+                    forks.add(new Fork(fork.interp, fork.in, input,
+                            fork.printed()));
+                }
+            }
+            interp.processNextCommand();
+        }
+        interp.flushOutput();
+
+        assertTrue(interp.isFinished());
+        assertEquals(expectedOutput, ExamplesTest.printed(bytes));
+        assertEquals(expectedDigest, Tries.digest(interp.getTrie(),
+                interp.getCurrCube().getID()));
+
+        // the forks run after everything they were forked from has changed
+        // the cubes they share, for no more steps than the whole program, in
+        // case a change they should not see sends them round a loop forever
+        for (int i = forks.size() - 1; i >= 0; i--) {
+            Fork fork = forks.get(i);
+            fork.interp.run(numSteps);
+            assertTrue(fork.interp.isFinished(), "fork " + i);
+            assertEquals(expectedOutput, fork.printed(), "fork " + i);
+            assertEquals(expectedDigest, Tries.digest(fork.interp.getTrie(),
+                    fork.interp.getCurrCube().getID()), "fork " + i);
+        }
+    }
+
+    /**
+     * A trie in use and what it should hold.
+     */
+    private static final class Trie {
+        final RubiksTrie trie;
+        final TrieModel model;
+
+        Trie(RubiksTrie trie, TrieModel model) {
+            this.trie = trie;
+            this.model = model;
+        }
+    }
+
+    @Test
+    void randomChangesToForksMatchTheModel() {
+        for (long seed = 0; seed < 10; seed++)
+            fuzz(seed);
+    }
+
+    private static void fuzz(long seed) {
+        Random random = new Random(seed);
+        TrieModel rootModel = new TrieModel();
+        rootModel.createCube(RubiksTrie.NO_CUBE);
+        List<Trie> tries = new ArrayList<>();
+        tries.add(new Trie(new RubiksTrie(), rootModel));
+
+        for (int step = 0; step < 20_000; step++) {
+            Trie changed = tries.get(random.nextInt(tries.size()));
+            RubiksTrie trie = changed.trie;
+            TrieModel model = changed.model;
+            int numCubes = model.parents.size();
+            int cube = random.nextInt(numCubes);
+            int slot = random.nextInt(STICKERS);
+            int operation = random.nextInt(100);
+
+            if (operation < 20) {
+                // more than a few chunks of cubes, so that forks share some
+                // and copy others
+                if (numCubes < 300) {
+                    int[] children = model.children.get(cube);
+                    int child = trie.getOrCreateChild(cube, slot);
+                    if (children[slot] == RubiksTrie.NO_CUBE) {
+                        assertEquals(model.createCube(cube), child);
+                        children[slot] = child;
+                    }
+                    assertEquals(children[slot], child);
+                }
+            } else if (operation < 32) {
+                // the blocks of removed cubes are reused by the next ones
+                if (numCubes > 1) {
+                    trie.removeLastCube();
+                    model.removeLastCube();
+                }
+            } else if (operation < 65) {
+                // few slots and values, so that compacting shares blocks
+                slot %= 4;
+                byte b = (byte) random.nextInt(3);
+                trie.setPayload(cube, slot, b);
+                model.payloads.get(cube)[slot] = b;
+            } else if (operation < 75) {
+                int move = random.nextInt(PermutationTable.NUM_BASIC_MOVES);
+                trie.move(cube, move);
+                model.states.set(cube, PermutationTable.apply(
+                        model.states.get(cube), move));
+            } else if (operation < 78) {
+                byte b = (byte) random.nextInt();
+                trie.setGlobalByte(b);
+                model.global = b;
+            } else if (operation < 82) {
+                // only compacts the first trie, until it is forked
+                trie.compact();
+            } else if (operation < 92) {
+                // the first trie grows and is compacted for a while before
+                // it is forked, so that forks start out sharing blocks
+                if (step >= 2000 && tries.size() < 8)
+                    tries.add(new Trie(trie.fork(), model.copy()));
+            } else if (operation < 95) {
+                if (tries.size() > 1)
+                    tries.remove(changed);
+            }
+
+            // a change to one trie must not show in any other
+            for (Trie other : tries) {
+                if (step % 500 == 0)
+                    other.model.check(other.trie);
+                else if (cube < other.model.parents.size())
+                    other.model.check(other.trie, cube);
+            }
+        }
+
+        for (Trie trie : tries)
+            trie.model.check(trie.trie);
+    }
+
+    @Test
+    void manyForksOfOneTrieKeepTheirOwnChanges() {
+        Random random = new Random(0);
+        RubiksTrie trie = new RubiksTrie();
+        TrieModel model = new TrieModel();
+        model.createCube(RubiksTrie.NO_CUBE);
+        for (int i = 0; i < 500; i++) {
+            int cube = random.nextInt(model.parents.size());
+            int slot = random.nextInt(STICKERS);
+            int child = trie.getOrCreateChild(cube, slot);
+            if (model.children.get(cube)[slot] == RubiksTrie.NO_CUBE) {
+                model.createCube(cube);
+                model.children.get(cube)[slot] = child;
+            }
+            trie.setPayload(child, slot, (byte) i);
+            model.payloads.get(child)[slot] = (byte) i;
+        }
+
+        List<Trie> forks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Trie fork = new Trie(trie.fork(), model.copy());
+            int cube = random.nextInt(model.parents.size());
+            int slot = random.nextInt(STICKERS);
+            fork.trie.setPayload(cube, slot, (byte) ~i);
+            fork.model.payloads.get(cube)[slot] = (byte) ~i;
+            int child = fork.trie.getOrCreateChild(cube, slot);
+            if (fork.model.children.get(cube)[slot] == RubiksTrie.NO_CUBE) {
+                fork.model.createCube(cube);
+                fork.model.children.get(cube)[slot] = child;
+            }
+            forks.add(fork);
+        }
+
+        model.check(trie);
+        for (Trie fork : forks)
+            fork.model.check(fork.trie);
+    }
+}
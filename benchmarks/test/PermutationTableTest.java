@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Random walks over the cube states, checking that every permutation has
+ * exactly one ID and that a state's slots are the same whether or not it is
+ * interned. With the default cap the walks go past the interned states part
+ * of the way; with rubiktreelang.maxInternedStates=1 every state but the
+ * identity is past them.
+ */
+class PermutationTableTest {
+
+    private static final int WALK_LENGTH = 200_000;
+
+    /**
+     * @return the basic moves and a few runs of them, as the Program's
+     * fused moves would register
+     */
+    private static int[] moves(Random random) {
+        int[] moves = new int[PermutationTable.NUM_BASIC_MOVES + 8];
+        for (int move = 0; move < PermutationTable.NUM_BASIC_MOVES; move++)
+            moves[move] = move;
+
+        for (int i = PermutationTable.NUM_BASIC_MOVES; i < moves.length;
+             i++) {
+            byte[] run = PermutationTable.moveOf(
+                    random.nextInt(PermutationTable.NUM_BASIC_MOVES));
+            for (int j = 0; j < 3; j++)
+                run = PermutationTable.compose(run, PermutationTable.moveOf(
+                        random.nextInt(PermutationTable.NUM_BASIC_MOVES)));
+            moves[i] = PermutationTable.registerMove(run);
+        }
+
+        return moves;
+    }
+
+    private static String key(byte[] slots) {
+        return new String(slots, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Walks from the identity, checking each step against composing the
+     * permutations, and records the ID of every permutation it reaches.
+     *
+     * @param ids permutation -> the ID it was first given
+     * @return the largest ID reached
+     */
+    private static int walk(long seed, Map<String, Integer> ids) {
+        Random random = new Random(seed);
+        int[] moves = moves(random);
+        int state = PermutationTable.IDENTITY;
+        int largest = state;
+
+        for (int step = 0; step < WALK_LENGTH; step++) {
+            int move = moves[random.nextInt(moves.length)];
+            int next = PermutationTable.apply(state, move);
+
+            byte[] slots = PermutationTable.slotsOf(next);
+            assertArrayEquals(PermutationTable.compose(
+                    PermutationTable.slotsOf(state),
+                    PermutationTable.moveOf(move)), slots);
+            assertTrue(PermutationTable.isPermutation(slots));
+
+            Integer id = ids.putIfAbsent(key(slots), next);
+            assertEquals(id == null ? next : id, next,
+                    "two IDs for one permutation");
+            assertEquals(next, PermutationTable.stateWithSlots(slots));
+
+            state = next;
+            largest = Math.max(largest, state);
+        }
+
+        return largest;
+    }
+
+    @Test
+    void everyPermutationHasOneID() {
+        Map<String, Integer> ids = new HashMap<>();
+        int largest = walk(1, ids);
+
+        assertTrue(largest >= PermutationTable.MAX_INTERNED_STATES,
+                "the walk never went past the interned states");
+
+        Map<Integer, String> permutations = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : ids.entrySet())
+            assertEquals(null, permutations.put(entry.getValue(),
+                    entry.getKey()), "one ID for two permutations");
+    }
+
+    @Test
+    void threadsAgreeOnIDs() throws Exception {
+        Map<String, Integer> ids = new ConcurrentHashMap<>();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            // two pairs of walks take the same steps, so that threads race
+            // to intern the same states
+            List<Future<Integer>> walks = new ArrayList<>();
+            for (long seed : new long[]{2, 2, 3, 3})
+                walks.add(threads.submit(() -> walk(seed, ids)));
+
+            for (Future<Integer> walk : walks)
+                walk.get();
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    void slotsMatchThePermutation() {
+        Random random = new Random(4);
+        int[] moves = moves(random);
+        int state = PermutationTable.IDENTITY;
+
+        for (int step = 0; step < WALK_LENGTH; step++) {
+            state = PermutationTable.apply(state,
+                    moves[random.nextInt(moves.length)]);
+
+            byte[] slots = PermutationTable.slotsOf(state);
+            for (int position = 0; position < PermutationTable.NUM_STICKERS;
+                 position++)
+                assertEquals(slots[position],
+                        PermutationTable.getSlot(state, position));
+            assertEquals(slots[0], PermutationTable.getRWSlot(state));
+        }
+    }
+
+    @Test
+    void permutationsMustKeepCornersTogether() {
+        byte[] identity = PermutationTable.slotsOf(PermutationTable.IDENTITY);
+        assertTrue(PermutationTable.isPermutation(identity));
+
+        for (int move = 0; move < PermutationTable.NUM_BASIC_MOVES; move++)
+            assertTrue(PermutationTable.isPermutation(
+                    PermutationTable.moveOf(move)));
+
+        // stickers 0 and 2 are on different corners
+        byte[] split = identity.clone();
+        split[0] = 2;
+        split[2] = 0;
+        assertFalse(PermutationTable.isPermutation(split));
+
+        // stickers 0 and 1 are on the same corner, but swapping them
+        // reflects it rather than twisting it
+        byte[] reflected = identity.clone();
+        reflected[0] = 1;
+        reflected[1] = 0;
+        assertFalse(PermutationTable.isPermutation(reflected));
+
+        assertFalse(PermutationTable.isPermutation(new byte[23]));
+    }
+}
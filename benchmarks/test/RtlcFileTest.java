@@ -0,0 +1,387 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Writes programs to .rtlc files and reads them back, and checks that
+ * reading a file that was cut off or changed fails with an
+ * IllegalArgumentException, since .rtlc files may come from anywhere: a
+ * program read from one must never jump, index or construct anything the
+ * program it was written from could not.
+ */
+class RtlcFileTest {
+
+    // brackets, fused moves, set arguments, and an error of each of two
+    // classes: an unknown command and a missing set argument
+    private static final String PROGRAM =
+            "setd 65 [ outputc F x U' setd 0 ] foo setd 999 [ g-- ] gsetd";
+    private static final int HEADER_SIZE = 24;
+
+    @TempDir
+    Path directory;
+
+    private Path write(Program program, boolean withSourceMap)
+            throws IOException {
+        Path file = directory.resolve("program.rtlc");
+        RtlcFile.write(program, file, withSourceMap);
+        return file;
+    }
+
+    private Program program() throws IOException {
+        Path file = directory.resolve("program.rtl");
+        Files.write(file, PROGRAM.getBytes(StandardCharsets.UTF_8));
+        return Interpreter.loadProgram(file);
+    }
+
+    private static void assertSameProgram(Program expected, Program actual,
+                                          boolean withSourceMap) {
+        assertEquals(expected.length(), actual.length());
+        for (int pc = 0; pc < expected.length(); pc++) {
+            assertEquals(expected.getOpcode(pc), actual.getOpcode(pc),
+                    "opcode at " + pc);
+            assertEquals(expected.getOperand(pc), actual.getOperand(pc),
+                    "operand at " + pc);
+        }
+
+        assertEquals(expected.getNumErrors(), actual.getNumErrors());
+        for (int i = 0; i < expected.getNumErrors(); i++) {
+            assertEquals(expected.getError(i).getClass(),
+                    actual.getError(i).getClass());
+            assertEquals(expected.getError(i).getMessage(),
+                    actual.getError(i).getMessage());
+        }
+
+        assertEquals(expected.getNumMoves(), actual.getNumMoves());
+        assertEquals(expected.getNumFusedMoves(), actual.getNumFusedMoves());
+        assertEquals(withSourceMap, actual.hasSourceMap());
+        if (withSourceMap) {
+            assertArrayEquals(expected.getTokens(), actual.getTokens());
+            for (int pc = 0; pc <= expected.length(); pc++)
+                assertEquals(expected.getSourcePc(pc), actual.getSourcePc(pc));
+        }
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("ExamplesTest#examples")
+    void examplesRunTheSameFromRtlcFiles(String name, String input,
+                                         String expectedOutput,
+                                         String expectedDigest)
+            throws IOException {
+        Program program = ExamplesTest.load(name);
+        for (boolean withSourceMap : new boolean[]{true, false}) {
+            Program read = RtlcFile.read(write(program, withSourceMap));
+            assertSameProgram(program, read, withSourceMap);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Interpreter interp = new Interpreter(read, new RubiksTrie(),
+                    ExamplesTest.input(input), ExamplesTest.output(bytes));
+            interp.run(Long.MAX_VALUE);
+            assertEquals(expectedOutput, ExamplesTest.printed(bytes));
+            assertEquals(expectedDigest, Tries.digest(interp.getTrie(),
+                    interp.getCurrCube().getID()));
+        }
+    }
+
+    @Test
+    void errorsAndSourcePcsSurviveTheRoundTrip() throws IOException {
+        Program program = program();
+        assertEquals(2, program.getNumErrors());
+        for (boolean withSourceMap : new boolean[]{true, false})
+            assertSameProgram(program, RtlcFile.read(write(program,
+                    withSourceMap)), withSourceMap);
+    }
+
+    /**
+     * Reads a file, along with its source map if it has one, since that is
+     * only read when it is asked for.
+     */
+    private static void read(Path file) throws IOException {
+        Program program = RtlcFile.read(file);
+        if (program.hasSourceMap())
+            program.getTokens();
+    }
+
+    @Test
+    void truncatedFilesAreRejected() throws IOException {
+        Path file = write(program(), true);
+        byte[] bytes = Files.readAllBytes(file);
+        Path cut = directory.resolve("cut.rtlc");
+        for (int length = 0; length < bytes.length; length++) {
+            Files.write(cut, Arrays.copyOf(bytes, length));
+            assertThrows(IllegalArgumentException.class, () -> read(cut),
+                    "cut at " + length);
+        }
+
+        // an example whose tokens need two bytes each to index
+        file = write(ExamplesTest.load("bf-hello-world.rtl"), true);
+        bytes = Files.readAllBytes(file);
+        for (int length = 0; length < bytes.length; length += 97) {
+            Files.write(cut, Arrays.copyOf(bytes, length));
+            assertThrows(IllegalArgumentException.class, () -> read(cut),
+                    "cut at " + length);
+        }
+    }
+
+    /**
+     * Where the parts of a .rtlc file start.
+     */
+    private static final class Layout {
+        final int length; // of the program
+        final int moves;
+        final int errors;
+        final int opcodes;
+        final int operands;
+        final int sourceMap;
+
+        Layout(byte[] bytes) {
+            ByteBuffer file = ByteBuffer.wrap(bytes);
+            length = file.getInt(12);
+            file.position(HEADER_SIZE);
+            int numMoves = file.getInt();
+            moves = file.position();
+            errors = moves + 24 * numMoves;
+            file.position(errors);
+            int numStrings = 2 * file.getInt();
+            for (int i = 0; i < numStrings; i++) {
+                int stringLength = file.getInt();
+                file.position(file.position() + Math.max(0, stringLength));
+            }
+            opcodes = file.position();
+            operands = opcodes + (length + 3) / 4 * 4;
+            sourceMap = operands + 4 * length;
+        }
+    }
+
+    private interface Change {
+        void apply(byte[] bytes, ByteBuffer file, Layout layout,
+                   Program program);
+    }
+
+    /**
+     * Writes the program with a change made to its file, and checks that
+     * reading the file fails saying what is wrong with it.
+     */
+    private void assertRejected(String problem, Change change)
+            throws IOException {
+        Program program = program();
+        byte[] bytes = Files.readAllBytes(write(program, true));
+        change.apply(bytes, ByteBuffer.wrap(bytes), new Layout(bytes),
+                program);
+
+        Path file = directory.resolve("changed.rtlc");
+        Files.write(file, bytes);
+        IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class, () -> read(file));
+        assertTrue(e.getMessage().contains(problem), e.getMessage());
+    }
+
+    /**
+     * @return pc of the first instruction with the opcode
+     */
+    private static int find(Program program, int opcode) {
+        for (int pc = 0; pc < program.length(); pc++)
+            if (program.getOpcode(pc) == opcode)
+                return pc;
+
+        throw new AssertionError("no opcode " + opcode);
+    }
+
+    @Test
+    void changedFilesAreRejected() throws IOException {
+        assertRejected("is not a .rtlc file",
+                (bytes, file, layout, program) -> bytes[0] = 'X');
+        assertRejected("is a version 2 .rtlc file",
+                (bytes, file, layout, program) -> file.putInt(4, 2));
+        assertRejected("move 0 is not a permutation",
+                (bytes, file, layout, program) -> bytes[layout.moves] = 5);
+        assertRejected("unknown opcode",
+                (bytes, file, layout, program) -> bytes[layout.opcodes] = 99);
+        assertRejected("unknown opcode",
+                (bytes, file, layout, program) -> bytes[layout.opcodes] = -1);
+
+        // operands that would index outside the move table or errors
+        assertRejected("bad operand", (bytes, file, layout, program) ->
+                file.putInt(layout.operands + 4 * find(program,
+                        Program.MOVE), 1));
+        assertRejected("bad operand", (bytes, file, layout, program) ->
+                file.putInt(layout.operands + 4 * find(program,
+                        Program.ERROR), 2));
+        assertRejected("bad operand", (bytes, file, layout, program) ->
+                file.putInt(layout.operands + 4 * find(program,
+                        Program.ERROR), -1));
+    }
+
+    @Test
+    void badBracketPartnersAreRejected() throws IOException {
+        Program program = program();
+        // the [ ... ] around outputc
+        int open = find(program, Program.OUTPUTC) - 1;
+        int close = program.getOperand(open);
+        assertTrue(Program.isOpenBracket(program.getOpcode(open)));
+
+        // partners that are not brackets, out of the program, behind the
+        // [ or after the ], or brackets that do not point back
+        for (int partner : new int[]{open + 1, close + 1, program.length(),
+                -1, open, Integer.MIN_VALUE}) {
+            assertRejected("bad operand " + partner + " at pc = " + open,
+                    (bytes, file, layout, p) ->
+                            file.putInt(layout.operands + 4 * open, partner));
+        }
+        // the [ is checked first, and finds that the ] does not point back
+        for (int partner : new int[]{close - 1, close, -1,
+                program.length()}) {
+            assertRejected("bad operand " + close + " at pc = " + open,
+                    (bytes, file, layout, p) ->
+                            file.putInt(layout.operands + 4 * close, partner));
+        }
+
+        // a [ and ] that point at each other but are not a [ and a ]
+        assertRejected("bad operand", (bytes, file, layout, p) ->
+                bytes[layout.opcodes + close] = (byte) Program.plainOpcode(
+                        p.getOpcode(open)));
+        assertRejected("bad operand " + close + " at pc = " + open,
+                (bytes, file, layout, p) ->
+                        bytes[layout.opcodes + close] = Program.NOP);
+    }
+
+    /**
+     * Writes a file whose first error claims to be of className, with
+     * message as its message.
+     */
+    private Path withError(String className, String message)
+            throws IOException {
+        byte[] bytes = Files.readAllBytes(write(program(), true));
+        Layout layout = new Layout(bytes);
+
+        // the first string after the count of errors is the first class name
+        ByteBuffer file = ByteBuffer.wrap(bytes);
+        int start = layout.errors + 4;
+        int end = start + 4 + file.getInt(start);
+        end += 4 + file.getInt(end);
+
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer error = ByteBuffer.allocate(8 + name.length
+                + text.length);
+        error.putInt(name.length).put(name).putInt(text.length).put(text);
+
+        Path changed = directory.resolve("error.rtlc");
+        Files.write(changed, splice(bytes, start, end, error.array()));
+        return changed;
+    }
+
+    @Test
+    void errorsOfOtherClassesAreRejected() throws IOException {
+        // every class decoding makes is read back
+        for (String className : new String[]{
+                "java.lang.NumberFormatException",
+                "java.lang.UnsupportedOperationException",
+                "java.lang.ArrayIndexOutOfBoundsException",
+                "java.lang.StringIndexOutOfBoundsException"}) {
+            Program read = RtlcFile.read(withError(className, "message"));
+            assertEquals(className, read.getError(0).getClass().getName());
+            assertEquals("message", read.getError(0).getMessage());
+        }
+
+        // no other class is constructed, even one that takes a String
+        Path victim = directory.resolve("victim");
+        Files.write(victim, "kept".getBytes(StandardCharsets.UTF_8));
+        for (String className : new String[]{"java.io.FileOutputStream",
+                "java.lang.IllegalStateException", "java.lang.String",
+                "NoSuchClass", ""}) {
+            Path file = withError(className, victim.toString());
+            IllegalArgumentException e = assertThrows(
+                    IllegalArgumentException.class,
+                    () -> RtlcFile.read(file));
+            assertTrue(e.getMessage().contains("error 0 is of unknown class"),
+                    e.getMessage());
+        }
+        assertEquals("kept", new String(Files.readAllBytes(victim),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void badSourceMapsAreRejected() throws IOException {
+        // source pcs that add up to more tokens than there are
+        assertRejected("bad source map", (bytes, file, layout, program) ->
+                bytes[layout.sourceMap + layout.length]++);
+        // or to fewer
+        assertRejected("bad source map", (bytes, file, layout, program) ->
+                bytes[layout.sourceMap + layout.length]--);
+        // two instructions decoded from the same token, with the source
+        // pcs after them where they were
+        assertRejected("bad source map", (bytes, file, layout, program) -> {
+            bytes[layout.sourceMap + 2] += bytes[layout.sourceMap + 1];
+            bytes[layout.sourceMap + 1] = 0;
+        });
+
+        // long deltas that overflow, and wrap round to where the source pcs
+        // after them were
+        byte[] bytes = Files.readAllBytes(write(program(), true));
+        int start = new Layout(bytes).sourceMap;
+        ByteBuffer deltas = ByteBuffer.allocate(11);
+        deltas.put((byte) 255).putInt(Integer.MAX_VALUE);
+        deltas.put((byte) 255).putInt(Integer.MAX_VALUE);
+        deltas.put((byte) (bytes[start] + bytes[start + 1] + bytes[start + 2]
+                + 2));
+        Path file = directory.resolve("overflowing.rtlc");
+        Files.write(file, splice(bytes, start, start + 3, deltas.array()));
+        IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class, () -> read(file));
+        assertTrue(e.getMessage().contains("bad source map"), e.getMessage());
+    }
+
+    /**
+     * @return bytes with the ones from from up to to replaced
+     */
+    private static byte[] splice(byte[] bytes, int from, int to,
+                                 byte[] replacement) {
+        ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+        spliced.write(bytes, 0, from);
+        spliced.write(replacement, 0, replacement.length);
+        spliced.write(bytes, to, bytes.length - to);
+        return spliced.toByteArray();
+    }
+
+    @Test
+    void countsLargerThanTheFileAreRejected() throws IOException {
+        // each would allocate gigabytes if it were believed
+        assertRejected("is truncated", (bytes, file, layout, program) ->
+                file.putInt(12, Integer.MAX_VALUE));
+        assertRejected("is truncated", (bytes, file, layout, program) ->
+                file.putInt(layout.moves - 4, Integer.MAX_VALUE));
+        assertRejected("is truncated", (bytes, file, layout, program) ->
+                file.putInt(layout.errors, Integer.MAX_VALUE));
+        assertRejected("is truncated", (bytes, file, layout, program) ->
+                file.putInt(layout.errors + 4, Integer.MAX_VALUE));
+        assertRejected("is truncated", (bytes, file, layout, program) ->
+                file.putInt(layout.errors + 4, -2));
+
+        // the counts of distinct and of all tokens, after one delta byte
+        // per instruction and one for the end of the program
+        int distinct = new Layout(Files.readAllBytes(write(program(),
+                true))).sourceMap + program().length() + 1;
+        assertRejected("is truncated", (bytes, file, layout, program) ->
+                file.putInt(distinct, Integer.MAX_VALUE));
+        assertRejected("is truncated", (bytes, file, layout, program) -> {
+            int tokens = distinct + 4;
+            for (int i = 0; i < file.getInt(distinct); i++)
+                tokens += 4 + file.getInt(tokens);
+            file.putInt(tokens, Integer.MAX_VALUE);
+        });
+    }
+}
@@ -0,0 +1,199 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Runs programs with and without superinstructions and checks that both
+ * ways print the same output and leave the same trie: the examples, which
+ * are full of the shapes the Converter writes, and random chains of blocks
+ * run from every value of the global byte, so that every block of a
+ * DISPATCH, INCREMENT_CHAIN and DECREMENT_CHAIN gets chosen.
+ */
+class SuperinstructionsTest {
+
+    private static final int PROGRAMS = 60;
+    // steps a program runs for at most, far more than any needs, in case
+    // a superinstruction sends it round a loop forever
+    private static final long MAX_STEPS = 1 << 24;
+
+    /**
+     * What a program printed and left, and how many steps it took.
+     */
+    private static final class Run {
+        final String output;
+        final String digest;
+        final long steps;
+
+        Run(Program program, String input, boolean superinstructions) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Interpreter interp = new Interpreter(program, new RubiksTrie(),
+                    ExamplesTest.input(input), ExamplesTest.output(bytes));
+            interp.setSuperinstructions(superinstructions);
+            interp.run(MAX_STEPS);
+
+            assertTrue(interp.isFinished(), "superinstructions "
+                    + superinstructions);
+            output = ExamplesTest.printed(bytes);
+            digest = Tries.digest(interp.getTrie(),
+                    interp.getCurrCube().getID());
+            steps = interp.getStepsRun();
+        }
+    }
+
+    private static int numSuperinstructions(Program program) {
+        return program.getNumSuperinstructions(Program.DISPATCH)
+                + program.getNumSuperinstructions(Program.INCREMENT_CHAIN)
+                + program.getNumSuperinstructions(Program.DECREMENT_CHAIN);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("ExamplesTest#examples")
+    void examplesRunTheSameWithoutSuperinstructions(String name, String input,
+                                                    String expectedOutput,
+                                                    String expectedDigest)
+            throws IOException {
+        Program program = ExamplesTest.load(name);
+        Run with = new Run(program, input, true);
+        Run without = new Run(program, input, false);
+
+        assertEquals(without.output, with.output);
+        assertEquals(without.digest, with.digest);
+        assertEquals(expectedOutput, with.output);
+        assertEquals(expectedDigest, with.digest);
+
+        // the Converter's output is full of superinstructions, which must
+        // have been run as such
+        if (name.startsWith("bf-") || name.endsWith(".bf"))
+            assertTrue(numSuperinstructions(program) > 0,
+                    program.getSuperinstructionReport());
+        if (numSuperinstructions(program) > 0)
+            assertTrue(with.steps < without.steps,
+                    with.steps + " steps with superinstructions, "
+                            + without.steps + " without");
+        else
+            assertEquals(without.steps, with.steps);
+    }
+
+    /**
+     * @return a block for a chain, which leaves the global byte nonzero at its
+     * ] so that it is not run again
+     */
+    private static String block(Random random) {
+        int choice = random.nextInt(10);
+        if (choice < 2)
+            return Converter.convertCode("+", false);
+        if (choice < 4)
+            return Converter.convertCode("-", false);
+
+        // a block of a DISPATCH, which does something the output or the
+        // trie shows and changes the global byte the blocks after it see,
+        // to 0 after the g-- now and then
+        StringBuilder body = new StringBuilder("[");
+        String[] steps = {"setd 7", "outputd", "F", "v", "^", "ptg", "gtp",
+                "g++", "g--", "ptc"};
+        int length = 1 + random.nextInt(4);
+        for (int i = 0; i < length; i++)
+            body.append(' ').append(steps[random.nextInt(steps.length)]);
+        body.append(" gsetd ").append(1 + random.nextInt(random.nextBoolean()
+                ? 255 : 2));
+        return body.append(" ]").toString();
+    }
+
+    /**
+     * @return random chains of blocks separated mostly by g--, which the
+     * decoder turns into DISPATCHes, INCREMENT_CHAINs and DECREMENT_CHAINs,
+     * each started at the global byte's value. Now and then blocks are
+     * separated by something else, which must not be taken for a chain
+     */
+    private static String program(Random random, int global) {
+        StringBuilder code = new StringBuilder("setd ")
+                .append(random.nextInt(256)).append(" gsetd ").append(global);
+        int numChains = 1 + random.nextInt(3);
+        for (int chain = 0; chain < numChains; chain++) {
+            int length = 1 + random.nextInt(30);
+            for (int i = 0; i < length; i++) {
+                code.append(' ').append(block(random));
+                if (i < length - 1 || random.nextBoolean())
+                    code.append(random.nextInt(8) > 0 ? " g--"
+                            : random.nextBoolean() ? " g++" : "");
+            }
+            code.append(" outputd gtp outputd setd ")
+                    .append(random.nextInt(256));
+        }
+        return code.append(" outputd gtp outputd").toString();
+    }
+
+    private static Program decode(String code) throws IOException {
+        return Program.decode(new Lexer(code.getBytes(StandardCharsets.UTF_8),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void chainsRunTheSameFromEveryGlobalByte() throws IOException {
+        Random random = new Random(0);
+        int[] matched = new int[Program.NUM_OPCODES - Program.DISPATCH];
+        for (int i = 0; i < PROGRAMS; i++) {
+            long seed = random.nextLong();
+            for (int global = 0; global < 256; global++) {
+                // the same chains from every global byte
+                String code = program(new Random(seed), global);
+                Program program = decode(code);
+                Run with = new Run(program, "", true);
+                Run without = new Run(program, "", false);
+
+                assertEquals(without.output, with.output, code);
+                assertEquals(without.digest, with.digest, code);
+                for (int opcode = Program.DISPATCH;
+                     opcode < Program.NUM_OPCODES; opcode++)
+                    matched[opcode - Program.DISPATCH] +=
+                            program.getNumSuperinstructions(opcode);
+            }
+        }
+
+        for (int count : matched)
+            assertTrue(count > 0, "each superinstruction is matched");
+    }
+
+    @Test
+    void convertedPlusAndMinusRunTheSameFromEveryGlobalByte()
+            throws IOException {
+        int[] payloads = {0, 1, 127, 128, 254, 255};
+        for (String bf : new String[]{"+", "-"}) {
+            String chain = Converter.convertCode(bf, false);
+            for (int global = 0; global < 256; global++) {
+                for (int payload : payloads) {
+                    // the global byte chooses the cell of the cube a chain
+                    // adds to, and the second chain sees what the first left
+                    String code = "setd " + payload + " gsetd " + global + " "
+                            + chain + " " + chain + " outputd gtp outputd";
+                    Program program = decode(code);
+                    assertEquals(2, program.getNumSuperinstructions(
+                            bf.equals("+") ? Program.INCREMENT_CHAIN
+                                    : Program.DECREMENT_CHAIN));
+                    // every block but the first of each chain, which is the
+                    // chain itself, and the very last, which no [ follows
+                    assertEquals(2 * (Program.CHAIN_BLOCKS - 1) - 1,
+                            program.getNumSuperinstructions(Program.DISPATCH));
+
+                    Run with = new Run(program, "", true);
+                    Run without = new Run(program, "", false);
+                    assertEquals(without.output, with.output, code);
+                    assertEquals(without.digest, with.digest, code);
+                    if (global < Program.CHAIN_BLOCKS) {
+                        int sum = (payload + (bf.equals("+") ? 2 : -2)) & 0xFF;
+                        assertEquals(sum + "\n" + global + "\n", with.output,
+                                code);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What a trie should hold, kept in the plainest way possible, for tests to
+ * check storages and tries against after random changes.
+ */
+final class TrieModel {
+
+    private static final int STICKERS = RubiksTrie.STICKERS;
+
+    final List<Integer> parents = new ArrayList<>();
+    final List<Integer> states = new ArrayList<>();
+    final List<byte[]> payloads = new ArrayList<>();
+    final List<int[]> children = new ArrayList<>();
+    byte global;
+
+    int createCube(int parent) {
+        parents.add(parent);
+        states.add(PermutationTable.IDENTITY);
+        payloads.add(new byte[STICKERS]);
+        int[] none = new int[STICKERS];
+        Arrays.fill(none, RubiksTrie.NO_CUBE);
+        children.add(none);
+        return parents.size() - 1;
+    }
+
+    void removeLastCube() {
+        int id = parents.size() - 1;
+        int[] siblings = children.get(parents.get(id));
+        for (int slot = 0; slot < STICKERS; slot++)
+            if (siblings[slot] == id)
+                siblings[slot] = RubiksTrie.NO_CUBE;
+
+        parents.remove(id);
+        states.remove(id);
+        payloads.remove(id);
+        children.remove(id);
+    }
+
+    /**
+     * @return a deep copy, which does not change when this model does
+     */
+    TrieModel copy() {
+        TrieModel copy = new TrieModel();
+        copy.parents.addAll(parents);
+        copy.states.addAll(states);
+        for (int cube = 0; cube < parents.size(); cube++) {
+            copy.payloads.add(payloads.get(cube).clone());
+            copy.children.add(children.get(cube).clone());
+        }
+        copy.global = global;
+        return copy;
+    }
+
+    void check(TrieStorage storage) {
+        assertEquals(parents.size(), storage.getNumCubes());
+        for (int cube = 0; cube < parents.size(); cube++)
+            check(storage, cube);
+    }
+
+    void check(TrieStorage storage, int cube) {
+        assertEquals(parents.get(cube), storage.getParent(cube));
+        assertEquals(states.get(cube), storage.getState(cube));
+        for (int i = 0; i < STICKERS; i++) {
+            int slot = i;
+            assertEquals(payloads.get(cube)[slot],
+                    storage.getPayload(cube, slot),
+                    () -> "payload of cube " + cube + " slot " + slot);
+            assertEquals(children.get(cube)[slot],
+                    storage.getChild(cube, slot),
+                    () -> "child of cube " + cube + " slot " + slot);
+        }
+    }
+
+    void check(RubiksTrie trie) {
+        assertEquals(parents.size(), trie.getNumCubes());
+        assertEquals(global, trie.getGlobalByte());
+        for (int cube = 0; cube < parents.size(); cube++)
+            check(trie, cube);
+    }
+
+    void check(RubiksTrie trie, int cube) {
+        assertEquals(parents.get(cube), trie.getParent(cube));
+        assertEquals(states.get(cube), trie.getState(cube));
+        for (int i = 0; i < STICKERS; i++) {
+            int slot = i;
+            assertEquals(payloads.get(cube)[slot],
+                    trie.getPayload(cube, slot),
+                    () -> "payload of cube " + cube + " slot " + slot);
+            assertEquals(children.get(cube)[slot],
+                    trie.getChild(cube, slot),
+                    () -> "child of cube " + cube + " slot " + slot);
+        }
+    }
+}
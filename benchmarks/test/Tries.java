@@ -0,0 +1,54 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Describes the cubes of a trie in a way that is the same in every JVM, for
+ * tests to compare tries built in different ways.
+ */
+final class Tries {
+
+    private Tries() {
+    }
+
+    /**
+     * @param trie     the trie
+     * @param currCube ID of the current cube
+     * @return a hash of every cube's parent, permutation, payloads and
+     * children, and of the global byte and currCube. Each state is hashed
+     * as its permutation, since PermutationTable's IDs differ from one run
+     * to the next
+     */
+    static String digest(RubiksTrie trie, int currCube) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int numCubes = trie.getNumCubes();
+        sha.update(ints(numCubes, trie.getGlobalByte(), currCube));
+        for (int cube = 0; cube < numCubes; cube++) {
+            sha.update(ints(trie.getParent(cube)));
+            sha.update(PermutationTable.slotsOf(trie.getState(cube)));
+            for (int slot = 0; slot < RubiksTrie.STICKERS; slot++) {
+                sha.update(trie.getPayload(cube, slot));
+                sha.update(ints(trie.getChild(cube, slot)));
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest())
+            hex.append(String.format("%02x", b));
+        return hex.substring(0, 16);
+    }
+
+    private static byte[] ints(int... values) {
+        byte[] bytes = new byte[4 * values.length];
+        for (int i = 0; i < values.length; i++)
+            for (int j = 0; j < 4; j++)
+                bytes[4 * i + j] = (byte) (values[i] >>> 24 - 8 * j);
+
+        return bytes;
+    }
+}
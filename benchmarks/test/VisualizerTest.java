@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Steps a program forwards and backwards in the Visualizer. The program has
+ * set arguments and fused moves, so the token indices the Visualizer shows
+ * and takes are not the instruction indices the journal remembers.
+ */
+class VisualizerTest {
+
+    // tokens:       0    1  2       3 4 5    6  7       8 9    10 11
+    // instructions: 0       1       2   3       4       5 6       7
+    private static final String PROGRAM =
+            "setd 65 outputc F x setd 66 outputc U setd 67 outputc";
+
+    @TempDir
+    Path directory;
+
+    private Path write() throws IOException {
+        Path file = directory.resolve("program.rtl");
+        Files.write(file, PROGRAM.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Runs the Visualizer on PROGRAM with the given commands.
+     *
+     * @return what it printed
+     */
+    private String visualize(String... commands) throws IOException {
+        Path file = write();
+
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            System.setIn(new ByteArrayInputStream((String.join("\n",
+                    commands) + "\nexit\n").getBytes(StandardCharsets.UTF_8)));
+            System.setOut(new PrintStream(bytes, true, "UTF-8"));
+            Visualizer.main(new String[]{file.toString()});
+        } finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the pc of each "Next instruction" the Visualizer printed
+     */
+    private static List<Integer> shownPcs(String printed) {
+        List<Integer> pcs = new ArrayList<>();
+        Matcher next = Pattern.compile("Next instruction .* at pc = (\\d+)")
+                .matcher(printed);
+        while (next.find())
+            pcs.add(Integer.parseInt(next.group(1)));
+
+        return pcs;
+    }
+
+    @Test
+    void backuntilTakesTheTokenIndicesItShows() throws IOException {
+        String printed = visualize("step 5", "backuntil 3", "backuntil 0");
+
+        // step 5 stops before the U at token 8
+        assertEquals(List.of(3, 0), shownPcs(printed));
+        assertTrue(printed.contains("Next instruction F x at pc = 3"),
+                printed);
+    }
+
+    @Test
+    void backuntilRefusesTokensNoInstructionStartsAt() throws IOException {
+        // 1 is setd's argument and 4 is the x fused into F, which no step
+        // was at, so nothing is undone and back 1 still goes from the U
+        String printed = visualize("step 5", "backuntil 1", "backuntil 4",
+                "back 1");
+
+        assertTrue(printed.contains("backuntil found no step it remembers at "
+                + "pc = 1, so nothing was undone."), printed);
+        assertTrue(printed.contains("backuntil found no step it remembers at "
+                + "pc = 4, so nothing was undone."), printed);
+        assertEquals(List.of(7), shownPcs(printed));
+    }
+
+    @Test
+    void backuntilRefusesStepsAlreadyUndone() throws IOException {
+        String printed = visualize("step 7", "backuntil 2", "backuntil 9",
+                "back 1", "step 1", "backuntil 0");
+
+        assertTrue(printed.contains("backuntil found no step it remembers at "
+                + "pc = 9, so nothing was undone."), printed);
+        // the outputc at token 2 is undone, run again and undone again
+        assertEquals(List.of(2, 0, 0), shownPcs(printed));
+    }
+
+    @Test
+    void undoingStepsMatchesNotTakingThem() throws IOException {
+        Program program = Interpreter.loadProgram(write());
+        for (int steps = 0; steps <= 8; steps++) {
+            Interpreter forwards = new Interpreter(program, new RubiksTrie(),
+                    ExamplesTest.input(""),
+                    ExamplesTest.output(new ByteArrayOutputStream()));
+            forwards.setSuperinstructions(false);
+            UndoJournal journal = new UndoJournal(16);
+            for (int i = 0; i < 8; i++)
+                forwards.processNextCommand(journal);
+
+            for (int i = 0; i < 8 - steps; i++)
+                assertTrue(forwards.undo(journal));
+
+            Interpreter fresh = new Interpreter(program, new RubiksTrie(),
+                    ExamplesTest.input(""),
+                    ExamplesTest.output(new ByteArrayOutputStream()));
+            fresh.setSuperinstructions(false);
+            for (int i = 0; i < steps; i++)
+                fresh.processNextCommand(new UndoJournal(16));
+
+            assertEquals(fresh.getProgramCounter(),
+                    forwards.getProgramCounter());
+            assertEquals(Tries.digest(fresh.getTrie(),
+                            fresh.getCurrCube().getID()),
+                    Tries.digest(forwards.getTrie(),
+                            forwards.getCurrCube().getID()),
+                    "after " + steps + " steps");
+        }
+    }
+}
@@ -0,0 +1,444 @@
+import java.util.Arrays;
+
+/**
+ * Stores every cube in a handful of primitive arrays, rather than as
+ * RubiksCube and Node objects. The 24 stickers of a cube are kept in a block,
+ * and every cube starts out sharing block 0, which is all zeros and is never
+ * written. A cube only gets a block of its own the first time one of its
+ * payloads is set to something other than 0 or one of its stickers is given a
+ * child, so a cube that is only visited, or only turned, costs no sticker
+ * storage at all:
+ * <p>
+ * - payloads[24 * block + slot] is the payload of a sticker
+ * - children[24 * block + slot] is the ID of the sticker's child cube, or 0
+ * if it has none (the root has ID 0 and can never be a child)
+ * - blocks[id] is the block holding a cube's stickers
+ * - parents[id] is the ID of a cube's parent, or NO_CUBE for the root
+ * - states[id] is the cube's PermutationTable state
+ * <p>
+ * That is 12 bytes per cube plus 120 bytes per block, plus at most as much
+ * again of spare capacity after the arrays grow.
+ * <p>
+ * Compacting the storage hash-conses the blocks: cubes whose stickers hold
+ * the same payloads and have no children are made to share one block, and
+ * the blocks are renumbered so the arrays can shrink. From then on each
+ * block has a reference count, and a cube writing to a block it shares gets
+ * a copy of its own first, just as it does for the zero block. Blocks with
+ * children are never shared, since every cube has a single parent. The
+ * storage can be compacted on demand, or whenever its blocks need more room
+ * while the heap is fuller than a threshold.
+ * <p>
+ * Forking the storage freezes it and hands out ForkedTrieStorages that read
+ * it until they write, so that a trie that is never forked keeps these flat
+ * arrays and pays nothing for being forkable.
+ */
+class ArrayTrieStorage implements TrieStorage {
+
+    private static final int STICKERS = RubiksTrie.STICKERS;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int ZERO_BLOCK = 0; // shared by untouched cubes
+
+    private byte[] payloads;
+    private int[] children;
+    private int[] blocks;
+    private int[] parents;
+    private int[] states;
+    private int numCubes;
+    private int numBlocks; // including the zero block
+    // blocks of removed cubes, all zeros, for the next cubes to reuse
+    private int[] freeBlocks;
+    private int numFreeBlocks;
+    // how many cubes have each block, or null until a compaction first
+    // shares a block other than the zero block
+    private int[] refCounts;
+    private final long compactionThreshold; // heap bytes, or 0 for never
+    private int numCompactions;
+    private int numBlocksCompacted; // numBlocks after the last compaction
+    private long bytesReclaimed; // by every compaction together
+
+    ArrayTrieStorage() {
+        this(0);
+    }
+
+    /**
+     * @param compactionThreshold compact the storage whenever its blocks
+     *                            need more room while the heap holds at
+     *                            least this many bytes, or 0 to only
+     *                            compact it when asked to
+     */
+    ArrayTrieStorage(long compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+        payloads = new byte[STICKERS * INITIAL_CAPACITY];
+        children = new int[STICKERS * INITIAL_CAPACITY];
+        blocks = new int[INITIAL_CAPACITY];
+        parents = new int[INITIAL_CAPACITY];
+        states = new int[INITIAL_CAPACITY];
+        numCubes = 0;
+        numBlocks = 1;
+        freeBlocks = new int[INITIAL_CAPACITY];
+        numFreeBlocks = 0;
+    }
+
+    /**
+     * @return double the capacity, but no more than the arrays can hold
+     */
+    private static int grow(int capacity) {
+        int newCapacity = (int) Math.min(2L * capacity,
+                Integer.MAX_VALUE / STICKERS);
+        if (newCapacity == capacity)
+            throw new OutOfMemoryError("Too many Rubik's Cubes");
+
+        return newCapacity;
+    }
+
+    public int createCube(int parent) {
+        if (numCubes == parents.length) {
+            int capacity = grow(numCubes);
+            blocks = Arrays.copyOf(blocks, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            states = Arrays.copyOf(states, capacity);
+        }
+
+        int id = numCubes;
+        numCubes++;
+        blocks[id] = ZERO_BLOCK;
+        parents[id] = parent;
+        states[id] = PermutationTable.IDENTITY;
+        return id;
+    }
+
+    /**
+     * @return whether block belongs to more than one cube, so that it must
+     * not be written
+     */
+    boolean isShared(int block) {
+        return block == ZERO_BLOCK
+                || (refCounts != null && refCounts[block] > 1);
+    }
+
+    /**
+     * Gives a cube that shares its block a block of its own, a copy of the
+     * shared one, so that it can be written.
+     *
+     * @return the cube's block
+     */
+    private int unshare(int cube) {
+        int block;
+        if (numFreeBlocks > 0) {
+            block = freeBlocks[--numFreeBlocks];
+        } else {
+            // compacting again before the blocks have doubled would take
+            // more time than it could save
+            if (STICKERS * numBlocks == payloads.length
+                    && compactionThreshold > 0
+                    && numBlocks >= 2 * numBlocksCompacted
+                    && heapUsed() >= compactionThreshold)
+                compact(); // which may leave enough room
+
+            if (STICKERS * numBlocks == payloads.length) {
+                int capacity = grow(numBlocks);
+                payloads = Arrays.copyOf(payloads, STICKERS * capacity);
+                children = Arrays.copyOf(children, STICKERS * capacity);
+                if (refCounts != null)
+                    refCounts = Arrays.copyOf(refCounts, capacity);
+            }
+            block = numBlocks++;
+        }
+
+        int shared = blocks[cube];
+        if (shared != ZERO_BLOCK) {
+            System.arraycopy(payloads, STICKERS * shared, payloads,
+                    STICKERS * block, STICKERS);
+            System.arraycopy(children, STICKERS * shared, children,
+                    STICKERS * block, STICKERS);
+            refCounts[shared]--;
+        }
+        if (refCounts != null)
+            refCounts[block] = 1;
+
+        blocks[cube] = block;
+        return block;
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Merges every block without children into the first block with the same
+     * payloads, and renumbers the blocks in the order the cubes first use
+     * them so that the arrays only need to hold the blocks left.
+     *
+     * @return how many bytes the arrays of blocks shrank by
+     */
+    public long compact() {
+        long before = blockBytes();
+
+        // new number of each old block, and old block of each new block
+        int[] renumbered = new int[numBlocks];
+        Arrays.fill(renumbered, -1);
+        int[] originals = new int[numBlocks];
+        // new numbers of blocks without children, hashed by their payloads
+        int[] table = new int[Integer.highestOneBit(2 * numBlocks) << 1];
+        Arrays.fill(table, -1);
+
+        // the zero block stays block 0, and all-zero blocks merge into it
+        renumbered[ZERO_BLOCK] = ZERO_BLOCK;
+        originals[ZERO_BLOCK] = ZERO_BLOCK;
+        add(table, originals, ZERO_BLOCK);
+        int numKept = 1;
+        boolean merged = false; // whether any block besides 0 is shared
+        for (int cube = 0; cube < numCubes; cube++) {
+            int block = blocks[cube];
+            if (renumbered[block] == -1) {
+                boolean leaf = hasNoChildren(block);
+                int kept = leaf ? find(table, originals, block) : -1;
+                if (kept > ZERO_BLOCK)
+                    merged = true;
+                if (kept == -1) {
+                    kept = numKept++;
+                    originals[kept] = block;
+                    if (leaf)
+                        add(table, originals, kept);
+                }
+                renumbered[block] = kept;
+            }
+            blocks[cube] = renumbered[block];
+        }
+
+        int capacity = Math.min(payloads.length / STICKERS,
+                Math.max(INITIAL_CAPACITY, numKept + numKept / 8));
+        byte[] newPayloads = new byte[STICKERS * capacity];
+        int[] newChildren = new int[STICKERS * capacity];
+        for (int block = 0; block < numKept; block++) {
+            System.arraycopy(payloads, STICKERS * originals[block],
+                    newPayloads, STICKERS * block, STICKERS);
+            System.arraycopy(children, STICKERS * originals[block],
+                    newChildren, STICKERS * block, STICKERS);
+        }
+        payloads = newPayloads;
+        children = newChildren;
+        numBlocks = numKept;
+        numBlocksCompacted = numKept;
+        numFreeBlocks = 0;
+
+        if (merged || refCounts != null) {
+            refCounts = new int[capacity];
+            for (int cube = 0; cube < numCubes; cube++)
+                refCounts[blocks[cube]]++;
+        }
+
+        long reclaimed = before - blockBytes();
+        numCompactions++;
+        bytesReclaimed += reclaimed;
+        return reclaimed;
+    }
+
+    /**
+     * @return size of the arrays that hold blocks
+     */
+    private long blockBytes() {
+        return payloads.length + 4L * children.length
+                + (refCounts == null ? 0 : 4L * refCounts.length);
+    }
+
+    private boolean hasNoChildren(int block) {
+        for (int i = STICKERS * block; i < STICKERS * (block + 1); i++)
+            if (children[i] != 0)
+                return false;
+
+        return true;
+    }
+
+    private int hashPayloads(int block) {
+        int hash = 0;
+        for (int i = STICKERS * block; i < STICKERS * (block + 1); i++)
+            hash = 31 * hash + payloads[i];
+
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param table     new numbers of blocks, hashed by payloads, or -1
+     * @param originals old block of each new block
+     * @param block     an old block
+     * @return new number of a block in table with the same payloads as
+     * block, or -1 if there is none
+     */
+    private int find(int[] table, int[] originals, int block) {
+        for (int i = hashPayloads(block) & (table.length - 1);
+             table[i] != -1; i = (i + 1) & (table.length - 1))
+            if (Arrays.equals(payloads, STICKERS * originals[table[i]],
+                    STICKERS * (originals[table[i]] + 1), payloads,
+                    STICKERS * block, STICKERS * (block + 1)))
+                return table[i];
+
+        return -1;
+    }
+
+    private void add(int[] table, int[] originals, int kept) {
+        int i = hashPayloads(originals[kept]) & (table.length - 1);
+        while (table[i] != -1)
+            i = (i + 1) & (table.length - 1);
+        table[i] = kept;
+    }
+
+    /**
+     * @return how many times the storage was compacted and how much memory
+     * that reclaimed
+     */
+    String getCompactionReport() {
+        return "Compacted the trie " + numCompactions + " times, "
+                + "reclaiming " + bytesReclaimed + " bytes: "
+                + getNumBlocks() + " blocks of stickers hold " + numCubes
+                + " cubes.";
+    }
+
+    public int getNumCubes() {
+        return numCubes;
+    }
+
+    /**
+     * @return number of blocks cubes have been given, for seeing how many
+     * cubes share the zero block
+     */
+    int getNumBlocks() {
+        return numBlocks - 1 - numFreeBlocks;
+    }
+
+    public void removeLastCube() {
+        int id = --numCubes;
+
+        int parentBlock = blocks[parents[id]];
+        for (int i = STICKERS * parentBlock;
+             i < STICKERS * (parentBlock + 1); i++)
+            if (children[i] == id)
+                children[i] = 0;
+
+        int block = blocks[id];
+        if (isShared(block)) {
+            if (refCounts != null)
+                refCounts[block]--;
+            return;
+        }
+
+        Arrays.fill(payloads, STICKERS * block, STICKERS * (block + 1),
+                (byte) 0);
+        Arrays.fill(children, STICKERS * block, STICKERS * (block + 1), 0);
+        if (block == numBlocks - 1) {
+            numBlocks--;
+        } else {
+            if (numFreeBlocks == freeBlocks.length)
+                freeBlocks = Arrays.copyOf(freeBlocks, 2 * numFreeBlocks);
+            freeBlocks[numFreeBlocks++] = block;
+        }
+    }
+
+    public int getParent(int cube) {
+        return parents[cube];
+    }
+
+    public int getState(int cube) {
+        return states[cube];
+    }
+
+    public void setState(int cube, int state) {
+        states[cube] = state;
+    }
+
+    public byte getPayload(int cube, int slot) {
+        return payloads[STICKERS * blocks[cube] + slot];
+    }
+
+    public void setPayload(int cube, int slot, byte b) {
+        int block = blocks[cube];
+        if (isShared(block)) {
+            if (payloads[STICKERS * block + slot] == b)
+                return; // already b
+            block = unshare(cube);
+        }
+
+        payloads[STICKERS * block + slot] = b;
+    }
+
+    public int getChild(int cube, int slot) {
+        int child = children[STICKERS * blocks[cube] + slot];
+        return child == 0 ? RubiksTrie.NO_CUBE : child;
+    }
+
+    /**
+     * Once forked, the storage must not be changed again, but can be read
+     * and forked again.
+     *
+     * @return a copy that reads this storage's cubes until it changes them
+     */
+    public TrieStorage fork() {
+        return new ForkedTrieStorage(this);
+    }
+
+    /***** For ForkedTrieStorage to read a forked storage *****/
+
+    int getBlock(int cube) {
+        return blocks[cube];
+    }
+
+    /**
+     * @return the number of blocks, including the zero block and blocks
+     * waiting to be reused
+     */
+    int getBlockLimit() {
+        return numBlocks;
+    }
+
+    /**
+     * @return the blocks waiting to be reused, which are all zeros
+     */
+    int[] getFreeBlocks() {
+        return Arrays.copyOf(freeBlocks, numFreeBlocks);
+    }
+
+    byte getBlockPayload(int block, int slot) {
+        return payloads[STICKERS * block + slot];
+    }
+
+    int getBlockChild(int block, int slot) {
+        return children[STICKERS * block + slot];
+    }
+
+    /**
+     * Copies the blocks, parents and states of cubes from the cube with ID
+     * from on, as many as fit in the arrays or exist.
+     */
+    void copyCubes(int from, int[] blocks, int[] parents, int[] states) {
+        int length = Math.min(blocks.length, numCubes - from);
+        if (length <= 0)
+            return;
+
+        System.arraycopy(this.blocks, from, blocks, 0, length);
+        System.arraycopy(this.parents, from, parents, 0, length);
+        System.arraycopy(this.states, from, states, 0, length);
+    }
+
+    /**
+     * Copies the payloads and children of blocks from block from on, as
+     * many as fit in the arrays or exist.
+     */
+    void copyBlocks(int from, byte[] payloads, int[] children) {
+        int length = STICKERS * Math.min(payloads.length / STICKERS,
+                numBlocks - from);
+        if (length <= 0)
+            return;
+
+        System.arraycopy(this.payloads, STICKERS * from, payloads, 0, length);
+        System.arraycopy(this.children, STICKERS * from, children, 0, length);
+    }
+
+    public void setChild(int cube, int slot, int child) {
+        int block = blocks[cube];
+        if (isShared(block))
+            block = unshare(cube);
+
+        children[STICKERS * block + slot] = child;
+    }
+}
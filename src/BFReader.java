@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.TreeMap;
+
+/**
+ * Reads a BF program as a stream of operations for the Converter, skipping
+ * comments as it goes. Runs of +, -, &gt; and &lt; are folded into single
+ * counted operations, and loops that follow a few well-known patterns are
+ * recognized as operations of their own, so that the Converter can translate
+ * each of them into far less .rtl code than the loop spelled out one char at
+ * a time would need:
+ * <ul>
+ * <li>[-] and [+], which clear a cell, become SET 0 (and any additions right
+ * after them are folded into the SET)</li>
+ * <li>loops like [-&gt;+&lt;] and [-&gt;++&gt;+&lt;&lt;], which move or
+ * multiply a cell into cells around it, become TRANSFER</li>
+ * <li>[&gt;] and [&lt;], which look for the nearest zero cell, become
+ * SCAN</li>
+ * </ul>
+ * The current cell is known to be zero at the start of the program and right
+ * after a loop, so additions there also become a SET and loops there are
+ * skipped entirely.
+ * <p>
+ * Only a bounded amount of the program is ever held in memory: a loop is
+ * only looked ahead into for up to MAX_IDIOM_LENGTH commands, and all other
+ * loops come out as LOOP_START and LOOP_END around their operations.
+ */
+final class BFReader {
+
+    enum Kind {
+        ADD, // amount: what to add to the cell, from 1 to 255
+        MOVE, // amount: how many cells to move right (left if negative)
+        SET, // amount: the cell's new value, from 0 to 255
+        INPUT,
+        OUTPUT,
+        LOOP_START,
+        LOOP_END,
+        // offsets and factors: each cell[offset] += factor * cell, then
+        // cell = 0
+        TRANSFER,
+        SCAN // amount: 1 to look right for a zero cell, -1 to look left
+    }
+
+    static final class Op {
+        final Kind kind;
+        final int amount;
+        final int[] offsets;
+        final int[] factors;
+
+        private Op(Kind kind, int amount, int[] offsets, int[] factors) {
+            this.kind = kind;
+            this.amount = amount;
+            this.offsets = offsets;
+            this.factors = factors;
+        }
+
+        private Op(Kind kind, int amount) {
+            this(kind, amount, null, null);
+        }
+    }
+
+    // longest loop body looked at when recognizing loops
+    static final int MAX_IDIOM_LENGTH = 256;
+    // longest MOVE, so that translating one takes a bounded amount of memory
+    static final int MAX_MOVE_DISTANCE = 24;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private boolean endOfInput;
+
+    // commands read ahead and put back, the next one on top
+    private final byte[] pushback = new byte[MAX_IDIOM_LENGTH + 1];
+    private int pushbackSize;
+
+    private int known; // value of the current cell, or -1 if not known
+
+    /**
+     * @param channel where to read the BF code from; it may contain comments
+     */
+    BFReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+        endOfInput = false;
+        pushbackSize = 0;
+        known = 0;
+    }
+
+    /**
+     * @return whether c is a BF command rather than part of a comment
+     */
+    static boolean isCommand(int c) {
+        switch (c) {
+            case '+':
+            case '-':
+            case '>':
+            case '<':
+            case '.':
+            case ',':
+            case '[':
+            case ']':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the next BF command, or -1 at the end of the code
+     */
+    int nextCommand() throws IOException {
+        if (pushbackSize > 0)
+            return pushback[--pushbackSize];
+
+        while (true) {
+            while (buffer.hasRemaining()) {
+                byte c = buffer.get();
+                if (isCommand(c))
+                    return c;
+            }
+
+            if (endOfInput)
+                return -1;
+
+            buffer.clear();
+            endOfInput = channel.read(buffer) < 0;
+            buffer.flip();
+        }
+    }
+
+    private int peekCommand() throws IOException {
+        int c = nextCommand();
+        if (c != -1)
+            pushback[pushbackSize++] = (byte) c;
+        return c;
+    }
+
+    /**
+     * @return the next operation, or null at the end of the code
+     */
+    Op next() throws IOException {
+        while (true) {
+            int c = nextCommand();
+            switch (c) {
+                case -1:
+                    return null;
+                case '+':
+                case '-':
+                    int sum = ((c == '+' ? 1 : -1) + sumAdditions()) & 0xff;
+                    if (sum == 0)
+                        break;
+                    if (known >= 0)
+                        return set(known + sum);
+                    return new Op(Kind.ADD, sum);
+                case '>':
+                case '<':
+                    int distance = c == '>' ? 1 : -1;
+                    int d;
+                    while (Math.abs(distance) < MAX_MOVE_DISTANCE
+                            && ((d = peekCommand()) == '>' || d == '<')) {
+                        nextCommand();
+                        distance += d == '>' ? 1 : -1;
+                    }
+
+                    if (distance != 0) {
+                        known = -1;
+                        return new Op(Kind.MOVE, distance);
+                    }
+                    break;
+                case ',':
+                    known = -1;
+                    return new Op(Kind.INPUT, 0);
+                case '.':
+                    return new Op(Kind.OUTPUT, 0);
+                case '[':
+                    if (known == 0) {
+                        if (!skipLoop()) // keep the brackets unbalanced
+                            return new Op(Kind.LOOP_START, 0);
+                        break;
+                    }
+
+                    Op loop = readLoop();
+                    if (loop != null) {
+                        known = 0;
+                        return loop.kind == Kind.SET ? set(0) : loop;
+                    }
+
+                    known = -1;
+                    return new Op(Kind.LOOP_START, 0);
+                default: // ']'
+                    known = 0;
+                    return new Op(Kind.LOOP_END, 0);
+            }
+        }
+    }
+
+    /**
+     * Consumes the run of + and - next in the code.
+     *
+     * @return its sum
+     */
+    private int sumAdditions() throws IOException {
+        int sum = 0;
+        int c;
+        while ((c = peekCommand()) == '+' || c == '-') {
+            nextCommand();
+            sum += c == '+' ? 1 : -1;
+        }
+        return sum;
+    }
+
+    /**
+     * @return a SET of the current cell to value plus the run of + and -
+     * right after it
+     */
+    private Op set(int value) throws IOException {
+        known = (value + sumAdditions()) & 0xff;
+        return new Op(Kind.SET, known);
+    }
+
+    /**
+     * Consumes a loop that is never entered, up to its closing bracket.
+     *
+     * @return false if the code ended before the loop did
+     */
+    private boolean skipLoop() throws IOException {
+        for (int depth = 1; depth > 0; ) {
+            int c = nextCommand();
+            if (c == -1)
+                return false;
+            else if (c == '[')
+                depth++;
+            else if (c == ']')
+                depth--;
+        }
+        return true;
+    }
+
+    /**
+     * Looks ahead into the loop whose [ has just been read.
+     *
+     * @return the operation the whole loop is equivalent to, with the loop
+     * consumed; or null, with nothing consumed, if it is not one that is
+     * recognized
+     */
+    private Op readLoop() throws IOException {
+        byte[] body = new byte[MAX_IDIOM_LENGTH + 1];
+        int length = 0;
+
+        int c;
+        do {
+            c = nextCommand();
+            if (c == -1)
+                break;
+            body[length++] = (byte) c;
+        } while (length <= MAX_IDIOM_LENGTH
+                && (c == '+' || c == '-' || c == '>' || c == '<'));
+
+        Op loop = c == ']' ? recognizeLoop(body, length - 1) : null;
+        if (loop == null) {
+            for (int i = length - 1; i >= 0; i--)
+                pushback[pushbackSize++] = body[i];
+        }
+
+        return loop;
+    }
+
+    /**
+     * @param body   the commands of a loop, all of them +, -, &gt; or &lt;
+     * @param length how many there are
+     * @return an operation equivalent to the whole loop, or null if there is
+     * none
+     */
+    private static Op recognizeLoop(byte[] body, int length) {
+        // what the loop adds to each cell relative to the current one
+        TreeMap<Integer, Integer> deltas = new TreeMap<>();
+        int offset = 0;
+        for (int i = 0; i < length; i++) {
+            switch (body[i]) {
+                case '>':
+                    offset++;
+                    break;
+                case '<':
+                    offset--;
+                    break;
+                default:
+                    deltas.merge(offset, body[i] == '+' ? 1 : -1,
+                            Integer::sum);
+            }
+        }
+        deltas.values().removeIf(delta -> (delta & 0xff) == 0);
+
+        if (deltas.isEmpty())
+            return Math.abs(offset) == 1 ? new Op(Kind.SCAN, offset) : null;
+
+        int step = deltas.getOrDefault(0, 0) & 0xff;
+        if (offset != 0 || step % 2 == 0)
+            return null;
+        deltas.remove(0);
+
+        if (deltas.isEmpty()) // an odd step always reaches zero
+            return new Op(Kind.SET, 0);
+
+        // the loop runs cell times if it subtracts 1, -cell times if it adds 1
+        if (step != 0xff && step != 1)
+            return null;
+
+        int[] offsets = new int[deltas.size()];
+        int[] factors = new int[deltas.size()];
+        int i = 0;
+        for (int target : deltas.keySet()) {
+            offsets[i] = target;
+            factors[i] = (step == 1 ? -deltas.get(target)
+                    : deltas.get(target)) & 0xff;
+            i++;
+        }
+
+        return new Op(Kind.TRANSFER, 0, offsets, factors);
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs every one of a set of programs on every file in a directory of inputs,
+ * many runs at a time, and prints a line for each run saying how it ended,
+ * how many steps it took and how long. This is how to run a test matrix of
+ * programs and inputs in one JVM.
+ * <p>
+ * Each program is decoded once and its Program is shared by all of its runs.
+ * Each input file is read once, and every run reads it through an
+ * InputSource of its own and writes to an in-memory OutputSink of its own, so
+ * runs share nothing that changes. The summary lines are printed in the order
+ * the runs were listed, whichever order they finish in.
+ */
+public class BatchRunner {
+
+    private static final String USAGE =
+            "Usage: java BatchRunner [--threads=n] [--max-steps=n] "
+            + "[--output=directory]\n"
+            + "\tinputDirectory rtlFilePath...\n"
+            + "\t--threads: how many programs to run at once (by default "
+            + "one per\n\t\tprocessor)\n"
+            + "\t--max-steps: stop each run after this many steps\n"
+            + "\t--output: write the output of each run to directory, in a "
+            + "file named\n\t\tafter its program's place in the list, its "
+            + "program and its input";
+
+    // how a run can end
+    private static final int OK = 0;
+    private static final int ERROR = 1;
+    private static final int LIMIT = 2; // stopped at --max-steps
+    private static final String[] STATUS_NAMES = {"ok", "error", "limit"};
+
+    /**
+     * How a run ended.
+     */
+    private static final class Result {
+        final int status;
+        final String detail; // what the error was, or ""
+        final long steps;
+        final long nanos;
+        final byte[] output;
+
+        Result(int status, String detail, long steps, long nanos,
+               byte[] output) {
+            this.status = status;
+            this.detail = detail;
+            this.steps = steps;
+            this.nanos = nanos;
+            this.output = output;
+        }
+    }
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Runs a program on an input in memory.
+     *
+     * @param program  the program, which is not changed
+     * @param input    the whole input, which is not changed
+     * @param maxSteps how many steps to stop after
+     * @return how the run ended and what it wrote
+     */
+    private static Result run(Program program, byte[] input, long maxSteps) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Interpreter interp = new Interpreter(program, new RubiksTrie(),
+                new InputSource(new ByteArrayInputStream(input),
+                        Charset.defaultCharset()),
+                new OutputSink(output, OutputSink.DEFAULT_FLUSH_THRESHOLD,
+                        Charset.defaultCharset()));
+
+        int status = OK;
+        String detail = "";
+        long start = System.nanoTime();
+        try {
+            interp.run(maxSteps);
+            if (!interp.isFinished())
+                status = LIMIT;
+        } catch (RuntimeException | OutOfMemoryError e) {
+            // an OutOfMemoryError only loses this run's trie
+            status = ERROR;
+            detail = ": " + e;
+        }
+
+        return new Result(status, detail, interp.getStepsRun(),
+                System.nanoTime() - start, output.toByteArray());
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long maxSteps = Long.MAX_VALUE;
+        Path outputDirectory = null;
+        List<String> paths = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = (int) Math.min(Interpreter.parseCount(
+                        arg.substring("--threads=".length())), 1 << 16);
+                if (threads <= 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (arg.startsWith("--max-steps=")) {
+                maxSteps = Interpreter.parseCount(
+                        arg.substring("--max-steps=".length()));
+                if (maxSteps <= 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (arg.startsWith("--output="))
+                outputDirectory =
+                        Paths.get(arg.substring("--output=".length()));
+            else if (!arg.startsWith("--"))
+                paths.add(arg);
+            else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        if (paths.size() < 2) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        List<Path> inputPaths;
+        List<byte[]> inputs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Paths.get(paths.get(0)))) {
+            inputPaths = files.filter(Files::isRegularFile).sorted()
+                    .collect(Collectors.toList());
+            for (Path inputPath : inputPaths)
+                inputs.add(Files.readAllBytes(inputPath));
+
+            if (outputDirectory != null)
+                Files.createDirectories(outputDirectory);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        List<Path> programPaths = new ArrayList<>();
+        List<Program> programs = new ArrayList<>();
+        for (String path : paths.subList(1, paths.size())) {
+            try {
+                programs.add(Interpreter.loadProgram(Paths.get(path)));
+                programPaths.add(Paths.get(path));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            } catch (UncheckedIOException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+
+        long stepLimit = maxSteps;
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> results = new ArrayList<>();
+        for (Program program : programs)
+            for (byte[] input : inputs)
+                results.add(pool.submit(() -> run(program, input, stepLimit)));
+        pool.shutdown();
+
+        int[] numWithStatus = new int[STATUS_NAMES.length];
+        int i = 0;
+        for (int p = 0; p < programPaths.size(); p++) {
+            Path programPath = programPaths.get(p);
+            for (Path inputPath : inputPaths) {
+                Result result;
+                try {
+                    result = results.get(i++).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+
+                System.out.format("%-5s %14d %12.3f ms  %s < %s%s%n",
+                        STATUS_NAMES[result.status], result.steps,
+                        result.nanos / 1e6, programPath,
+                        inputPath.getFileName(), result.detail);
+                numWithStatus[result.status]++;
+
+                // numbered, since programs in different directories can
+                // have the same name
+                if (outputDirectory != null)
+                    saveOutput(outputDirectory.resolve((p + 1) + "-"
+                            + programPath.getFileName() + "."
+                            + inputPath.getFileName() + ".out"),
+                            result.output);
+            }
+        }
+
+        System.out.format("%d runs in %.3f ms: %d ok, %d errors, %d stopped "
+                + "at the step limit%n", results.size(),
+                (System.nanoTime() - start) / 1e6, numWithStatus[OK],
+                numWithStatus[ERROR], numWithStatus[LIMIT]);
+    }
+
+    private static void saveOutput(Path path, byte[] output) {
+        try {
+            Files.write(path, output);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,686 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a Program into a JVM class, so that HotSpot optimizes the
+ * program's own control flow instead of the Interpreter's dispatch loop.
+ * <p>
+ * Brackets become real loops, and the current cube and the global byte live
+ * in local variables. Every method of the class is static, takes (trie, in,
+ * out, cube, global) and returns the cube and global byte it ends with packed
+ * into a long. Long programs, such as the Converter's output, are split into
+ * helper methods small enough for HotSpot to compile (it skips methods of
+ * more than 8000 bytes), calling each other in a tree.
+ * <p>
+ * Moves stay single calls to RubiksTrie.move, whose transition table lookup
+ * HotSpot inlines. Fused moves are registered with the PermutationTable when
+ * the class is initialized, so the class does not depend on their IDs in the
+ * JVM that compiled it and can be saved and loaded again later.
+ */
+final class BytecodeCompiler {
+
+    // part of the key of classes cached by the Compiler; change it whenever
+    // the code generated for a program changes, including the messages of
+    // the errors decoding finds
+    static final String VERSION = "2";
+
+    private static final String HIDDEN_CLASS_NAME = "CompiledRtlProgram";
+
+    private static final String TRIE = "RubiksTrie";
+    private static final String INPUT = "InputSource";
+    private static final String OUTPUT = "OutputSink";
+    private static final String COMPILED = "CompiledProgram";
+    private static final String ABORT = "CompiledProgram$Abort";
+
+    private static final String METHOD_DESCRIPTOR =
+            "(LRubiksTrie;LInputSource;LOutputSink;II)J";
+    private static final MethodType METHOD_TYPE = MethodType.methodType(
+            long.class, RubiksTrie.class, InputSource.class,
+            OutputSink.class, int.class, int.class);
+
+    // local variable slots
+    private static final int TRIE_SLOT = 0;
+    private static final int IN_SLOT = 1;
+    private static final int OUT_SLOT = 2;
+    private static final int CUBE_SLOT = 3;
+    private static final int GLOBAL_SLOT = 4;
+    private static final int TEMP_SLOT = 5;
+    private static final int THROWABLE_SLOT = 6;
+    private static final int MAX_LOCALS = 7;
+    private static final int MAX_STACK = 8;
+
+    // most bytes of instructions to put in one method, and the size of a
+    // call to another method
+    private static final int METHOD_SIZE_LIMIT = 6000;
+    private static final int CALL_SIZE = 20;
+
+    private final Program program;
+    private final ClassFileWriter classFile;
+    private final String className;
+    private final ClassFileWriter.Code clinit;
+    private final int[] sizePrefix; // bytes of code before each instruction
+    private final Map<Integer, String> moveFields = new HashMap<>();
+    private int numMethods = 0;
+
+    /**
+     * Part of a range of instructions being emitted: either instructions
+     * [from, to) emitted in place, or a call to a helper method.
+     */
+    private static final class Piece {
+        final int from;
+        int to;
+        final boolean bracketHelper; // [from, to) moved out into a helper
+        final List<Piece> group; // or these pieces moved out into a helper
+
+        Piece(int from, int to, boolean bracketHelper, List<Piece> group) {
+            this.from = from;
+            this.to = to;
+            this.bracketHelper = bracketHelper;
+            this.group = group;
+        }
+
+        boolean isInline() {
+            return !bracketHelper && group == null;
+        }
+    }
+
+    private BytecodeCompiler(Program program, String className) {
+        this.program = program;
+        this.className = className;
+        classFile = new ClassFileWriter(className);
+        clinit = classFile.newCode(MAX_STACK, 0);
+
+        sizePrefix = new int[program.length() + 1];
+        ClassFileWriter.Code scratch = newMethod();
+        for (int pc = 0; pc < program.length(); pc++) {
+            int start = scratch.length();
+            emitInstruction(scratch, pc, new ClassFileWriter.Label());
+            sizePrefix[pc + 1] = sizePrefix[pc] + scratch.length() - start;
+        }
+    }
+
+    /**
+     * Writes the class file for a program. Its static method run takes the
+     * trie, input, output, ID of the starting cube and global byte, and runs
+     * the whole program.
+     *
+     * @param className internal name of the class
+     * @param withMain  whether to give the class a main method running the
+     *                  program on standard input and output, so that it can
+     *                  be run on its own with java
+     * @throws UnsupportedOperationException if the program is too large for
+     *                                       a class file
+     */
+    static byte[] toClassFile(Program program, String className,
+                              boolean withMain) {
+        BytecodeCompiler compiler = new BytecodeCompiler(program, className);
+
+        ClassFileWriter.Code run = compiler.newMethod();
+        compiler.emitRange(run, 0, program.length());
+        compiler.finishMethod("run", run);
+
+        if (withMain) {
+            ClassFileWriter.Code main = compiler.classFile.newCode(1, 1);
+            main.pushClass(className);
+            main.invoke(ClassFileWriter.INVOKESTATIC, COMPILED, "main",
+                    "(Ljava/lang/Class;)V");
+            main.op(ClassFileWriter.RETURN);
+            compiler.classFile.addMethod(ClassFileWriter.ACC_PUBLIC
+                            | ClassFileWriter.ACC_STATIC, "main",
+                    "([Ljava/lang/String;)V", main);
+        }
+
+        compiler.clinit.op(ClassFileWriter.RETURN);
+        compiler.classFile.addMethod(ClassFileWriter.ACC_STATIC, "<clinit>",
+                "()V", compiler.clinit);
+
+        return compiler.classFile.toByteArray();
+    }
+
+    /**
+     * Compiles a program and loads it as a hidden class.
+     *
+     * @throws UnsupportedOperationException if the program is too large for
+     *                                       a class file
+     */
+    static CompiledProgram compile(Program program) {
+        return load(toClassFile(program, HIDDEN_CLASS_NAME, false));
+    }
+
+    /**
+     * Loads a class written by toClassFile as a hidden class.
+     *
+     * @throws LinkageError if the class file is broken
+     */
+    static CompiledProgram load(byte[] classFile) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(classFile, true);
+            return load(lookup, lookup.lookupClass());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param lookup   a lookup with package access to compiled
+     * @param compiled a class written by toClassFile
+     */
+    static CompiledProgram load(MethodHandles.Lookup lookup,
+                                Class<?> compiled) {
+        try {
+            return new CompiledProgram(
+                    lookup.findStatic(compiled, "run", METHOD_TYPE));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /***** Packing the state returned by compiled methods *****/
+
+    static int unpackCube(long state) {
+        return (int) (state >>> 32);
+    }
+
+    static byte unpackGlobal(long state) {
+        return (byte) state;
+    }
+
+    /***** Methods *****/
+
+    private ClassFileWriter.Code newMethod() {
+        return classFile.newCode(MAX_STACK, MAX_LOCALS);
+    }
+
+    /**
+     * Ends a method by returning the packed state, wraps its body in a
+     * handler turning anything thrown into an Abort carrying the state
+     * (unless it already is one), and adds it to the class.
+     */
+    private void finishMethod(String name, ClassFileWriter.Code code) {
+        int bodyEnd = code.length();
+
+        // return (long) cube << 32 | global & 0xff
+        code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+        code.op(ClassFileWriter.I2L);
+        code.push(32);
+        code.op(ClassFileWriter.LSHL);
+        code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+        code.push(0xff);
+        code.op(ClassFileWriter.IAND);
+        code.op(ClassFileWriter.I2L);
+        code.op(ClassFileWriter.LOR);
+        code.op(ClassFileWriter.LRETURN);
+
+        if (bodyEnd > 0) {
+            ClassFileWriter.Label handler = new ClassFileWriter.Label();
+            ClassFileWriter.Label rethrow = new ClassFileWriter.Label();
+
+            code.bind(handler);
+            code.local(ClassFileWriter.ASTORE, THROWABLE_SLOT);
+            code.local(ClassFileWriter.ALOAD, THROWABLE_SLOT);
+            code.type(ClassFileWriter.INSTANCEOF, ABORT);
+            code.branch(ClassFileWriter.IFNE, rethrow);
+            code.type(ClassFileWriter.NEW, ABORT);
+            code.op(ClassFileWriter.DUP);
+            code.local(ClassFileWriter.ALOAD, THROWABLE_SLOT);
+            code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+            code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+            code.invoke(ClassFileWriter.INVOKESPECIAL, ABORT, "<init>",
+                    "(Ljava/lang/Throwable;II)V");
+            code.op(ClassFileWriter.ATHROW);
+            code.bind(rethrow);
+            code.local(ClassFileWriter.ALOAD, THROWABLE_SLOT);
+            code.op(ClassFileWriter.ATHROW);
+
+            code.addCatchAll(0, bodyEnd, handler);
+        }
+
+        classFile.addMethod(ClassFileWriter.ACC_STATIC, name,
+                METHOD_DESCRIPTOR, code);
+    }
+
+    /**
+     * Emits a call to another method of the class, and takes the cube and
+     * global byte back out of what it returns.
+     */
+    private void emitCall(ClassFileWriter.Code code, String name) {
+        code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+        code.local(ClassFileWriter.ALOAD, IN_SLOT);
+        code.local(ClassFileWriter.ALOAD, OUT_SLOT);
+        code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+        code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+        code.invoke(ClassFileWriter.INVOKESTATIC, className, name,
+                METHOD_DESCRIPTOR);
+
+        code.op(ClassFileWriter.DUP2);
+        code.push(32);
+        code.op(ClassFileWriter.LUSHR);
+        code.op(ClassFileWriter.L2I);
+        code.local(ClassFileWriter.ISTORE, CUBE_SLOT);
+        code.op(ClassFileWriter.L2I);
+        code.op(ClassFileWriter.I2B);
+        code.local(ClassFileWriter.ISTORE, GLOBAL_SLOT);
+    }
+
+    /**
+     * Emits a helper method holding the given pieces and a call to it.
+     */
+    private void emitHelper(ClassFileWriter.Code code, List<Piece> pieces) {
+        String name = "m" + numMethods++;
+        ClassFileWriter.Code helper = newMethod();
+        for (Piece piece : pieces)
+            emitPiece(helper, piece);
+        finishMethod(name, helper);
+
+        emitCall(code, name);
+    }
+
+    /***** Splitting ranges of instructions *****/
+
+    private int size(int from, int to) {
+        return sizePrefix[to] - sizePrefix[from];
+    }
+
+    private int size(Piece piece) {
+        return piece.isInline() ? size(piece.from, piece.to) : CALL_SIZE;
+    }
+
+    /**
+     * @return the end of the instruction or bracket pair starting at pc
+     */
+    private int itemEnd(int pc) {
+        int opcode = program.getOpcode(pc);
+        return Program.isOpenBracket(opcode) ? program.getOperand(pc) + 1
+                : pc + 1;
+    }
+
+    /**
+     * Emits instructions [from, to), which must hold whole bracket pairs,
+     * moving as much of them out into helper methods as needed for code to
+     * stay under METHOD_SIZE_LIMIT.
+     */
+    private void emitRange(ClassFileWriter.Code code, int from, int to) {
+        List<Piece> pieces = new ArrayList<>();
+        for (int pc = from; pc < to; pc = itemEnd(pc)) {
+            int end = itemEnd(pc);
+            Piece last = pieces.isEmpty() ? null
+                    : pieces.get(pieces.size() - 1);
+
+            if (size(pc, end) > METHOD_SIZE_LIMIT)
+                pieces.add(new Piece(pc, end, true, null));
+            else if (last != null && last.isInline()
+                    && size(last.from, end) <= METHOD_SIZE_LIMIT)
+                last.to = end;
+            else
+                pieces.add(new Piece(pc, end, false, null));
+        }
+
+        while (totalSize(pieces) > METHOD_SIZE_LIMIT) {
+            List<Piece> groups = new ArrayList<>();
+            List<Piece> group = new ArrayList<>();
+            int groupSize = 0;
+            for (Piece piece : pieces) {
+                if (!group.isEmpty()
+                        && groupSize + size(piece) > METHOD_SIZE_LIMIT) {
+                    groups.add(new Piece(-1, -1, false, group));
+                    group = new ArrayList<>();
+                    groupSize = 0;
+                }
+
+                group.add(piece);
+                groupSize += size(piece);
+            }
+            groups.add(new Piece(-1, -1, false, group));
+
+            pieces = groups;
+        }
+
+        for (Piece piece : pieces)
+            emitPiece(code, piece);
+    }
+
+    private int totalSize(List<Piece> pieces) {
+        int total = 0;
+        for (Piece piece : pieces)
+            total += size(piece);
+
+        return total;
+    }
+
+    private void emitPiece(ClassFileWriter.Code code, Piece piece) {
+        if (piece.group != null) {
+            emitHelper(code, piece.group);
+        } else if (piece.bracketHelper) {
+            String name = "m" + numMethods++;
+            ClassFileWriter.Code helper = newMethod();
+            emitBracket(helper, piece.from, piece.to - 1, true);
+            finishMethod(name, helper);
+
+            emitCall(code, name);
+        } else {
+            for (int pc = piece.from; pc < piece.to; pc = itemEnd(pc)) {
+                if (Program.isOpenBracket(program.getOpcode(pc)))
+                    emitBracket(code, pc, program.getOperand(pc), false);
+                else
+                    emitInstruction(code, pc, null);
+            }
+        }
+    }
+
+    /**
+     * Emits a loop for a bracket pair.
+     *
+     * @param split whether the body may need to be split up
+     */
+    private void emitBracket(ClassFileWriter.Code code, int open, int close,
+                             boolean split) {
+        ClassFileWriter.Label top = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+
+        code.bind(top);
+        emitInstruction(code, open, end);
+        if (split)
+            emitRange(code, open + 1, close);
+        else
+            emitPiece(code, new Piece(open + 1, close, false, null));
+        emitInstruction(code, close, top);
+        code.bind(end);
+    }
+
+    /***** Instructions *****/
+
+    private static void loadPayload(ClassFileWriter.Code code) {
+        code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+        code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, TRIE, "getPayload",
+                "(I)B");
+    }
+
+    private static void storePayload(ClassFileWriter.Code code) {
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, TRIE, "setPayload",
+                "(IB)V");
+    }
+
+    /**
+     * global = (byte) (global op payload)
+     */
+    private static void emitArithmetic(ClassFileWriter.Code code, int op) {
+        code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+        loadPayload(code);
+        code.op(op);
+        code.op(ClassFileWriter.I2B);
+        code.local(ClassFileWriter.ISTORE, GLOBAL_SLOT);
+    }
+
+    /**
+     * payload = in.method(), flushing the output first
+     */
+    private static void emitInput(ClassFileWriter.Code code, String method) {
+        code.local(ClassFileWriter.ALOAD, OUT_SLOT);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, OUTPUT, "flush", "()V");
+
+        code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+        code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+        code.local(ClassFileWriter.ALOAD, IN_SLOT);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, INPUT, method, "()B");
+        storePayload(code);
+
+        code.local(ClassFileWriter.ALOAD, IN_SLOT);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, INPUT, "nextLine", "()V");
+    }
+
+    /**
+     * out.method(payload[, upperCase])
+     */
+    private static void emitOutput(ClassFileWriter.Code code, String method,
+                                   String descriptor, int upperCase) {
+        code.local(ClassFileWriter.ALOAD, OUT_SLOT);
+        loadPayload(code);
+        if (upperCase != -1)
+            code.push(upperCase);
+        code.invoke(ClassFileWriter.INVOKEVIRTUAL, OUTPUT, method,
+                descriptor);
+    }
+
+    /**
+     * Pushes the ID of a move, registering fused moves when the class is
+     * initialized.
+     */
+    private void pushMove(ClassFileWriter.Code code, int move) {
+        if (move < PermutationTable.NUM_BASIC_MOVES) {
+            code.push(move);
+            return;
+        }
+
+        String field = moveFields.get(move);
+        if (field == null) {
+            field = "move" + moveFields.size();
+            moveFields.put(move, field);
+            classFile.addField(ClassFileWriter.ACC_PRIVATE
+                    | ClassFileWriter.ACC_STATIC
+                    | ClassFileWriter.ACC_FINAL, field, "I");
+
+            clinit.push(new String(PermutationTable.moveOf(move),
+                    StandardCharsets.ISO_8859_1));
+            clinit.invoke(ClassFileWriter.INVOKESTATIC, COMPILED,
+                    "registerMove", "(Ljava/lang/String;)I");
+            clinit.field(ClassFileWriter.PUTSTATIC, className, field, "I");
+        }
+
+        code.field(ClassFileWriter.GETSTATIC, className, field, "I");
+    }
+
+    /**
+     * Emits one instruction. An open bracket jumps to target if its body is
+     * to be skipped, and a close bracket jumps to target, the top of the
+     * loop.
+     */
+    private void emitInstruction(ClassFileWriter.Code code, int pc,
+                                 ClassFileWriter.Label target) {
+        int operand = program.getOperand(pc);
+        ClassFileWriter.Label skip = new ClassFileWriter.Label();
+
+        switch (program.getOpcode(pc)) {
+            case Program.NOP:
+                break;
+            case Program.ERROR: {
+                RuntimeException error = program.getError(operand);
+                code.push(error.getClass().getName());
+                code.push(error.getMessage());
+                code.invoke(ClassFileWriter.INVOKESTATIC, COMPILED, "error",
+                        "(Ljava/lang/String;Ljava/lang/String;)"
+                        + "Ljava/lang/RuntimeException;");
+                code.op(ClassFileWriter.ATHROW);
+                break;
+            }
+            case Program.SET:
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                code.push((byte) operand);
+                storePayload(code);
+                break;
+            case Program.GSET:
+                code.push((byte) operand);
+                code.local(ClassFileWriter.ISTORE, GLOBAL_SLOT);
+                break;
+            case Program.GTP:
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+                storePayload(code);
+                break;
+            case Program.PTG:
+                loadPayload(code);
+                code.local(ClassFileWriter.ISTORE, GLOBAL_SLOT);
+                break;
+            case Program.INPUTB:
+                emitInput(code, "findBinary");
+                break;
+            case Program.INPUTC: {
+                // payload = c == -1 || c == '\n' ? 0 : (byte) c
+                ClassFileWriter.Label zero = new ClassFileWriter.Label();
+
+                code.local(ClassFileWriter.ALOAD, OUT_SLOT);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, OUTPUT, "flush",
+                        "()V");
+                code.local(ClassFileWriter.ALOAD, IN_SLOT);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, INPUT, "read",
+                        "()I");
+                code.local(ClassFileWriter.ISTORE, TEMP_SLOT);
+
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                code.local(ClassFileWriter.ILOAD, TEMP_SLOT);
+                code.push(-1);
+                code.branch(ClassFileWriter.IF_ICMPEQ, zero);
+                code.local(ClassFileWriter.ILOAD, TEMP_SLOT);
+                code.push('\n');
+                code.branch(ClassFileWriter.IF_ICMPEQ, zero);
+                code.local(ClassFileWriter.ILOAD, TEMP_SLOT);
+                code.op(ClassFileWriter.I2B);
+                code.branch(ClassFileWriter.GOTO, skip);
+                code.bind(zero);
+                code.push(0);
+                code.bind(skip);
+                storePayload(code);
+                break;
+            }
+            case Program.INPUTD:
+                emitInput(code, "findDecimal");
+                break;
+            case Program.INPUTX:
+                emitInput(code, "findHex");
+                break;
+            case Program.OUTPUTB:
+                emitOutput(code, "writeBinaryLine", "(B)V", -1);
+                break;
+            case Program.OUTPUTC:
+                emitOutput(code, "writeChar", "(B)V", -1);
+                break;
+            case Program.OUTPUTD:
+                emitOutput(code, "writeDecimalLine", "(B)V", -1);
+                break;
+            case Program.OUTPUTX_LOWER:
+                emitOutput(code, "writeHexLine", "(BZ)V", 0);
+                break;
+            case Program.OUTPUTX_UPPER:
+                emitOutput(code, "writeHexLine", "(BZ)V", 1);
+                break;
+            case Program.ADD:
+                emitArithmetic(code, ClassFileWriter.IADD);
+                break;
+            case Program.SUBTRACT:
+                emitArithmetic(code, ClassFileWriter.ISUB);
+                break;
+            case Program.MULTIPLY:
+                emitArithmetic(code, ClassFileWriter.IMUL);
+                break;
+            case Program.DIVIDE:
+                emitArithmetic(code, ClassFileWriter.IDIV);
+                break;
+            case Program.MOD:
+                emitArithmetic(code, ClassFileWriter.IREM);
+                break;
+            case Program.OPEN_GLOBAL_NONZERO:
+                code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+                code.branch(ClassFileWriter.IFEQ, target);
+                break;
+            case Program.OPEN_GLOBAL_ZERO:
+            case Program.DISPATCH:
+            case Program.INCREMENT_CHAIN:
+            case Program.DECREMENT_CHAIN:
+                code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+                code.branch(ClassFileWriter.IFNE, target);
+                break;
+            case Program.OPEN_LOCAL_NONZERO:
+                loadPayload(code);
+                code.branch(ClassFileWriter.IFEQ, target);
+                break;
+            case Program.OPEN_LOCAL_ZERO:
+                loadPayload(code);
+                code.branch(ClassFileWriter.IFNE, target);
+                break;
+            case Program.CLOSE_GLOBAL_NONZERO:
+            case Program.CLOSE_GLOBAL_ZERO:
+            case Program.CLOSE_LOCAL_NONZERO:
+            case Program.CLOSE_LOCAL_ZERO:
+                code.branch(ClassFileWriter.GOTO, target);
+                break;
+            case Program.DOWN:
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, TRIE,
+                        "getOrCreateChild", "(I)I");
+                code.local(ClassFileWriter.ISTORE, CUBE_SLOT);
+                break;
+            case Program.UP:
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, TRIE, "getParent",
+                        "(I)I");
+                code.local(ClassFileWriter.ISTORE, TEMP_SLOT);
+                code.local(ClassFileWriter.ILOAD, TEMP_SLOT);
+                code.push(RubiksTrie.NO_CUBE);
+                code.branch(ClassFileWriter.IF_ICMPEQ, skip);
+                code.local(ClassFileWriter.ILOAD, TEMP_SLOT);
+                code.local(ClassFileWriter.ISTORE, CUBE_SLOT);
+                code.bind(skip);
+                break;
+            case Program.PTC:
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, TRIE,
+                        "getOrCreateChild", "(I)I");
+                loadPayload(code);
+                storePayload(code);
+                break;
+            case Program.CTP:
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, TRIE, "getParent",
+                        "(I)I");
+                code.local(ClassFileWriter.ISTORE, TEMP_SLOT);
+                code.local(ClassFileWriter.ILOAD, TEMP_SLOT);
+                code.push(RubiksTrie.NO_CUBE);
+                code.branch(ClassFileWriter.IF_ICMPEQ, skip);
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, TEMP_SLOT);
+                loadPayload(code);
+                storePayload(code);
+                code.bind(skip);
+                break;
+            case Program.GLOBAL_INCREMENT:
+                code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+                code.push(1);
+                code.op(ClassFileWriter.IADD);
+                code.op(ClassFileWriter.I2B);
+                code.local(ClassFileWriter.ISTORE, GLOBAL_SLOT);
+                break;
+            case Program.GLOBAL_DECREMENT:
+                code.local(ClassFileWriter.ILOAD, GLOBAL_SLOT);
+                code.push(1);
+                code.op(ClassFileWriter.ISUB);
+                code.op(ClassFileWriter.I2B);
+                code.local(ClassFileWriter.ISTORE, GLOBAL_SLOT);
+                break;
+            case Program.MOVE:
+                code.local(ClassFileWriter.ALOAD, TRIE_SLOT);
+                code.local(ClassFileWriter.ILOAD, CUBE_SLOT);
+                pushMove(code, operand);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, TRIE, "move",
+                        "(II)V");
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode "
+                        + program.getOpcode(pc) + " at pc = "
+                        + program.getSourcePc(pc));
+        }
+    }
+}
@@ -0,0 +1,653 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoints of a running Interpreter, so that a long job that crashes or is
+ * stopped can be resumed from its last checkpoint with --resume instead of
+ * from the start.
+ * <p>
+ * A checkpoint file is a header followed by a log of records, and each record
+ * only holds the cubes that changed since the one before it, which a
+ * TrackedTrieStorage keeps track of. Resuming replays the records in order.
+ * Once the log is more than twice the size a single record of the whole trie
+ * would be, it is rewritten as one such record, so the file stays in
+ * proportion to the trie.
+ * <p>
+ * All numbers are big-endian. The header is the magic number "RTCP", the
+ * format version and a 64-bit fingerprint of the program, so that a
+ * checkpoint cannot be resumed with a different program. Each record is:
+ * <ul>
+ * <li>the length of the rest of the record before its checksum, as a
+ * long</li>
+ * <li>the pc, the current cube, the global byte, the number of cubes, and
+ * how many chars of input had been read, as a long</li>
+ * <li>the permutations of the cube states no earlier record used: a count,
+ * then 24 bytes each. States are numbered in the order they appear in the
+ * file, since PermutationTable's state IDs differ from one run to the
+ * next</li>
+ * <li>the changed cubes: a count, then for each its ID, its parent, the
+ * number of its state, its 24 payloads (a byte each) and its 24 children (an
+ * int each, -1 for none), in increasing order of ID</li>
+ * <li>the CRC-32 of everything before it in the record</li>
+ * </ul>
+ * Records are forced to disk as they are written, and a record that was only
+ * partly written when the program stopped fails its checksum and is dropped
+ * on resume along with anything after it.
+ */
+final class CheckpointFile implements Closeable {
+
+    private static final int MAGIC = 0x52544350; // "RTCP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int POSITION_SIZE = 21;
+    private static final int CUBE_SIZE = 12 + 5 * RubiksTrie.STICKERS;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // steps run between looks at the clock
+    private static final int CLOCK_CHECK_INTERVAL = 1 << 16;
+
+    // smaller logs are never rewritten
+    private static final long MIN_COMPACTION_SIZE = 1 << 20;
+
+    /**
+     * Where a program was when a checkpoint was written.
+     */
+    static final class Position {
+        final int pc;
+        final int currCube;
+        final long inputChars; // chars of input read before it
+
+        Position(int pc, int currCube, long inputChars) {
+            this.pc = pc;
+            this.currCube = currCube;
+            this.inputChars = inputChars;
+        }
+    }
+
+    private final Path path;
+    private final Program program;
+    private final RubiksTrie trie;
+    private final TrackedTrieStorage storage;
+    private final long stepInterval;
+    private final long nanosInterval;
+
+    private FileChannel channel;
+    private long size; // of the records known to be on disk
+    private final ByteBuffer buffer;
+    private final CRC32 crc;
+
+    // interned PermutationTable state -> 1 + its number in the file, or 0
+    // if none
+    private int[] stateNumbers;
+    // any other state -> its number in the file, since their IDs are too
+    // large and sparse for an array
+    private Map<Integer, Integer> largeStateNumbers;
+    // number in the file -> PermutationTable state
+    private int[] fileStates;
+    private int numStates;
+
+    private long stepsSinceWrite;
+    private long lastWriteNanos;
+
+    /**
+     * @param path            where to keep the checkpoints
+     * @param program         the program being run
+     * @param trie            the trie it runs on
+     * @param storage         the storage the trie keeps its cubes in
+     * @param stepInterval    write a checkpoint every this many steps, or 0
+     * @param secondsInterval write a checkpoint every this many seconds, or
+     *                        0
+     */
+    CheckpointFile(Path path, Program program, RubiksTrie trie,
+                   TrackedTrieStorage storage, long stepInterval,
+                   long secondsInterval) {
+        this.path = path;
+        this.program = program;
+        this.trie = trie;
+        this.storage = storage;
+        this.stepInterval = stepInterval;
+        nanosInterval = secondsInterval * 1_000_000_000L;
+
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        crc = new CRC32();
+        stateNumbers = new int[64];
+        largeStateNumbers = new HashMap<>();
+        fileStates = new int[64];
+    }
+
+    /**
+     * @return a hash of the program's instructions that is the same in every
+     * run, with each move hashed as its permutation
+     */
+    static long fingerprint(Program program) {
+        long hash = 0xcbf29ce484222325L; // 64-bit FNV-1a
+        for (int pc = 0; pc < program.length(); pc++) {
+            int opcode = Program.plainOpcode(program.getOpcode(pc));
+            int operand = program.getOperand(pc);
+            if (opcode == Program.MOVE)
+                operand = Arrays.hashCode(PermutationTable.moveOf(operand));
+
+            hash = (hash ^ opcode) * 0x100000001b3L;
+            hash = (hash ^ operand) * 0x100000001b3L;
+        }
+
+        return (hash ^ program.length()) * 0x100000001b3L;
+    }
+
+    /**
+     * Starts a new checkpoint file, replacing the file if it exists.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    void start() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        writeHeader(channel);
+        channel.force(false);
+        size = HEADER_SIZE;
+        lastWriteNanos = System.nanoTime();
+    }
+
+    private void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint(program));
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    /***** Writing *****/
+
+    /**
+     * @return how many steps the Interpreter should run before calling isDue
+     */
+    int stepsUntilCheck() {
+        long steps = CLOCK_CHECK_INTERVAL;
+        if (stepInterval > 0)
+            steps = Math.min(steps, stepInterval - stepsSinceWrite);
+
+        return (int) Math.max(steps, 1);
+    }
+
+    /**
+     * @param stepsRun steps run since the last call
+     * @return whether it is time to write a checkpoint
+     */
+    boolean isDue(int stepsRun) {
+        stepsSinceWrite += stepsRun;
+        return (stepInterval > 0 && stepsSinceWrite >= stepInterval)
+                || (nanosInterval > 0
+                && System.nanoTime() - lastWriteNanos >= nanosInterval);
+    }
+
+    /**
+     * Appends a checkpoint of the cubes that changed since the last one. If
+     * it cannot be written, the file is left as it was and the cubes stay
+     * changed, so the next checkpoint writes them.
+     *
+     * @param pc         the program's pc
+     * @param currCube   ID of the current cube
+     * @param inputChars how many chars of input the program has read
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void write(int pc, int currCube, long inputChars) throws IOException {
+        int oldNumStates = numStates;
+        try {
+            channel.position(size);
+            writeRecord(channel, false, pc, currCube, inputChars);
+            channel.force(false);
+        } catch (IOException e) {
+            forgetStates(oldNumStates);
+            try {
+                channel.truncate(size);
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+
+        size = channel.position();
+        storage.clearChanged();
+        stepsSinceWrite = 0;
+        lastWriteNanos = System.nanoTime();
+
+        if (size > MIN_COMPACTION_SIZE && size > 2 * fullRecordSize())
+            compact(pc, currCube, inputChars);
+    }
+
+    /**
+     * @return about how long a record of every cube would be
+     */
+    private long fullRecordSize() {
+        return 8 + POSITION_SIZE + 4 + (long) PermutationTable.NUM_STICKERS
+                * numStates + 4 + (long) CUBE_SIZE * trie.getNumCubes() + 4;
+    }
+
+    /**
+     * Replaces the log with a single record of every cube. The new file is
+     * written next to the old one and moved over it, so that there is always
+     * a complete checkpoint on disk.
+     */
+    private void compact(int pc, int currCube, long inputChars)
+            throws IOException {
+        int[] oldStateNumbers = stateNumbers.clone();
+        Map<Integer, Integer> oldLargeStateNumbers =
+                new HashMap<>(largeStateNumbers);
+        int[] oldFileStates = fileStates.clone();
+        int oldNumStates = numStates;
+        forgetStates(0);
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel compacted = FileChannel.open(temp,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                writeHeader(compacted);
+                writeRecord(compacted, true, pc, currCube, inputChars);
+                compacted.force(false);
+            }
+
+            channel.close();
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // keep appending to the old log
+            stateNumbers = oldStateNumbers;
+            largeStateNumbers = oldLargeStateNumbers;
+            fileStates = oldFileStates;
+            numStates = oldNumStates;
+            Files.deleteIfExists(temp);
+            if (!channel.isOpen())
+                channel = FileChannel.open(path, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            throw e;
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        size = channel.size();
+    }
+
+    /**
+     * Forgets the numbers of the states numbered from on, so that they are
+     * written out again when they are next used.
+     */
+    private void forgetStates(int from) {
+        for (int i = from; i < numStates; i++) {
+            if (fileStates[i] < PermutationTable.MAX_INTERNED_STATES)
+                stateNumbers[fileStates[i]] = 0;
+            else
+                largeStateNumbers.remove(fileStates[i]);
+        }
+
+        numStates = from;
+    }
+
+    /**
+     * @return the state's number in the file, which it is given if it has
+     * none
+     */
+    private int stateNumber(int state) {
+        if (state >= PermutationTable.MAX_INTERNED_STATES) {
+            Integer number = largeStateNumbers.get(state);
+            if (number == null) {
+                number = addFileState(state);
+                largeStateNumbers.put(state, number);
+            }
+            return number;
+        }
+
+        if (state >= stateNumbers.length)
+            stateNumbers = Arrays.copyOf(stateNumbers,
+                    Math.max(2 * stateNumbers.length, state + 1));
+
+        if (stateNumbers[state] == 0)
+            stateNumbers[state] = addFileState(state) + 1;
+
+        return stateNumbers[state] - 1;
+    }
+
+    /**
+     * Gives a state the next number in the file.
+     *
+     * @return the number
+     */
+    private int addFileState(int state) {
+        if (numStates == fileStates.length)
+            fileStates = Arrays.copyOf(fileStates, 2 * numStates);
+
+        fileStates[numStates] = state;
+        return numStates++;
+    }
+
+    /**
+     * @return the ID of the next cube at or after from that a record should
+     * hold, or RubiksTrie.NO_CUBE if there are no more
+     */
+    private int nextCube(boolean everyCube, int from) {
+        int cube = everyCube ? from : storage.nextChanged(from);
+        return cube < trie.getNumCubes() ? cube : RubiksTrie.NO_CUBE;
+    }
+
+    private void writeRecord(FileChannel channel, boolean everyCube, int pc,
+                             int currCube, long inputChars)
+            throws IOException {
+        // number the new states first, since they come before the cubes
+        int firstNewState = numStates;
+        int numWritten = 0;
+        for (int cube = nextCube(everyCube, 0); cube != RubiksTrie.NO_CUBE;
+             cube = nextCube(everyCube, cube + 1)) {
+            stateNumber(storage.getState(cube));
+            numWritten++;
+        }
+
+        crc.reset();
+        buffer.clear();
+        buffer.putLong(POSITION_SIZE + 4L + (long) PermutationTable
+                .NUM_STICKERS * (numStates - firstNewState) + 4L
+                + (long) CUBE_SIZE * numWritten);
+
+        buffer.putInt(pc).putInt(currCube).put(trie.getGlobalByte())
+                .putInt(trie.getNumCubes()).putLong(inputChars);
+
+        buffer.putInt(numStates - firstNewState);
+        for (int i = firstNewState; i < numStates; i++) {
+            makeRoom(channel, PermutationTable.NUM_STICKERS);
+            buffer.put(PermutationTable.slotsOf(fileStates[i]));
+        }
+
+        makeRoom(channel, 4);
+        buffer.putInt(numWritten);
+        for (int cube = nextCube(everyCube, 0); cube != RubiksTrie.NO_CUBE;
+             cube = nextCube(everyCube, cube + 1)) {
+            makeRoom(channel, CUBE_SIZE);
+            buffer.putInt(cube).putInt(storage.getParent(cube))
+                    .putInt(stateNumber(storage.getState(cube)));
+            for (int slot = 0; slot < RubiksTrie.STICKERS; slot++)
+                buffer.put(storage.getPayload(cube, slot));
+            for (int slot = 0; slot < RubiksTrie.STICKERS; slot++)
+                buffer.putInt(storage.getChild(cube, slot));
+        }
+
+        drain(channel);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private void makeRoom(FileChannel channel, int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            drain(channel);
+    }
+
+    /**
+     * Writes out and checksums everything in the buffer.
+     */
+    private void drain(FileChannel channel) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /***** Resuming *****/
+
+    /**
+     * Reads the file with checksums, keeping track of how far it has read.
+     */
+    private static final class Reader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 crc;
+        private int checksummed; // buffer position crc has been updated to
+        private long position;
+
+        Reader(FileChannel channel, long position) throws IOException {
+            this.channel = channel;
+            this.position = position;
+            channel.position(position);
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.flip();
+            crc = new CRC32();
+        }
+
+        long position() {
+            return position;
+        }
+
+        private void updateChecksum() {
+            ByteBuffer read = buffer.duplicate();
+            read.position(checksummed).limit(buffer.position());
+            crc.update(read);
+            checksummed = buffer.position();
+        }
+
+        /**
+         * Starts checksumming from the current position.
+         */
+        void resetChecksum() {
+            checksummed = buffer.position();
+            crc.reset();
+        }
+
+        /**
+         * @return the checksum of what was read since resetChecksum
+         */
+        int checksum() {
+            updateChecksum();
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Makes sure there are at least bytes bytes in the buffer.
+         *
+         * @throws EOFException if the file ends before then
+         */
+        private void need(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes)
+                return;
+
+            updateChecksum();
+            buffer.compact();
+            while (buffer.position() < bytes)
+                if (channel.read(buffer) < 0)
+                    throw new EOFException();
+
+            buffer.flip();
+            checksummed = 0;
+        }
+
+        byte get() throws IOException {
+            need(1);
+            position++;
+            return buffer.get();
+        }
+
+        int getInt() throws IOException {
+            need(4);
+            position += 4;
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            need(8);
+            position += 8;
+            return buffer.getLong();
+        }
+
+        void get(byte[] bytes) throws IOException {
+            need(bytes.length);
+            position += bytes.length;
+            buffer.get(bytes);
+        }
+
+        void skip(long bytes) throws IOException {
+            while (bytes > 0) {
+                need(1);
+                int skipped = (int) Math.min(bytes, buffer.remaining());
+                buffer.position(buffer.position() + skipped);
+                position += skipped;
+                bytes -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Reads the checkpoints in the file back into the trie, which must not
+     * have been changed since it was created, and gets the file ready for
+     * more checkpoints. Anything after the last complete checkpoint is
+     * removed from the file.
+     *
+     * @return where the program was at the last checkpoint
+     * @throws IllegalArgumentException if the file is not a checkpoint file
+     *                                  of the program or is corrupt
+     * @throws IOException              if the file cannot be read
+     */
+    Position resume() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            Position position = read();
+            channel.truncate(size);
+            lastWriteNanos = System.nanoTime();
+            return position;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Position read() throws IOException {
+        Reader header = new Reader(channel, 0);
+        try {
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IllegalArgumentException(path
+                        + " is not a checkpoint file");
+            if (header.getLong() != fingerprint(program))
+                throw new IllegalArgumentException(path
+                        + " is a checkpoint of a different program");
+        } catch (EOFException e) {
+            throw new IllegalArgumentException(path
+                    + " is not a checkpoint file");
+        }
+
+        // find where the complete records end before reading any of them
+        size = HEADER_SIZE;
+        long fileSize = channel.size();
+        Reader scan = new Reader(channel, HEADER_SIZE);
+        try {
+            while (true) {
+                scan.resetChecksum();
+                long length = scan.getLong();
+                if (length < 0 || length > fileSize - scan.position())
+                    break;
+
+                scan.skip(length);
+                int checksum = scan.checksum();
+                if (scan.getInt() != checksum)
+                    break;
+
+                size = scan.position();
+            }
+        } catch (EOFException e) {
+            // a record that was not finished
+        }
+
+        Position position = new Position(0, 0, 0);
+        Reader records = new Reader(channel, HEADER_SIZE);
+        while (records.position() < size)
+            position = readRecord(records);
+
+        if (size > HEADER_SIZE)
+            storage.clearChanged();
+
+        channel.position(size);
+        return position;
+    }
+
+    private Position readRecord(Reader record) throws IOException {
+        record.getLong(); // length, which the scan checked
+
+        int pc = record.getInt();
+        int currCube = record.getInt();
+        byte global = record.get();
+        int numCubes = record.getInt();
+        long inputChars = record.getLong();
+        if (pc < 0 || pc > program.length() || numCubes <= 0 || currCube < 0
+                || currCube >= numCubes || inputChars < 0)
+            throw corrupt("bad position");
+
+        int numNewStates = record.getInt();
+        if (numNewStates < 0)
+            throw corrupt("bad number of states");
+
+        byte[] slots = new byte[PermutationTable.NUM_STICKERS];
+        for (int i = 0; i < numNewStates; i++) {
+            record.get(slots);
+            if (!PermutationTable.isPermutation(slots))
+                throw corrupt("state " + numStates + " is not a permutation");
+            stateNumber(PermutationTable.stateWithSlots(slots));
+        }
+
+        int numWritten = record.getInt();
+        for (int i = 0; i < numWritten; i++) {
+            int cube = record.getInt();
+            int parent = record.getInt();
+            int state = record.getInt();
+
+            if (cube == storage.getNumCubes() && cube < numCubes
+                    && parent >= 0 && parent < cube)
+                storage.createCube(parent);
+            else if (cube < 0 || cube >= storage.getNumCubes()
+                    || parent != storage.getParent(cube))
+                throw corrupt("bad cube " + cube);
+
+            if (state < 0 || state >= numStates)
+                throw corrupt("bad state for cube " + cube);
+            storage.setState(cube, fileStates[state]);
+
+            for (int slot = 0; slot < RubiksTrie.STICKERS; slot++)
+                storage.setPayload(cube, slot, record.get());
+
+            for (int slot = 0; slot < RubiksTrie.STICKERS; slot++) {
+                int child = record.getInt();
+                if (child != RubiksTrie.NO_CUBE
+                        && (child <= cube || child >= numCubes))
+                    throw corrupt("bad child of cube " + cube);
+                if (child != storage.getChild(cube, slot))
+                    storage.setChild(cube, slot, child);
+            }
+        }
+
+        record.getInt(); // checksum, which the scan checked
+
+        if (storage.getNumCubes() != numCubes)
+            throw corrupt("cubes are missing");
+
+        trie.setGlobalByte(global);
+        return new Position(pc, currCube, inputChars);
+    }
+
+    private IllegalArgumentException corrupt(String problem) {
+        return new IllegalArgumentException(path + " is corrupt: " + problem);
+    }
+
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+}
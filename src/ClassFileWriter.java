@@ -0,0 +1,456 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a class file by hand, supporting only what BytecodeCompiler needs:
+ * a final class extending Object with static fields and static methods.
+ * <p>
+ * Classes are written at version 49 (Java 5), which the JVM verifies by
+ * inferring the types at branch targets itself, so no StackMapTable has to be
+ * computed.
+ */
+class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_CONSTANTS = 65535;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // the opcodes BytecodeCompiler uses
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int LSHL = 0x79;
+    static final int LUSHR = 0x7d;
+    static final int IAND = 0x7e;
+    static final int LOR = 0x81;
+    static final int I2L = 0x85;
+    static final int L2I = 0x88;
+    static final int I2B = 0x91;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int GOTO = 0xa7;
+    static final int LRETURN = 0xad;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb;
+    static final int ATHROW = 0xbf;
+    static final int INSTANCEOF = 0xc1;
+
+    private final String className;
+
+    private final ByteArrayOutputStream constantBytes =
+            new ByteArrayOutputStream();
+    private final DataOutputStream constants =
+            new DataOutputStream(constantBytes);
+    private final Map<String, Integer> constantIndices = new HashMap<>();
+    private int numConstants = 1; // index 0 is unused
+
+    private final ByteArrayOutputStream memberBytes =
+            new ByteArrayOutputStream();
+    private final DataOutputStream members = new DataOutputStream(memberBytes);
+    private int numFields = 0;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * @param className internal name of the class to write, such as
+     *                  CompiledRtlProgram
+     */
+    ClassFileWriter(String className) {
+        this.className = className;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    /***** Constant pool *****/
+
+    /**
+     * Adds a constant to the pool unless an equal one is there already.
+     *
+     * @param key   identifies the constant
+     * @param tag   the constant's tag
+     * @param first its first u2 operand, or -1 if it has none
+     * @param other its second u2 operand, or -1 if it has none
+     * @return the constant's index
+     */
+    private int constant(String key, int tag, int first, int other) {
+        Integer index = constantIndices.get(key);
+        if (index != null)
+            return index;
+
+        if (numConstants == MAX_CONSTANTS)
+            throw new UnsupportedOperationException("Too many constants");
+
+        try {
+            constants.writeByte(tag);
+            if (first != -1)
+                constants.writeShort(first);
+            if (other != -1)
+                constants.writeShort(other);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        constantIndices.put(key, numConstants);
+        return numConstants++;
+    }
+
+    private int utf8(String s) {
+        Integer index = constantIndices.get("U" + s);
+        if (index != null)
+            return index;
+
+        if (numConstants == MAX_CONSTANTS)
+            throw new UnsupportedOperationException("Too many constants");
+
+        try {
+            constants.writeByte(CONSTANT_UTF8);
+            constants.writeUTF(s);
+        } catch (UTFDataFormatException e) {
+            throw new UnsupportedOperationException(
+                    "String constant too long");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        constantIndices.put("U" + s, numConstants);
+        return numConstants++;
+    }
+
+    private int classConstant(String internalName) {
+        return constant("C" + internalName, CONSTANT_CLASS,
+                utf8(internalName), -1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + " " + descriptor, CONSTANT_NAME_AND_TYPE,
+                utf8(name), utf8(descriptor));
+    }
+
+    private int memberRef(int tag, String owner, String name,
+                          String descriptor) {
+        return constant(tag + owner + "." + name + " " + descriptor, tag,
+                classConstant(owner), nameAndType(name, descriptor));
+    }
+
+    private int stringConstant(String s) {
+        return constant("S" + s, CONSTANT_STRING, utf8(s), -1);
+    }
+
+    private int intConstant(int value) {
+        String key = "I" + value;
+        Integer index = constantIndices.get(key);
+        if (index != null)
+            return index;
+
+        if (numConstants == MAX_CONSTANTS)
+            throw new UnsupportedOperationException("Too many constants");
+
+        try {
+            constants.writeByte(CONSTANT_INTEGER);
+            constants.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        constantIndices.put(key, numConstants);
+        return numConstants++;
+    }
+
+    /***** Members *****/
+
+    void addField(int access, String name, String descriptor) {
+        try {
+            members.writeShort(access);
+            members.writeShort(utf8(name));
+            members.writeShort(utf8(descriptor));
+            members.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        numFields++;
+    }
+
+    /**
+     * @return an empty method body to write and then pass to addMethod
+     */
+    Code newCode(int maxStack, int maxLocals) {
+        return new Code(maxStack, maxLocals);
+    }
+
+    /**
+     * Adds a method whose body has been fully written.
+     */
+    void addMethod(int access, String name, String descriptor, Code code) {
+        code.finish();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream method = new DataOutputStream(bytes);
+        try {
+            method.writeShort(access);
+            method.writeShort(utf8(name));
+            method.writeShort(utf8(descriptor));
+            method.writeShort(1); // attributes
+
+            method.writeShort(utf8("Code"));
+            method.writeInt(12 + code.length + 8 * code.handlers.size());
+            method.writeShort(code.maxStack);
+            method.writeShort(code.maxLocals);
+            method.writeInt(code.length);
+            method.write(code.bytes, 0, code.length);
+            method.writeShort(code.handlers.size());
+            for (int[] handler : code.handlers)
+                for (int field : handler)
+                    method.writeShort(field);
+            method.writeShort(0); // attributes of Code
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        methods.add(bytes.toByteArray());
+    }
+
+    /**
+     * @return the finished class file
+     */
+    byte[] toByteArray() {
+        int thisClass = classConstant(className);
+        int superClass = classConstant("java/lang/Object");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // minor version
+            out.writeShort(VERSION);
+            out.writeShort(numConstants);
+            constantBytes.writeTo(out);
+
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+
+            out.writeShort(numFields);
+            memberBytes.writeTo(out);
+
+            out.writeShort(methods.size());
+            for (byte[] method : methods)
+                out.write(method);
+
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /***** Method bodies *****/
+
+    /**
+     * A position in a method body that branches can jump to before it is
+     * known.
+     */
+    static final class Label {
+        private int position = -1;
+
+        // [position of the branch instruction, position of its offset]
+        private final List<int[]> pending = new ArrayList<>();
+    }
+
+    /**
+     * The bytecode of one method.
+     */
+    final class Code {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private final int maxStack;
+        private final int maxLocals;
+
+        // [start, end, handler, catch type], as in the exception table
+        private final List<int[]> handlers = new ArrayList<>();
+
+        /**
+         * @param maxStack  most values the operand stack ever holds
+         * @param maxLocals number of local variable slots, parameters
+         *                  included
+         */
+        private Code(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        int length() {
+            return length;
+        }
+
+        private void u1(int b) {
+            if (length == bytes.length) {
+                byte[] grown = new byte[2 * bytes.length];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+
+            bytes[length++] = (byte) b;
+        }
+
+        private void u2(int s) {
+            u1(s >>> 8);
+            u1(s);
+        }
+
+        private void patch(int position, int offset) {
+            if (offset != (short) offset)
+                throw new UnsupportedOperationException("Branch too far");
+
+            bytes[position] = (byte) (offset >>> 8);
+            bytes[position + 1] = (byte) offset;
+        }
+
+        /**
+         * An instruction with no operands.
+         */
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        /**
+         * iload, istore, aload or astore of a local variable slot.
+         */
+        void local(int opcode, int slot) {
+            u1(opcode);
+            u1(slot);
+        }
+
+        /**
+         * Pushes an int constant.
+         */
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value == (short) value) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(intConstant(value));
+            }
+        }
+
+        /**
+         * Pushes a Class constant.
+         */
+        void pushClass(String internalName) {
+            u1(LDC_W);
+            u2(classConstant(internalName));
+        }
+
+        /**
+         * Pushes a String constant, or null.
+         */
+        void push(String s) {
+            if (s == null) {
+                u1(ACONST_NULL);
+            } else {
+                u1(LDC_W);
+                u2(stringConstant(s));
+            }
+        }
+
+        void invoke(int opcode, String owner, String name,
+                    String descriptor) {
+            u1(opcode);
+            u2(memberRef(CONSTANT_METHODREF, owner, name, descriptor));
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            u1(opcode);
+            u2(memberRef(CONSTANT_FIELDREF, owner, name, descriptor));
+        }
+
+        /**
+         * new, instanceof and the like.
+         */
+        void type(int opcode, String internalName) {
+            u1(opcode);
+            u2(classConstant(internalName));
+        }
+
+        void branch(int opcode, Label target) {
+            int position = length;
+            u1(opcode);
+            if (target.position != -1) {
+                u2(0);
+                patch(position + 1, target.position - position);
+            } else {
+                target.pending.add(new int[]{position, length});
+                u2(0);
+            }
+        }
+
+        void bind(Label label) {
+            label.position = length;
+            for (int[] branch : label.pending)
+                patch(branch[1], length - branch[0]);
+            label.pending.clear();
+        }
+
+        /**
+         * Sends any Throwable thrown by the code from position start up to
+         * position end to handler, which must be bound.
+         */
+        void addCatchAll(int start, int end, Label handler) {
+            handlers.add(new int[]{start, end, handler.position, 0});
+        }
+
+        private void finish() {
+            if (length > MAX_CODE_LENGTH)
+                throw new UnsupportedOperationException("Method too large");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Program that BytecodeCompiler has compiled into a JVM class, ready to be
+ * run from the start to the end on a trie. This class also holds the few
+ * helpers the compiled code calls back into.
+ */
+final class CompiledProgram {
+
+    /**
+     * Thrown out of compiled code in place of whatever it threw, so that the
+     * cube and global byte it had reached are not lost with its locals.
+     */
+    static final class Abort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int cube;
+        private final byte global;
+
+        Abort(Throwable cause, int cube, int global) {
+            super(null, cause, false, false);
+            this.cube = cube;
+            this.global = (byte) global;
+        }
+
+        /**
+         * @return ID of the current cube when the program failed
+         */
+        int getCube() {
+            return cube;
+        }
+    }
+
+    private final MethodHandle run;
+
+    /**
+     * @param run the compiled class's entry point, taking the trie, the input
+     *            and output, the current cube and the global byte and
+     *            returning what BytecodeCompiler.pack makes of the last two
+     */
+    CompiledProgram(MethodHandle run) {
+        this.run = run;
+    }
+
+    /**
+     * Runs the whole program, leaving the trie's global byte where the
+     * program left it.
+     *
+     * @param cube ID of the cube to start on
+     * @return ID of the cube the program ended on
+     * @throws Abort if the program failed, with the failure as its cause
+     */
+    int run(RubiksTrie trie, InputSource in, OutputSink out, int cube) {
+        long state;
+        try {
+            state = (long) run.invokeExact(trie, in, out, cube,
+                    (int) trie.getGlobalByte());
+        } catch (Abort abort) {
+            trie.setGlobalByte(abort.global);
+            throw abort;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+
+        trie.setGlobalByte(BytecodeCompiler.unpackGlobal(state));
+        return BytecodeCompiler.unpackCube(state);
+    }
+
+    /**
+     * Runs the whole program on a new trie with standard input and output,
+     * reporting failures the way the Interpreter does.
+     */
+    void runOnStandardStreams() {
+        OutputSink out = new OutputSink(System.out);
+        try {
+            run(new RubiksTrie(), InputSource.standardInput(), out, 0);
+        } catch (Abort abort) {
+            // errors escape, as they do from the Interpreter
+            if (abort.getCause() instanceof Error)
+                throw (Error) abort.getCause();
+
+            out.flush();
+            abort.getCause().printStackTrace();
+        } finally {
+            out.flush();
+        }
+    }
+
+    /***** Called from compiled code *****/
+
+    /**
+     * The main method of a compiled class run on its own.
+     *
+     * @param compiled the class
+     */
+    static void main(Class<?> compiled) {
+        BytecodeCompiler.load(MethodHandles.lookup(), compiled)
+                .runOnStandardStreams();
+    }
+
+    /**
+     * Recreates an error found when the program was decoded, for the
+     * instruction it was found at to throw.
+     *
+     * @param className name of the error's class
+     * @param message   the error's message
+     */
+    static RuntimeException error(String className, String message) {
+        RuntimeException error = Program.newError(className, message);
+        return error != null ? error : new RuntimeException(message);
+    }
+
+    /**
+     * @param move a permutation stored one char per position
+     * @return its PermutationTable move ID in this JVM
+     */
+    static int registerMove(String move) {
+        return PermutationTable.registerMove(
+                move.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compiles .rtl files ahead of time into JVM class files and runs them. The
+ * class files are kept in a cache directory under a name derived from a hash
+ * of the source, so running an unchanged program again skips parsing,
+ * decoding and compiling it and just loads its class.
+ * <p>
+ * The cached class files have a main method of their own, so a program can
+ * also be run without this class, with both the compiled sources and the
+ * cache directory on the class path.
+ * <p>
+ * Loading a cached class file runs its code, so the cache is only used if
+ * the directory and the class file belong to the user running the Compiler
+ * and nobody else can write to them. The default cache directory is in the
+ * user's home directory, and is created readable by its owner only.
+ */
+public class Compiler {
+
+    private static final String CLASS_NAME_PREFIX = "Rtl";
+    private static final int HASH_CHARS = 32;
+
+    private static final String USAGE =
+            "Usage: java Compiler [--cache=directory] [--compile-only] "
+            + "rtlFilePath\n"
+            + "\t--cache: keep compiled programs in directory (by default "
+            + ".cache/rubiktreelang\n\t\tin the user's home directory), "
+            + "which must be the user's own\n"
+            + "\t--compile-only: compile the program into the cache and "
+            + "print the path of\n\t\tits class file instead of running it";
+
+    private final Path cacheDirectory;
+
+    /**
+     * @param cacheDirectory where to keep compiled programs; it is created if
+     *                       it does not exist
+     */
+    Compiler(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * @param source the contents of a .rtl file
+     * @return the name of the class the program compiles to, which changes
+     * with the source, with the charset it is decoded with and with the code
+     * BytecodeCompiler generates
+     */
+    static String className(byte[] source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(BytecodeCompiler.VERSION
+                .getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) 0);
+        digest.update(Charset.defaultCharset().name()
+                .getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) 0);
+        byte[] hash = digest.digest(source);
+
+        StringBuilder name = new StringBuilder(CLASS_NAME_PREFIX);
+        for (int i = 0; i < HASH_CHARS / 2; i++)
+            name.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(hash[i] & 0xf, 16));
+
+        return name.toString();
+    }
+
+    /**
+     * @return where the class file of the program is cached
+     */
+    Path classFilePath(byte[] source) {
+        return cacheDirectory.resolve(className(source) + ".class");
+    }
+
+    /**
+     * Loads the compiled program from the cache, compiling and caching it if
+     * it is not there or its cached class file is unusable. Failing to write
+     * to the cache, or finding that it is not private, does not stop the
+     * program from being compiled.
+     *
+     * @param source the contents of a .rtl file
+     * @return the compiled program
+     * @throws IllegalArgumentException      if the program's brackets do not
+     *                                       match
+     * @throws UnsupportedOperationException if the program is too large for
+     *                                       a class file
+     */
+    CompiledProgram load(byte[] source) {
+        Path classFile = classFilePath(source);
+
+        if (isPrivate(cacheDirectory, true) && isPrivate(classFile, false)) {
+            try {
+                return BytecodeCompiler.load(Files.readAllBytes(classFile));
+            } catch (IOException | LinkageError e) {
+                // compile it again below
+            }
+        }
+
+        byte[] bytes = compile(source);
+        save(classFile, bytes);
+        return BytecodeCompiler.load(bytes);
+    }
+
+    /**
+     * @param source the contents of a .rtl file
+     * @return the class file of the program
+     * @throws IllegalArgumentException      if the program's brackets do not
+     *                                       match
+     * @throws UnsupportedOperationException if the program is too large for
+     *                                       a class file
+     */
+    static byte[] compile(byte[] source) {
+        return BytecodeCompiler.toClassFile(decode(source), className(source),
+                true);
+    }
+
+    /**
+     * @param source the contents of a .rtl file
+     * @return the decoded program
+     * @throws IllegalArgumentException if the program's brackets do not match
+     */
+    private static Program decode(byte[] source) {
+        try {
+            return Program.decode(new Lexer(source, Charset.defaultCharset()));
+        } catch (IOException e) {
+            // there is no file to read
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a class file to the cache. It is written to a temporary file
+     * first and then moved into place, so that another run never sees it
+     * half written.
+     *
+     * @return whether it was written
+     */
+    private boolean save(Path classFile, byte[] bytes) {
+        Path temp = null;
+        try {
+            createPrivateDirectories(cacheDirectory);
+            if (!isPrivate(cacheDirectory, true))
+                return false;
+
+            temp = Files.createTempFile(cacheDirectory,
+                    classFile.getFileName().toString(), ".tmp");
+            Files.write(temp, bytes);
+            Files.move(temp, classFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Creates a directory and any missing parents, readable and writable by
+     * their owner only if the file system has POSIX permissions.
+     */
+    private static void createPrivateDirectories(Path directory)
+            throws IOException {
+        if (Files.getFileStore(existingAncestor(directory))
+                .supportsFileAttributeView("posix")) {
+            FileAttribute<?> ownerOnly = PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------"));
+            Files.createDirectories(directory, ownerOnly);
+        } else {
+            Files.createDirectories(directory);
+        }
+    }
+
+    private static Path existingAncestor(Path path) {
+        Path ancestor = path.toAbsolutePath();
+        while (!Files.exists(ancestor) && ancestor.getParent() != null)
+            ancestor = ancestor.getParent();
+
+        return ancestor;
+    }
+
+    /**
+     * @param directory whether path should be a directory rather than a
+     *                  regular file
+     * @return whether path is a directory or regular file (not a link to
+     * one) that belongs to the user running the Compiler and, if the file
+     * system has POSIX permissions, that nobody else can write to
+     */
+    private static boolean isPrivate(Path path, boolean directory) {
+        try {
+            if (directory ? !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+                    : !Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+                return false;
+
+            UserPrincipal user = path.getFileSystem()
+                    .getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user))
+                return false;
+
+            if (Files.getFileStore(path).supportsFileAttributeView("posix")) {
+                PosixFileAttributes attributes = Files.readAttributes(path,
+                        PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return !attributes.permissions().contains(
+                        PosixFilePermission.GROUP_WRITE)
+                        && !attributes.permissions().contains(
+                        PosixFilePermission.OTHERS_WRITE);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        String codePath = null;
+        Path cacheDirectory = Paths.get(System.getProperty("user.home"),
+                ".cache", "rubiktreelang");
+        boolean compileOnly = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--cache="))
+                cacheDirectory = Paths.get(arg.substring("--cache=".length()));
+            else if (arg.equals("--compile-only"))
+                compileOnly = true;
+            else if (codePath == null && !arg.startsWith("--"))
+                codePath = arg;
+            else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        if (codePath == null) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        byte[] source;
+        try {
+            source = Files.readAllBytes(Paths.get(codePath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        Compiler compiler = new Compiler(cacheDirectory);
+
+        if (compileOnly) {
+            Path classFile = compiler.classFilePath(source);
+            try {
+                if (!compiler.save(classFile, compile(source))) {
+                    System.out.println("Could not write " + classFile
+                            + " (the cache directory must be the user's own "
+                            + "and not writable by anyone else)");
+                    return;
+                }
+            } catch (IllegalArgumentException
+                     | UnsupportedOperationException e) {
+                System.out.println(e.getMessage());
+                return;
+            }
+
+            System.out.println(classFile);
+            return;
+        }
+
+        CompiledProgram compiled;
+        try {
+            compiled = compiler.load(source);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        } catch (UnsupportedOperationException e) {
+            // too large to compile, so interpret it like the Interpreter does
+            new Interpreter(decode(source), new RubiksTrie(),
+                    InputSource.standardInput(), new OutputSink(System.out))
+                    .processRemainingCommands();
+            return;
+        }
+
+        compiled.runOnStandardStreams();
+    }
+}
@@ -1,38 +1,61 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
 
+/**
+ * Converts BF programs into RubikTreeLang. The BF tape is laid out 24 cells
+ * to a cube, one cell per sticker, with each cube the child of the sticker of
+ * its previous cube's first cell. The read-write head is turned from one cell
+ * to the next with the moves in stepRight, and the global byte always holds
+ * the position of the current cell in its cube (0 to 23) between BF commands.
+ * <p>
+ * By default the program is read through a BFReader, and the counted and
+ * recognized operations it reads are translated as a whole. Otherwise every
+ * BF char is translated on its own.
+ * <p>
+ * The BF code is read and the .rtl code written a buffer at a time, so
+ * converting takes the same amount of memory however large either is. The
+ * .rtl code can also be decoded into a Program as it is generated, so that a
+ * BF program can be run without the .rtl code being written anywhere.
+ */
 public class Converter {
-    private StringReader bf;
+    private static final int CELLS_PER_CUBE = 24;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
 
-    public Converter(String inputPath) {
-        String bfStr;
-
-        try {
-            bfStr = readFile(inputPath);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
+    // Turning the cube with x2 brings a sticker other than the one with the
+    // next cube under it under the read-write head, whatever the position of
+    // the current cell, so the child cube of that sticker is free to hold
+    // the global byte for a moment.
+    private static final String ENTER_SCRATCH = "x2 v";
+    private static final String EXIT_SCRATCH = "^ x2";
 
-        bf = new StringReader(decomment(bfStr));
-    }
+    private final String inputPath;
+    private boolean optimize;
+    private Writer rtl; // the output of translate, if written as text
+    private Program.Decoder decoder; // the output of translate otherwise
 
-    private static String readFile(String path)
-            throws IOException {
-        byte[] encoded = Files.readAllBytes(Paths.get(path));
-        return new String(encoded, StandardCharsets.US_ASCII);
+    private Converter() {
+        this(null);
     }
 
-    private static String decomment(String commentedBF) {
-        return commentedBF.replaceAll("[^<>+\\-.,\\[\\]]+", "");
+    public Converter(String inputPath) {
+        this.inputPath = inputPath;
+        optimize = true;
     }
 
     private static Map<Character, String> createCommandMap() {
@@ -124,63 +147,357 @@ public class Converter {
     }
 
     /**
-     * Reads one char from the bf StringReader if the end hasn't been reached.
+     * Translates BF code into .rtl code, written to rtl on a single line
+     * without the final new line or else fed to decoder.
      *
-     * @return read char or -1 if at the end of the stream
+     * @param bf where to read the BF code from
      */
-    private int readChar() {
-        try {
-            return bf.read();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return -2;
+    private void translate(ReadableByteChannel bf) throws IOException {
+        BFReader reader = new BFReader(bf);
+
+        if (optimize) {
+            for (BFReader.Op op = reader.next(); op != null;
+                 op = reader.next())
+                translate(op);
+            flushMoves();
+        } else {
+            Map<Character, String> commandMap = createCommandMap();
+            for (int c = reader.nextCommand(); c != -1;
+                 c = reader.nextCommand()) {
+                String code = commandMap.get((char) c);
+                if (decoder != null) {
+                    for (String token : code.split(" "))
+                        decoder.add(token);
+                } else {
+                    rtl.write(code);
+                    rtl.write(' ');
+                }
+            }
         }
     }
 
     /**
-     * Converts the BF file read into the scanner into the .rtl format and
-     * saves the newly created file.
+     * Converts BF code to .rtl code without going through any files.
      *
-     * @param outputPath - where to save the .rtl file
+     * @param bfCode   BF code, which may contain comments
+     * @param optimize whether to translate it through a BFReader
+     * @return the .rtl code, as convert would have written it minus the
+     * final new line
      */
-    private void convert(String outputPath) {
-        Path outfile;
+    static String convertCode(String bfCode, boolean optimize) {
+        Converter converter = new Converter();
+        converter.optimize = optimize;
+
+        StringWriter out = new StringWriter();
+        converter.rtl = out;
         try {
-            outfile = Files.createFile(Paths.get(outputPath));
+            converter.translate(Channels.newChannel(new ByteArrayInputStream(
+                    bfCode.getBytes(StandardCharsets.US_ASCII))));
         } catch (IOException e) {
-            e.printStackTrace();
-            return;
+            throw new UncheckedIOException(e); // cannot happen in memory
+        }
+        return out.toString();
+    }
+
+    /**
+     * Converts BF code straight into the decoded Program that running its
+     * .rtl code would decode, without the .rtl code ever existing as text.
+     *
+     * @param bf       where to read the BF code from
+     * @param optimize whether to translate it through a BFReader
+     * @throws IllegalArgumentException if the BF code's brackets are
+     *                                  unbalanced
+     */
+    static Program convertToProgram(ReadableByteChannel bf, boolean optimize)
+            throws IOException, IllegalArgumentException {
+        Converter converter = new Converter();
+        converter.optimize = optimize;
+        converter.decoder = new Program.Decoder();
+        converter.translate(bf);
+        return converter.decoder.finish();
+    }
+
+    /**
+     * Like convertCode(bfCode, true).
+     */
+    static String convertCode(String bfCode) {
+        return convertCode(bfCode, true);
+    }
+
+    /***** Translating BFReader operations *****/
+
+    private void translate(BFReader.Op op) throws IOException {
+        switch (op.kind) {
+            case ADD:
+                // the addition needs the global byte, so the position is
+                // kept in a scratch cube meanwhile
+                emit(ENTER_SCRATCH + " gtp " + EXIT_SCRATCH + " gsetd "
+                        + op.amount + " + gtp " + ENTER_SCRATCH + " ptg "
+                        + EXIT_SCRATCH);
+                break;
+            case SET:
+                emit("setd " + op.amount);
+                break;
+            case MOVE:
+                dispatch(position -> path(position, op.amount),
+                        position -> position + op.amount);
+                break;
+            case INPUT:
+                emit("inputc");
+                break;
+            case OUTPUT:
+                emit("outputc");
+                break;
+            case LOOP_START:
+                emit("<");
+                break;
+            case LOOP_END:
+                emit(">");
+                break;
+            case TRANSFER:
+                emit("<");
+                dispatch(position -> transfer(position, op),
+                        position -> position);
+                emit(">");
+                break;
+            case SCAN:
+                emit("<");
+                if (op.amount > 0)
+                    scanRight();
+                else
+                    scanLeft();
+                emit(">");
+                break;
         }
+    }
 
-        StringBuilder line = new StringBuilder();
-        Map<Character, String> commandMap = createCommandMap();
+    /**
+     * Emits one block per position of the current cell in its cube, of which
+     * only the block for the actual position runs: the global byte holds the
+     * position, and each block is entered only once it has been decremented
+     * down to zero. The block then sets the global byte so that the
+     * decrements after it leave it holding the position the block ends at.
+     *
+     * @param body   the code of the block for a position
+     * @param target the position the code for a position ends at, which may
+     *               be in another cube
+     */
+    private void dispatch(IntFunction<String> body, IntUnaryOperator target)
+            throws IOException {
+        for (int position = 0; position < CELLS_PER_CUBE; position++) {
+            int end = Math.floorMod(target.applyAsInt(position),
+                    CELLS_PER_CUBE);
 
-        int c;
-        for (c = readChar(); c != -1; c = readChar()) {
-            if (c == -2)
-                return;
+            emit("[");
+            emit(body.apply(position));
+            emit("gsetd " + (end + CELLS_PER_CUBE - position) + " ] g--");
+        }
+    }
 
-            line.append(commandMap.get((char) c));
-            line.append(" ");
+    /**
+     * @return the moves from the cell at position in its cube to the cell
+     * distance cells to the right of it (or to the left if negative)
+     */
+    private static String path(int position, int distance) {
+        StringBuilder path = new StringBuilder();
+
+        for (; distance > 0; distance--) {
+            path.append(stepRight(position)).append(' ');
+            position = (position + 1) % CELLS_PER_CUBE;
+        }
+        for (; distance < 0; distance++) {
+            path.append(stepLeft(position)).append(' ');
+            position = (position + CELLS_PER_CUBE - 1) % CELLS_PER_CUBE;
         }
 
-        List<String> lines = Collections.singletonList(line.toString());
-        try {
-            Files.write(outfile, lines, StandardCharsets.US_ASCII);
+        return path.toString();
+    }
+
+    /**
+     * @return the moves from the cell at position in its cube to the next
+     * cell, which for the last cell is the first cell of the next cube
+     */
+    private static String stepRight(int position) {
+        if (position == CELLS_PER_CUBE - 1)
+            return "F y v";
+        if (position % 4 != 3)
+            return "F";
+        return position % 8 == 3 ? "F x" : "F y";
+    }
+
+    /**
+     * @return the moves from the cell at position in its cube to the previous
+     * cell, which for the first cell is the last cell of the previous cube
+     */
+    private static String stepLeft(int position) {
+        if (position == 0)
+            return "^ y' F'";
+        if (position % 4 != 0)
+            return "F'";
+        return position % 8 == 4 ? "x' F'" : "y' F'";
+    }
+
+    /**
+     * The block of a TRANSFER for the current cell at position: adds factor
+     * times the current cell to each target, then clears the current cell.
+     */
+    private static String transfer(int position, BFReader.Op op) {
+        StringBuilder code = new StringBuilder();
+
+        for (int i = 0; i < op.offsets.length; i++) {
+            int offset = op.offsets[i];
+            code.append(op.factors[i] == 1 ? "ptg "
+                    : "gsetd " + op.factors[i] + " * ");
+            code.append(path(position, offset)).append("+ gtp ");
+            code.append(path(Math.floorMod(position + offset, CELLS_PER_CUBE),
+                    -offset));
+        }
+
+        return code.append("setd 0 ").toString();
+    }
+
+    /**
+     * Moves right until the current cell is zero or the last cell of the
+     * cube has been passed. There is one stage per cell, entered once the
+     * global byte has been decremented down to zero like in dispatch: it
+     * either stops at its cell or moves on and lets the next stage run. The
+     * cell is copied into a scratch cube to be tested, since only a cell
+     * that can be overwritten can end a loop that tests it.
+     */
+    private void scanRight() throws IOException {
+        for (int position = 0; position < CELLS_PER_CUBE; position++) {
+            // 24 leaves the position once decremented by the stages left;
+            // 1 lets the next stage run
+            emit("[ ptg " + ENTER_SCRATCH + " gtp gsetd " + CELLS_PER_CUBE
+                    + " < gsetd 1 " + EXIT_SCRATCH);
+            emit(stepRight(position));
+            emit(ENTER_SCRATCH + " setd 0 > " + EXIT_SCRATCH + " ] g--");
+        }
+    }
+
+    /**
+     * Like scanRight, but from the last cell to the first. The stages run in
+     * that order, so the position is first turned into 23 minus the
+     * position.
+     */
+    private void scanLeft() throws IOException {
+        emit(ENTER_SCRATCH + " gtp gsetd " + (CELLS_PER_CUBE - 1) + " - "
+                + EXIT_SCRATCH);
+
+        for (int position = CELLS_PER_CUBE - 1; position >= 0; position--) {
+            // position + 1 decrements are left, counting this stage's
+            int stop = 2 * position + 1;
+            int next = position == 0 ? CELLS_PER_CUBE : 1;
+
+            emit("[ ptg " + ENTER_SCRATCH + " gtp gsetd " + stop + " < gsetd "
+                    + next + " " + EXIT_SCRATCH);
+            emit(stepLeft(position));
+            emit(ENTER_SCRATCH + " setd 0 > " + EXIT_SCRATCH + " ] g--");
+        }
+    }
+
+    /***** Writing .rtl code *****/
+
+    // a run of turns of the same face waiting to be written as one move
+    private char pendingFace;
+    private int pendingTurns; // clockwise quarter turns, from 0 to 3
+
+    /**
+     * Appends space-separated .rtl code, merging turns of the same face in a
+     * row into one move.
+     */
+    private void emit(String code) throws IOException {
+        for (String token : code.split(" ")) {
+            if (token.isEmpty())
+                continue;
+
+            if (Program.moveIndex(token) != -1) {
+                int turns = token.length() == 1 ? 1
+                        : token.charAt(1) == '2' ? 2 : 3;
+                if (pendingTurns != 0 && token.charAt(0) != pendingFace)
+                    flushMoves();
+
+                pendingFace = token.charAt(0);
+                pendingTurns = (pendingTurns + turns) % 4;
+                continue;
+            }
+
+            flushMoves();
+            write(token);
+        }
+    }
+
+    private void write(String token) throws IOException {
+        if (decoder != null) {
+            decoder.add(token);
+        } else {
+            rtl.write(token);
+            rtl.write(' ');
+        }
+    }
+
+    private void flushMoves() throws IOException {
+        if (pendingTurns != 0)
+            write(pendingFace + (pendingTurns == 1 ? ""
+                    : pendingTurns == 2 ? "2" : "'"));
+        pendingTurns = 0;
+    }
+
+    /**
+     * Converts the BF file into the .rtl format and saves it, overwriting the
+     * file at outputPath if there is one.
+     *
+     * @param outputPath - where to save the .rtl file
+     * @return whether the file was saved
+     */
+    private boolean convert(String outputPath) {
+        try (FileChannel bf = FileChannel.open(Paths.get(inputPath))) {
+            Writer out;
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(
+                        Files.newOutputStream(Paths.get(outputPath),
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING,
+                                StandardOpenOption.WRITE),
+                        StandardCharsets.US_ASCII), OUTPUT_BUFFER_SIZE);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            try (Writer rtlFile = out) {
+                rtl = rtlFile;
+                translate(bf);
+                rtlFile.write(System.lineSeparator());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println(".rtl file write failed.");
+                return false;
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println(".rtl file write failed.");
+            e.printStackTrace(); // the BF file could not be opened
+            return false;
         }
+
+        return true;
     }
 
     public static void main(String[] args) {
+        boolean optimize = true;
+        if (args.length == 3 && args[0].equals("--unoptimized")) {
+            optimize = false;
+            args = new String[]{args[1], args[2]};
+        }
+
         if (args.length != 2) {
-            System.out.println(
-                    "Usage: java Converter bfInputPath rtlOutputPath");
+            System.out.println("Usage: java Converter [--unoptimized] "
+                    + "bfInputPath rtlOutputPath");
             return;
         }
 
         Converter converter = new Converter(args[0]);
-        converter.convert(args[1]);
+        converter.optimize = optimize;
+        if (!converter.convert(args[1]))
+            System.exit(1);
     }
 }
@@ -0,0 +1,341 @@
+import java.util.Arrays;
+
+/**
+ * A fork of an ArrayTrieStorage, which reads the cubes of the original until
+ * it changes them. The original is never changed again once it is forked.
+ * <p>
+ * A fork has the same arrays as ArrayTrieStorage (payloads and children per
+ * block, and blocks, parents and states per cube), but split into chunks of
+ * CHUNK_SIZE cubes or blocks. A chunk the fork has not written yet is null,
+ * and the original's is read instead; the first write to it copies it out of
+ * the original. Forking a fork shares its chunks in the same way: each chunk
+ * has an owner, which is the only fork that may write it in place, and any
+ * other fork that writes to it copies it first. Forking takes constant time,
+ * and a fork's first write copies its arrays of chunks, which hold one
+ * reference per CHUNK_SIZE cubes or blocks.
+ * <p>
+ * A chunk is never written once it is shared, so forks can run on different
+ * threads.
+ */
+final class ForkedTrieStorage implements TrieStorage {
+
+    private static final int STICKERS = RubiksTrie.STICKERS;
+    private static final int CHUNK_SHIFT = 5;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int ZERO_BLOCK = 0; // as in ArrayTrieStorage
+
+    private final ArrayTrieStorage original;
+    private final int originalBlockLimit; // blocks of the original
+    // the chunks of each array, indexed by cube or block ID / CHUNK_SIZE
+    private byte[][] payloads;
+    private int[][] children;
+    private int[][] blocks;
+    private int[][] parents;
+    private int[][] states;
+    // owner of each chunk of cubes (blocks, parents and states) and of each
+    // chunk of blocks (payloads and children), or null if it is still read
+    // from the original
+    private Object[] cubeOwners;
+    private Object[] blockOwners;
+    private final Object self = new Object(); // this fork as an owner
+    // whether the arrays of chunks are this fork's own, not shared
+    private boolean ownsCubeChunks;
+    private boolean ownsBlockChunks;
+    private int numCubes;
+    private int numBlocks; // including the zero block
+    // blocks of removed cubes, all zeros, for the next cubes to reuse
+    private int[] freeBlocks;
+    private int numFreeBlocks;
+
+    /**
+     * @param original storage that is not going to be changed again
+     */
+    ForkedTrieStorage(ArrayTrieStorage original) {
+        this.original = original;
+        payloads = new byte[0][];
+        children = new int[0][];
+        blocks = new int[0][];
+        parents = new int[0][];
+        states = new int[0][];
+        cubeOwners = new Object[0];
+        blockOwners = new Object[0];
+        ownsCubeChunks = true;
+        ownsBlockChunks = true;
+        numCubes = original.getNumCubes();
+        numBlocks = original.getBlockLimit();
+        originalBlockLimit = numBlocks;
+        freeBlocks = original.getFreeBlocks();
+        numFreeBlocks = freeBlocks.length;
+    }
+
+    private ForkedTrieStorage(ForkedTrieStorage storage) {
+        original = storage.original;
+        originalBlockLimit = storage.originalBlockLimit;
+        payloads = storage.payloads;
+        children = storage.children;
+        blocks = storage.blocks;
+        parents = storage.parents;
+        states = storage.states;
+        cubeOwners = storage.cubeOwners;
+        blockOwners = storage.blockOwners;
+        ownsCubeChunks = false;
+        ownsBlockChunks = false;
+        numCubes = storage.numCubes;
+        numBlocks = storage.numBlocks;
+        freeBlocks = Arrays.copyOf(storage.freeBlocks, storage.numFreeBlocks);
+        numFreeBlocks = storage.numFreeBlocks;
+    }
+
+    /**
+     * Once forked, the storage must not be changed again, but can be read
+     * and forked again.
+     *
+     * @return a copy that shares this fork's chunks until it changes them
+     */
+    public TrieStorage fork() {
+        return new ForkedTrieStorage(this);
+    }
+
+    /**
+     * @return 0, since a fork shares the blocks its original shares but does
+     * not merge blocks of its own
+     */
+    public long compact() {
+        return 0;
+    }
+
+    /**
+     * Makes sure this fork may write the chunk holding cube, copying it
+     * first if need be.
+     *
+     * @return index of the chunk
+     */
+    private int writableCubes(int cube) {
+        int chunk = cube >>> CHUNK_SHIFT;
+        if (chunk < cubeOwners.length && cubeOwners[chunk] == self)
+            return chunk;
+
+        if (chunk >= cubeOwners.length) {
+            int length = Math.max(chunk + 1, 2 * cubeOwners.length);
+            blocks = Arrays.copyOf(blocks, length);
+            parents = Arrays.copyOf(parents, length);
+            states = Arrays.copyOf(states, length);
+            cubeOwners = Arrays.copyOf(cubeOwners, length);
+            ownsCubeChunks = true;
+        } else if (!ownsCubeChunks) {
+            blocks = blocks.clone();
+            parents = parents.clone();
+            states = states.clone();
+            cubeOwners = cubeOwners.clone();
+            ownsCubeChunks = true;
+        }
+
+        if (cubeOwners[chunk] == null) {
+            blocks[chunk] = new int[CHUNK_SIZE];
+            parents[chunk] = new int[CHUNK_SIZE];
+            states[chunk] = new int[CHUNK_SIZE];
+            original.copyCubes(chunk << CHUNK_SHIFT, blocks[chunk],
+                    parents[chunk], states[chunk]);
+        } else {
+            blocks[chunk] = blocks[chunk].clone();
+            parents[chunk] = parents[chunk].clone();
+            states[chunk] = states[chunk].clone();
+        }
+        cubeOwners[chunk] = self;
+
+        return chunk;
+    }
+
+    /**
+     * Makes sure this fork may write the chunk holding block, copying it
+     * first if need be.
+     *
+     * @return index of the chunk
+     */
+    private int writableBlocks(int block) {
+        int chunk = block >>> CHUNK_SHIFT;
+        if (chunk < blockOwners.length && blockOwners[chunk] == self)
+            return chunk;
+
+        if (chunk >= blockOwners.length) {
+            int length = Math.max(chunk + 1, 2 * blockOwners.length);
+            payloads = Arrays.copyOf(payloads, length);
+            children = Arrays.copyOf(children, length);
+            blockOwners = Arrays.copyOf(blockOwners, length);
+            ownsBlockChunks = true;
+        } else if (!ownsBlockChunks) {
+            payloads = payloads.clone();
+            children = children.clone();
+            blockOwners = blockOwners.clone();
+            ownsBlockChunks = true;
+        }
+
+        if (blockOwners[chunk] == null) {
+            payloads[chunk] = new byte[STICKERS * CHUNK_SIZE];
+            children[chunk] = new int[STICKERS * CHUNK_SIZE];
+            original.copyBlocks(chunk << CHUNK_SHIFT, payloads[chunk],
+                    children[chunk]);
+        } else {
+            payloads[chunk] = payloads[chunk].clone();
+            children[chunk] = children[chunk].clone();
+        }
+        blockOwners[chunk] = self;
+
+        return chunk;
+    }
+
+    public int createCube(int parent) {
+        if (numCubes == Integer.MAX_VALUE)
+            throw new OutOfMemoryError("Too many Rubik's Cubes");
+
+        int id = numCubes;
+        int chunk = writableCubes(id);
+        numCubes++;
+        blocks[chunk][id & CHUNK_MASK] = ZERO_BLOCK;
+        parents[chunk][id & CHUNK_MASK] = parent;
+        states[chunk][id & CHUNK_MASK] = PermutationTable.IDENTITY;
+        return id;
+    }
+
+    /**
+     * @return whether block may belong to more than one cube, so that it must
+     * not be written: the zero block and the blocks the original's cubes
+     * share since it was compacted
+     */
+    private boolean isShared(int block) {
+        return block < originalBlockLimit && original.isShared(block);
+    }
+
+    /**
+     * Gives a cube that shares its block a block of its own, a copy of the
+     * shared one, so that it can be written.
+     *
+     * @return the cube's block
+     */
+    private int unshare(int cube) {
+        int shared = getBlock(cube);
+        int block;
+        if (numFreeBlocks > 0) {
+            block = freeBlocks[--numFreeBlocks];
+        } else {
+            if (numBlocks == Integer.MAX_VALUE)
+                throw new OutOfMemoryError("Too many Rubik's Cubes");
+            block = numBlocks++;
+        }
+
+        int chunk = writableCubes(cube);
+        blocks[chunk][cube & CHUNK_MASK] = block;
+
+        if (shared != ZERO_BLOCK) {
+            chunk = writableBlocks(block);
+            int start = STICKERS * (block & CHUNK_MASK);
+            for (int slot = 0; slot < STICKERS; slot++) {
+                payloads[chunk][start + slot] = getBlockPayload(shared, slot);
+                children[chunk][start + slot] = getBlockChild(shared, slot);
+            }
+        }
+        return block;
+    }
+
+    public int getNumCubes() {
+        return numCubes;
+    }
+
+    private int getBlock(int cube) {
+        int chunk = cube >>> CHUNK_SHIFT;
+        return chunk < blocks.length && blocks[chunk] != null
+                ? blocks[chunk][cube & CHUNK_MASK] : original.getBlock(cube);
+    }
+
+    public void removeLastCube() {
+        int id = --numCubes;
+
+        int parentBlock = getBlock(getParent(id));
+        int parentChunk = writableBlocks(parentBlock);
+        int[] parentChildren = children[parentChunk];
+        int start = STICKERS * (parentBlock & CHUNK_MASK);
+        for (int i = start; i < start + STICKERS; i++)
+            if (parentChildren[i] == id)
+                parentChildren[i] = 0;
+
+        int block = getBlock(id);
+        if (isShared(block))
+            return;
+
+        int chunk = writableBlocks(block);
+        start = STICKERS * (block & CHUNK_MASK);
+        Arrays.fill(payloads[chunk], start, start + STICKERS, (byte) 0);
+        Arrays.fill(children[chunk], start, start + STICKERS, 0);
+        if (block == numBlocks - 1) {
+            numBlocks--;
+        } else {
+            if (numFreeBlocks == freeBlocks.length)
+                freeBlocks = Arrays.copyOf(freeBlocks,
+                        Math.max(16, 2 * numFreeBlocks));
+            freeBlocks[numFreeBlocks++] = block;
+        }
+    }
+
+    public int getParent(int cube) {
+        int chunk = cube >>> CHUNK_SHIFT;
+        return chunk < parents.length && parents[chunk] != null
+                ? parents[chunk][cube & CHUNK_MASK]
+                : original.getParent(cube);
+    }
+
+    public int getState(int cube) {
+        int chunk = cube >>> CHUNK_SHIFT;
+        return chunk < states.length && states[chunk] != null
+                ? states[chunk][cube & CHUNK_MASK] : original.getState(cube);
+    }
+
+    public void setState(int cube, int state) {
+        int chunk = writableCubes(cube);
+        states[chunk][cube & CHUNK_MASK] = state;
+    }
+
+    public byte getPayload(int cube, int slot) {
+        return getBlockPayload(getBlock(cube), slot);
+    }
+
+    private byte getBlockPayload(int block, int slot) {
+        int chunk = block >>> CHUNK_SHIFT;
+        return chunk < payloads.length && payloads[chunk] != null
+                ? payloads[chunk][STICKERS * (block & CHUNK_MASK) + slot]
+                : original.getBlockPayload(block, slot);
+    }
+
+    public void setPayload(int cube, int slot, byte b) {
+        int block = getBlock(cube);
+        if (isShared(block)) {
+            if (getBlockPayload(block, slot) == b)
+                return; // already b
+            block = unshare(cube);
+        }
+
+        int chunk = writableBlocks(block);
+        payloads[chunk][STICKERS * (block & CHUNK_MASK) + slot] = b;
+    }
+
+    public int getChild(int cube, int slot) {
+        int child = getBlockChild(getBlock(cube), slot);
+        return child == 0 ? RubiksTrie.NO_CUBE : child;
+    }
+
+    private int getBlockChild(int block, int slot) {
+        int chunk = block >>> CHUNK_SHIFT;
+        return chunk < children.length && children[chunk] != null
+                ? children[chunk][STICKERS * (block & CHUNK_MASK) + slot]
+                : original.getBlockChild(block, slot);
+    }
+
+    public void setChild(int cube, int slot, int child) {
+        int block = getBlock(cube);
+        if (isShared(block))
+            block = unshare(cube);
+
+        int chunk = writableBlocks(block);
+        children[chunk][STICKERS * (block & CHUNK_MASK) + slot] = child;
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the input of the input_ commands. This replaces a java.util.Scanner,
+ * which ran a regex for every number read and swapped delimiters for every
+ * character read; here the input is decoded once into a large char buffer
+ * and scanned by hand, and nothing is allocated per call.
+ * <p>
+ * The methods behave exactly like the Scanner calls they replace: bytes are
+ * decoded with the same charset and replacement of malformed input, lines end
+ * at \r\n or any of \n, \r, U+0085, U+2028 and U+2029, and a read error
+ * is treated as the end of the input.
+ */
+class InputSource {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes; // undecoded input, ready to be read
+    private final CharBuffer chars; // decoded input, ready to be read
+    private boolean channelDone;
+    private boolean endOfInput;
+    private long charsDecoded;
+
+    // whether the last find skipped part of the line without finding a number
+    private boolean skippedLine;
+
+    /**
+     * @param in      where to read the input from
+     * @param charset how to decode it into chars
+     */
+    InputSource(InputStream in, Charset charset) {
+        this(Channels.newChannel(in), ByteBuffer.allocate(BUFFER_SIZE),
+                charset);
+    }
+
+    private InputSource(ReadableByteChannel channel, ByteBuffer bytes,
+                        Charset charset) {
+        this.channel = channel;
+        this.bytes = bytes;
+        bytes.flip();
+        chars = CharBuffer.allocate(BUFFER_SIZE);
+        chars.flip();
+
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        channelDone = false;
+        endOfInput = false;
+        skippedLine = false;
+    }
+
+    /**
+     * Reads standard input straight from its file descriptor through a
+     * FileChannel into a direct buffer, skipping System.in's own buffering.
+     * Nothing else may read System.in while this is in use.
+     */
+    static InputSource standardInput() {
+        return new InputSource(
+                new FileInputStream(FileDescriptor.in).getChannel(),
+                ByteBuffer.allocateDirect(BUFFER_SIZE),
+                Charset.defaultCharset());
+    }
+
+    /**
+     * Decodes more input into chars, which must be empty.
+     *
+     * @return false if the input is at its end
+     */
+    private boolean fill() {
+        if (endOfInput)
+            return false;
+
+        chars.clear();
+        while (chars.position() == 0) {
+            if (channelDone) {
+                decoder.decode(bytes, chars, true);
+                decoder.flush(chars);
+                endOfInput = true;
+                break;
+            }
+
+            bytes.compact();
+            int read;
+            try {
+                read = channel.read(bytes);
+            } catch (IOException e) {
+                read = -1;
+            }
+            bytes.flip();
+
+            if (read < 0)
+                channelDone = true;
+            else
+                decoder.decode(bytes, chars, false);
+        }
+
+        charsDecoded += chars.position();
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    /**
+     * @return how many chars of input have been consumed
+     */
+    long getCharsConsumed() {
+        return charsDecoded - chars.remaining();
+    }
+
+    /**
+     * Consumes count chars of input, or all of it if there are fewer, as if
+     * they had been read already.
+     */
+    void skipChars(long count) {
+        while (count > 0 && (chars.hasRemaining() || fill())) {
+            int skipped = (int) Math.min(count, chars.remaining());
+            chars.position(chars.position() + skipped);
+            count -= skipped;
+        }
+    }
+
+    /**
+     * @return the next char without consuming it, or -1 at the end of input
+     */
+    private int peek() {
+        if (!chars.hasRemaining() && !fill())
+            return -1;
+
+        return chars.get(chars.position());
+    }
+
+    /**
+     * Consumes the char last returned by peek.
+     */
+    private void skip() {
+        chars.position(chars.position() + 1);
+    }
+
+    private static boolean isLineSeparator(int c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+                || c == '\u2029';
+    }
+
+    /**
+     * @return the value of c as a digit, or -1 if it is not one; only ASCII
+     * digits and letters count
+     */
+    private static int digit(int c, int radix) {
+        int value;
+        if (c >= '0' && c <= '9')
+            value = c - '0';
+        else if (c >= 'a' && c <= 'f')
+            value = c - 'a' + 10;
+        else if (c >= 'A' && c <= 'F')
+            value = c - 'A' + 10;
+        else
+            return -1;
+
+        return value < radix ? value : -1;
+    }
+
+    /**
+     * Like Scanner.findInLine: skips ahead to the first digit before the end
+     * of the line.
+     *
+     * @return whether there is one
+     */
+    private boolean skipToDigits(int radix) {
+        boolean skipped = false;
+
+        int c;
+        while ((c = peek()) != -1 && !isLineSeparator(c)) {
+            if (digit(c, radix) >= 0) {
+                skippedLine = false;
+                return true;
+            }
+
+            skip();
+            skipped = true;
+        }
+
+        skippedLine = skipped;
+        return false;
+    }
+
+    /**
+     * Consumes the first run of digits before the end of the line, keeping
+     * only the lowest 8 bits of their value. Used for binary and hexadecimal,
+     * where those are the last 8 or 2 digits.
+     *
+     * @return the lowest 8 bits, or 0 if the line has no digits
+     */
+    private byte findLowByte(int radix, int bitsPerDigit) {
+        if (!skipToDigits(radix))
+            return 0;
+
+        int value = 0;
+        int d;
+        while ((d = digit(peek(), radix)) >= 0) {
+            skip();
+            value = value << bitsPerDigit | d;
+        }
+
+        return (byte) value;
+    }
+
+    /**
+     * inputb: the last 8 digits of the first run of [01]+ on the line.
+     */
+    byte findBinary() {
+        return findLowByte(2, 1);
+    }
+
+    /**
+     * inputx: the last 2 digits of the first run of [0-9A-Fa-f]+ on the line.
+     */
+    byte findHex() {
+        return findLowByte(16, 4);
+    }
+
+    /**
+     * inputd: the first run of [0-9]+ on the line, cast to a byte.
+     *
+     * @throws NumberFormatException if the run does not fit in an int, just
+     *                               like Integer.parseInt
+     */
+    byte findDecimal() {
+        if (!skipToDigits(10))
+            return 0;
+
+        int value = 0;
+        int leadingZeroes = 0;
+        int d;
+        while ((d = digit(peek(), 10)) >= 0) {
+            skip();
+
+            if (value > (Integer.MAX_VALUE - d) / 10)
+                throw new NumberFormatException("For input string: \""
+                        + overflowingDigits(leadingZeroes, value, d) + "\"");
+
+            if (value == 0 && d == 0)
+                leadingZeroes++;
+            value = 10 * value + d;
+        }
+
+        return (byte) value;
+    }
+
+    /**
+     * Rebuilds the digits read so far of a run too big for an int, and
+     * consumes and appends the rest of the run.
+     */
+    private String overflowingDigits(int leadingZeroes, int value, int d) {
+        StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < leadingZeroes; i++)
+            digits.append('0');
+        if (value != 0)
+            digits.append(value);
+        digits.append(d);
+
+        int c;
+        while (digit(c = peek(), 10) >= 0) {
+            skip();
+            digits.append((char) c);
+        }
+
+        return digits.toString();
+    }
+
+    /**
+     * Like Scanner.nextLine, without building the line: consumes the rest of
+     * the line and its separator.
+     *
+     * @throws NoSuchElementException if the input was already at its end
+     */
+    void nextLine() {
+        boolean consumed = skippedLine;
+        skippedLine = false;
+
+        int c;
+        while ((c = peek()) != -1) {
+            skip();
+            consumed = true;
+
+            if (c == '\r') {
+                if (peek() == '\n')
+                    skip();
+                break;
+            }
+            if (isLineSeparator(c))
+                break;
+        }
+
+        if (!consumed)
+            throw new NoSuchElementException("No line found");
+    }
+
+    /**
+     * inputc: consumes the next char, whatever it is.
+     *
+     * @return the char, or -1 at the end of input
+     */
+    int read() {
+        skippedLine = false;
+
+        int c = peek();
+        if (c != -1)
+            skip();
+
+        return c;
+    }
+}
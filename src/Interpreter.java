@@ -1,428 +1,592 @@
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Scanner;
-import java.util.Stack;
 
 public class Interpreter {
 
     private RubiksTrie trie;
-    private RubiksCube currCube;
-    private String[] instructions;
-    private int pc; // program counter
-    private Stack<Integer> openBracketLocations;
-    private static Map<String, Runnable> commandMap;
-    private Scanner sc;
-
-    private static final String WHITESPACE_PATTERN = "\\p{javaWhitespace}+";
-
-    // any commands that require an argument
-    // will populate this instance variable
-    private String argument;
+    private int currCube; // ID of the current cube in trie
+    private Program program;
+    private int pc; // program counter, indexes into program
+    private InputSource in;
+    private OutputSink out;
+    private long stepsRun; // by run
+    private boolean superinstructions = true; // false to run them as [
 
     public Interpreter(Path codePath) {
-        trie = new RubiksTrie();
-        currCube = trie.getRoot();
-        instructions = parseCode(codePath);
-        pc = 0;
-        openBracketLocations = new Stack<>();
-        commandMap = createCommandMap();
-        sc = new Scanner(System.in);
+        this(codePath, new RubiksTrie(),
+                new InputSource(System.in, Charset.defaultCharset()),
+                new OutputSink(System.out));
     }
 
-    private static String[] parseCode(Path path) {
-        String fileContent;
-        try {
-            fileContent = new String(Files.readAllBytes(path));
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+    /**
+     * @param codePath path to the .rtl or .rtlc file to run
+     * @param trie     a freshly created trie to run the program on
+     * @param in       where to read the program's input from
+     * @param out      where to send the program's output
+     */
+    Interpreter(Path codePath, RubiksTrie trie, InputSource in,
+                OutputSink out) {
+        this(loadProgram(codePath), trie, in, out);
+    }
 
-        return fileContent.replaceAll("#.*", "")
-                .replaceFirst("^(\\s|\\n)+", "")
-                .split(WHITESPACE_PATTERN);
+    /**
+     * @param program the decoded program to run
+     * @param trie    a freshly created trie to run the program on
+     * @param in      where to read the program's input from
+     * @param out     where to send the program's output
+     */
+    Interpreter(Program program, RubiksTrie trie, InputSource in,
+                OutputSink out) {
+        this.trie = trie;
+        currCube = 0; // the root
+        this.program = program;
+        pc = 0;
+        this.in = in;
+        this.out = out;
     }
 
     /**
-     * Java's own Byte.parseByte doesn't handle bytes with the leading bit set
-     * to 1.
-     *
-     * @param s a String matching [01]+
-     * @return byte representation of s
+     * @param path a .rtlc file, or a .rtl file to decode
+     * @return the program in it
+     * @throws IllegalArgumentException if the brackets of a .rtl file do not
+     *                                  match or a .rtlc file is unreadable
+     * @throws UncheckedIOException     if the file cannot be read
      */
-    private static byte binaryStringToByte(String s) {
-        byte result = 0;
-        for (int i = 0; i < s.length(); i++) {
-            if (s.charAt(s.length() - i - 1) == '1')
-                result |= 1 << i;
-        }
+    static Program loadProgram(Path path) {
+        try {
+            if (RtlcFile.isRtlcFile(path))
+                return RtlcFile.read(path);
 
-        return result;
+            try (FileChannel code = FileChannel.open(path)) {
+                return Program.decode(
+                        new Lexer(code, Charset.defaultCharset()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
-     * Creates a HashMap that takes a String and returns a Runnable. To run the
-     * returned Runnable, call .run() on it. The Runnables in here alter the
-     * state of the Interpreter.
-     *
-     * @return the command map
+     * Executes the instruction at pc and advances pc. The caller must make
+     * sure pc is not past the end of the program.
      */
-    private Map<String, Runnable> createCommandMap() {
-        Map<String, Runnable> commandMap = new HashMap<>();
-
-        commandMap.put("setc", () -> {
-            pc++;
-            argument = instructions[pc];
-            currCube.getRWNode().setPayload((byte) argument.charAt(0));
-        });
-
-        commandMap.put("setd", () -> {
-            pc++;
-            argument = instructions[pc];
-            currCube.getRWNode()
-                    .setPayload((byte) Integer.parseInt(argument));
-        });
-
-        commandMap.put("setx", () -> {
-            pc++;
-            argument = instructions[pc];
-            currCube.getRWNode()
-                    .setPayload(Integer.decode("0x" + argument).byteValue());
-        });
-
-        commandMap.put("gsetc", () -> {
-            pc++;
-            argument = instructions[pc];
-            trie.setGlobalByte((byte) argument.charAt(0));
-        });
-
-        commandMap.put("gsetd", () -> {
-            pc++;
-            argument = instructions[pc];
-
-            // can cause overflow and throw an exception
-            trie.setGlobalByte((byte) Integer.parseInt(argument));
-        });
-
-        commandMap.put("gsetx", () -> {
-            pc++;
-            argument = instructions[pc];
-            trie.setGlobalByte(Integer.decode("0x" + argument).byteValue());
-        });
-
-        commandMap.put("gtp", () -> currCube.getRWNode()
-                .setPayload(trie.getGlobalByte()));
-
-        commandMap.put("ptg", () -> trie.setGlobalByte(currCube.getRWNode()
-                .getPayload()));
-
-        commandMap.put("inputb", () -> {
-            String match = sc.findInLine("[01]+");
-
-            if (match != null) {
-                byte payload = binaryStringToByte(
-                        match.substring(Math.max(match.length() - 8, 0)));
-                currCube.getRWNode().setPayload(payload);
-            } else
-                currCube.getRWNode().setPayload((byte) 0);
-
-            // consume unused new line
-            sc.nextLine();
-        });
-
-        commandMap.put("inputc", () -> {
-            sc.useDelimiter("");
-
-            if (sc.hasNext()) {
-                char input = sc.next().charAt(0);
-
-                if (input == '\n')
-                    currCube.getRWNode().setPayload((byte) 0);
+    private void execute() {
+        int operand = program.getOperand(pc);
+
+        switch (program.getOpcode(pc)) {
+            case Program.NOP:
+                break;
+            case Program.ERROR:
+                throw program.getError(operand);
+            case Program.SET:
+                trie.setPayload(currCube, (byte) operand);
+                break;
+            case Program.GSET:
+                trie.setGlobalByte((byte) operand);
+                break;
+            case Program.GTP:
+                trie.setPayload(currCube, trie.getGlobalByte());
+                break;
+            case Program.PTG:
+                trie.setGlobalByte(trie.getPayload(currCube));
+                break;
+            case Program.INPUTB:
+                out.flush(); // so any prompt shows up first
+
+                trie.setPayload(currCube, in.findBinary());
+
+                // consume unused new line
+                in.nextLine();
+                break;
+            case Program.INPUTC: {
+                out.flush();
+
+                int input = in.read();
+
+                if (input == -1 || input == '\n')
+                    trie.setPayload(currCube, (byte) 0);
                 else
-                    currCube.getRWNode().setPayload((byte) input);
-            } else
-                currCube.getRWNode().setPayload((byte) 0);
-
-            sc.useDelimiter(WHITESPACE_PATTERN);
-        });
-
-        commandMap.put("inputd", () -> {
-            String match = sc.findInLine("[0-9]+");
+                    trie.setPayload(currCube, (byte) input);
+                break;
+            }
+            case Program.INPUTD:
+                out.flush();
 
-            if (match != null) {
                 // can cause overflow and throw an exception
-                byte payload = (byte) Integer.parseInt(match);
-
-                currCube.getRWNode().setPayload(payload);
-            } else
-                currCube.getRWNode().setPayload((byte) 0);
-
-            // consume unused new line
-            sc.nextLine();
-        });
-
-        commandMap.put("inputx", () -> {
-            String match = sc.findInLine("[0-9A-Fa-f]+");
+                trie.setPayload(currCube, in.findDecimal());
+
+                // consume unused new line
+                in.nextLine();
+                break;
+            case Program.INPUTX:
+                out.flush();
+
+                trie.setPayload(currCube, in.findHex());
+
+                // consume unused new line
+                in.nextLine();
+                break;
+            case Program.OUTPUTB:
+                out.writeBinaryLine(trie.getPayload(currCube));
+                break;
+            case Program.OUTPUTC:
+                out.writeChar(trie.getPayload(currCube));
+                break;
+            case Program.OUTPUTD:
+                out.writeDecimalLine(trie.getPayload(currCube));
+                break;
+            case Program.OUTPUTX_LOWER:
+                out.writeHexLine(trie.getPayload(currCube), false);
+                break;
+            case Program.OUTPUTX_UPPER:
+                out.writeHexLine(trie.getPayload(currCube), true);
+                break;
+            case Program.ADD:
+                trie.setGlobalByte((byte) (trie.getGlobalByte()
+                        + trie.getPayload(currCube)));
+                break;
+            case Program.SUBTRACT:
+                trie.setGlobalByte((byte) (trie.getGlobalByte()
+                        - trie.getPayload(currCube)));
+                break;
+            case Program.MULTIPLY:
+                trie.setGlobalByte((byte) (trie.getGlobalByte()
+                        * trie.getPayload(currCube)));
+                break;
+            case Program.DIVIDE:
+                trie.setGlobalByte((byte) (trie.getGlobalByte()
+                        / trie.getPayload(currCube)));
+                break;
+            case Program.MOD:
+                trie.setGlobalByte((byte) (trie.getGlobalByte()
+                        % trie.getPayload(currCube)));
+                break;
+            case Program.OPEN_GLOBAL_NONZERO:
+                if (trie.getGlobalByte() == 0)
+                    pc = operand; // skip to the close bracket
+                break;
+            case Program.OPEN_GLOBAL_ZERO:
+                if (trie.getGlobalByte() != 0)
+                    pc = operand; // skip to the close bracket
+                break;
+            case Program.OPEN_LOCAL_NONZERO:
+                if (trie.getPayload(currCube) == 0)
+                    pc = operand; // skip to the close bracket
+                break;
+            case Program.OPEN_LOCAL_ZERO:
+                if (trie.getPayload(currCube) != 0)
+                    pc = operand; // skip to the close bracket
+                break;
+            case Program.CLOSE_GLOBAL_NONZERO:
+            case Program.CLOSE_GLOBAL_ZERO:
+            case Program.CLOSE_LOCAL_NONZERO:
+            case Program.CLOSE_LOCAL_ZERO:
+                // minus 1 is necessary because pc is incremented below and we
+                // want to recheck the open bracket's condition each time
+                // around
+                pc = operand - 1;
+                break;
+            case Program.DOWN:
+                currCube = trie.getOrCreateChild(currCube);
+                break;
+            case Program.UP:
+                if (trie.getParent(currCube) != RubiksTrie.NO_CUBE)
+                    currCube = trie.getParent(currCube);
+                break;
+            case Program.PTC:
+                trie.setPayload(trie.getOrCreateChild(currCube),
+                        trie.getPayload(currCube));
+                break;
+            case Program.CTP:
+                if (trie.getParent(currCube) != RubiksTrie.NO_CUBE)
+                    trie.setPayload(trie.getParent(currCube),
+                            trie.getPayload(currCube));
+                break;
+            case Program.GLOBAL_INCREMENT:
+                trie.incrementGlobalByte();
+                break;
+            case Program.GLOBAL_DECREMENT:
+                trie.decrementGlobalByte();
+                break;
+            case Program.MOVE:
+                trie.move(currCube, operand);
+                break;
+            case Program.DISPATCH: {
+                byte global = trie.getGlobalByte();
+                if (!superinstructions) {
+                    if (global != 0)
+                        pc = operand; // skip to the close bracket
+                    break;
+                }
 
-            if (match != null) {
-                byte payload = Integer.decode("0x" +
-                        match.substring(Math.max(match.length() - 2, 0)))
-                        .byteValue();
-                currCube.getRWNode().setPayload(payload);
-            } else
-                currCube.getRWNode().setPayload((byte) 0);
+                // skip the blocks before the one the global byte counts down
+                // to, as the [ and g-- of each would
+                while (global != 0
+                        && program.getOpcode(pc) == Program.DISPATCH) {
+                    pc = program.getOperand(pc) + 2;
+                    global--;
+                }
+                trie.setGlobalByte(global);
 
-            // consume unused new line
-            sc.nextLine();
-        });
+                // pc is at a [ that is not a DISPATCH or at the block to run
+                if (global != 0)
+                    pc = program.getOperand(pc); // skip to the close bracket
+                break;
+            }
+            case Program.INCREMENT_CHAIN:
+            case Program.DECREMENT_CHAIN: {
+                byte global = trie.getGlobalByte();
+                if (!superinstructions) {
+                    if (global != 0)
+                        pc = operand; // skip to the close bracket
+                    break;
+                }
 
-        commandMap.put("outputb", () -> {
-            String formatted = String.format("%8s",
-                    Integer.toBinaryString(currCube.getRWNode()
-                            .getPayload() & 0xff))
-                    .replace(' ', '0');
+                // the block the global byte counts down to adds to the
+                // payload and leaves the global byte as it was
+                if ((global & 0xff) < Program.CHAIN_BLOCKS)
+                    trie.setPayload(currCube, (byte) (trie.getPayload(currCube)
+                            + (program.getOpcode(pc)
+                            == Program.INCREMENT_CHAIN ? 1 : -1)));
+                else
+                    trie.setGlobalByte((byte) (global - Program.CHAIN_BLOCKS));
 
-            System.out.println(formatted);
-        });
+                pc += Program.CHAIN_LENGTH - 1; // to the last g--
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown opcode "
+                        + program.getOpcode(pc) + " at pc = "
+                        + program.getSourcePc(pc));
+        }
 
-        commandMap.put("outputc", () -> System.out.print(
-                (char) currCube.getRWNode().getPayload()));
+        pc++;
+    }
 
-        commandMap.put("outputd", () -> System.out.println(
-                currCube.getRWNode().getPayload() & 0xff));
+    /**
+     * Makes a copy of the Interpreter, at the same point in the same program,
+     * which goes on from there with its own input and output. This makes it
+     * cheap to run the start of a program once and then run the rest of it
+     * on many inputs: the copy shares the trie's cubes until either
+     * Interpreter changes them, so forking takes constant time and each fork
+     * only uses memory for the cubes it changes. An Interpreter and its forks
+     * can run on different threads.
+     * <p>
+     * Input the original has read but not used yet is not passed on, and
+     * output it has not flushed yet stays with it.
+     *
+     * @param in  where the fork reads its input from
+     * @param out where the fork sends its output
+     * @return the fork
+     * @throws UnsupportedOperationException if the trie is memory-mapped or
+     *                                       checkpointed
+     */
+    Interpreter fork(InputSource in, OutputSink out)
+            throws UnsupportedOperationException {
+        Interpreter fork = new Interpreter(program, trie.fork(), in, out);
+        fork.currCube = currCube;
+        fork.pc = pc;
+        fork.stepsRun = stepsRun;
+        fork.superinstructions = superinstructions;
+        return fork;
+    }
 
-        commandMap.put("outputx", () ->
-                System.out.format("%x%n", currCube.getRWNode().getPayload()));
+    /**
+     * @param superinstructions false to run each superinstruction as the [
+     *                          it stands for, one instruction at a time
+     */
+    void setSuperinstructions(boolean superinstructions) {
+        this.superinstructions = superinstructions;
+    }
 
-        commandMap.put("outputX", () ->
-                System.out.format("%X%n", currCube.getRWNode().getPayload()));
+    void processNextCommand() throws EOFException,
+            UnsupportedOperationException {
+        if (pc >= program.length())
+            throw new EOFException("Attempted to process command past the end");
 
-        commandMap.put("+", () -> trie.setGlobalByte((byte)
-                (trie.getGlobalByte() + currCube.getRWNode().getPayload())));
+        execute();
+    }
 
-        commandMap.put("-", () -> trie.setGlobalByte((byte)
-                (trie.getGlobalByte() - currCube.getRWNode().getPayload())));
+    /**
+     * Runs the next instruction like processNextCommand, first recording in
+     * journal what it is going to change so that undo can change it back.
+     * Input read and output written are not recorded.
+     */
+    void processNextCommand(UndoJournal journal) throws EOFException,
+            UnsupportedOperationException {
+        if (pc >= program.length())
+            throw new EOFException("Attempted to process command past the end");
 
-        commandMap.put("*", () -> trie.setGlobalByte((byte)
-                (trie.getGlobalByte() * currCube.getRWNode().getPayload())));
+        int changedCube = RubiksTrie.NO_CUBE;
+        int changedSlot = 0;
+        switch (program.getOpcode(pc)) {
+            case Program.SET:
+            case Program.GTP:
+            case Program.INPUTB:
+            case Program.INPUTC:
+            case Program.INPUTD:
+            case Program.INPUTX:
+            case Program.INCREMENT_CHAIN:
+            case Program.DECREMENT_CHAIN:
+                changedCube = currCube;
+                break;
+            case Program.PTC:
+                // a child created by the step is removed instead
+                changedCube = trie.getChild(currCube,
+                        trie.getRWSlot(currCube));
+                break;
+            case Program.CTP:
+                changedCube = trie.getParent(currCube);
+                break;
+            case Program.MOVE:
+                changedCube = currCube;
+                changedSlot = UndoJournal.STATE;
+                break;
+        }
 
-        commandMap.put("/", () -> trie.setGlobalByte((byte)
-                (trie.getGlobalByte() / currCube.getRWNode().getPayload())));
+        if (changedCube != RubiksTrie.NO_CUBE
+                && changedSlot != UndoJournal.STATE)
+            changedSlot = trie.getRWSlot(changedCube);
+        int oldValue = readChanged(changedCube, changedSlot);
+        byte oldGlobal = trie.getGlobalByte();
+        int oldNumCubes = trie.getNumCubes();
 
-        commandMap.put("%", () -> trie.setGlobalByte((byte)
-                (trie.getGlobalByte() % currCube.getRWNode().getPayload())));
+        journal.record(pc, currCube, oldGlobal, oldNumCubes, changedCube,
+                changedSlot, oldValue);
+        try {
+            execute();
+        } catch (RuntimeException e) {
+            // a step can fail after it has changed the trie, as the input
+            // instructions do when the input ends without a new line, and
+            // then its entry is kept so that undo can change it back
+            if (readChanged(changedCube, changedSlot) == oldValue
+                    && trie.getGlobalByte() == oldGlobal
+                    && trie.getNumCubes() == oldNumCubes)
+                journal.pop();
+            throw e;
+        }
+    }
 
-        commandMap.put("{", () -> {
-            if (trie.getGlobalByte() == 0) {
-                int openBracketCounter = 1;
+    /**
+     * @return the payload or state a step recorded in the journal changes,
+     *         or 0 if it changes neither
+     */
+    private int readChanged(int changedCube, int changedSlot) {
+        if (changedCube == RubiksTrie.NO_CUBE)
+            return 0;
+        else if (changedSlot == UndoJournal.STATE)
+            return trie.getState(changedCube);
+        else
+            return trie.getPayload(changedCube, changedSlot);
+    }
 
-                while (openBracketCounter != 0) {
-                    pc++;
+    /**
+     * Undoes the last step recorded in journal, putting the program back
+     * where it was before the step.
+     *
+     * @return false if there was no step to undo
+     */
+    boolean undo(UndoJournal journal) {
+        if (!journal.pop())
+            return false;
+
+        int changedCube = journal.getChangedCube();
+        if (changedCube != RubiksTrie.NO_CUBE) {
+            if (journal.getChangedSlot() == UndoJournal.STATE)
+                trie.setState(changedCube, journal.getOldValue());
+            else
+                trie.setPayload(changedCube, journal.getChangedSlot(),
+                        (byte) journal.getOldValue());
+        }
 
-                    if (instructions[pc].equals("{"))
-                        openBracketCounter++;
-                    else if (instructions[pc].equals("}"))
-                        openBracketCounter--;
-                }
-            } else
-                openBracketLocations.push(pc);
-        });
-
-        // minus 1 is necessary because pc is incremented by default in
-        // processNextCommand and we want to recheck the "{" condition each
-        // time around
-        commandMap.put("}", () -> pc = openBracketLocations.pop() - 1);
-
-        commandMap.put("[", () -> {
-            if (trie.getGlobalByte() != 0) {
-                int openBracketCounter = 1;
-
-                while (openBracketCounter != 0) {
-                    pc++;
-
-                    if (instructions[pc].equals("["))
-                        openBracketCounter++;
-                    else if (instructions[pc].equals("]"))
-                        openBracketCounter--;
-                }
-            } else
-                openBracketLocations.push(pc);
-        });
+        while (trie.getNumCubes() > journal.getNumCubes())
+            trie.removeLastCube();
 
-        commandMap.put("]", () -> pc = openBracketLocations.pop() - 1);
+        trie.setGlobalByte(journal.getGlobal());
+        currCube = journal.getCube();
+        pc = journal.getPc();
+        return true;
+    }
 
-        commandMap.put("<", () -> {
-            if (currCube.getRWNode().getPayload() == 0) {
-                int openBracketCounter = 1;
+    /**
+     * If called without any previous calls to processNextCommand, this method
+     * runs the whole RubikTreeLang program from start to finish. Otherwise,
+     * this method runs the program from where the interpreter last stopped.
+     */
+    void processRemainingCommands() {
+        try {
+            while (pc < program.length())
+                execute();
+        } catch (Exception e) {
+            out.flush();
+            e.printStackTrace();
+            pc = program.length();
+        } finally {
+            out.flush();
+        }
+    }
 
-                while (openBracketCounter != 0) {
-                    pc++;
+    /**
+     * Runs the rest of the program like processRemainingCommands, but for at
+     * most maxSteps steps, and with any exception the program throws passed
+     * on to the caller rather than printed. The steps run are added to
+     * getStepsRun either way.
+     *
+     * @param maxSteps how many steps to stop after
+     */
+    void run(long maxSteps) {
+        long steps = 0;
+        try {
+            while (pc < program.length() && steps < maxSteps) {
+                execute();
+                steps++;
+            }
+        } finally {
+            stepsRun += steps;
+            out.flush();
+        }
+    }
 
-                    if (instructions[pc].equals("<"))
-                        openBracketCounter++;
-                    else if (instructions[pc].equals(">"))
-                        openBracketCounter--;
+    /**
+     * Runs the rest of the program like processRemainingCommands, counting
+     * what it does in profile. This is a loop of its own so that running
+     * without a profile does not pay for it.
+     */
+    void processRemainingCommands(Profile profile) {
+        profile.start();
+        try {
+            while (pc < program.length()) {
+                int opcode = program.getOpcode(pc);
+                profile.count(pc);
+
+                if (Profile.isIO(opcode)) {
+                    long start = System.nanoTime();
+                    try {
+                        execute();
+                    } finally {
+                        profile.addIOTime(System.nanoTime() - start);
+                    }
+                } else if (opcode == Program.DOWN || opcode == Program.PTC) {
+                    int numCubes = trie.getNumCubes();
+                    execute();
+                    profile.addCubes(opcode, trie.getNumCubes() - numCubes);
+                } else if (opcode == Program.DISPATCH) {
+                    int start = pc;
+                    execute();
+                    // count the [ of a later block it entered as run, so
+                    // that block's loop is counted as entered
+                    if (pc - 1 != start
+                            && Program.isOpenBracket(program.getOpcode(pc - 1)))
+                        profile.count(pc - 1);
+                } else {
+                    execute();
                 }
-            } else
-                openBracketLocations.push(pc);
-        });
-
-        commandMap.put(">", () -> pc = openBracketLocations.pop() - 1);
-
-        commandMap.put("(", () -> {
-            if (currCube.getRWNode().getPayload() != 0) {
-                int openBracketCounter = 1;
-
-                while (openBracketCounter != 0) {
-                    pc++;
+            }
+        } catch (Exception e) {
+            out.flush();
+            e.printStackTrace();
+            pc = program.length();
+        } finally {
+            out.flush();
+            profile.stop();
+        }
+    }
 
-                    if (instructions[pc].equals("("))
-                        openBracketCounter++;
-                    else if (instructions[pc].equals(")"))
-                        openBracketCounter--;
+    /**
+     * Runs the rest of the program like processRemainingCommands, writing a
+     * checkpoint whenever one is due and once more when the program ends. A
+     * checkpoint that cannot be written is reported and the program goes on.
+     */
+    void processRemainingCommands(CheckpointFile checkpoints) {
+        try {
+            while (pc < program.length()) {
+                int steps = checkpoints.stepsUntilCheck();
+                int run = 0;
+                while (run < steps && pc < program.length()) {
+                    execute();
+                    run++;
                 }
-            } else
-                openBracketLocations.push(pc);
-        });
-
-        commandMap.put(")", () -> pc = openBracketLocations.pop() - 1);
 
-        commandMap.put("v", () -> {
-            Node node = currCube.getRWNode();
-            if (node.getChild() == null) {
-                node.initializeChildRubiksCube();
-            }
-            currCube = node.getChild();
-        });
-
-        commandMap.put("^", () -> {
-            if (currCube.getParent() != null)
-                currCube = currCube.getParent();
-        });
-
-        commandMap.put("ptc", () -> {
-            Node node = currCube.getRWNode();
-            if (node.getChild() == null) {
-                node.initializeChildRubiksCube();
+                if (checkpoints.isDue(run) || pc >= program.length()) {
+                    // output up to the checkpoint is not written again on
+                    // resume
+                    out.flush();
+                    try {
+                        checkpoints.write(pc, currCube,
+                                in.getCharsConsumed());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
             }
-            node.getChild().getRWNode().setPayload(node.getPayload());
-        });
-
-        commandMap.put("ctp", () -> {
-            if (currCube.getParent() != null)
-                currCube.getParent().getRWNode().setPayload(
-                        currCube.getRWNode().getPayload());
-        });
-
-        commandMap.put("g++", () -> trie.incrementGlobalByte());
-
-        commandMap.put("g--", () -> trie.decrementGlobalByte());
-
-        commandMap.put("U", () -> currCube.turn('U', 1));
-        commandMap.put("U2", () -> currCube.turn('U', 2));
-        commandMap.put("U'", () -> currCube.turn('U', -1));
-        commandMap.put("L", () -> currCube.turn('L', 1));
-        commandMap.put("L2", () -> currCube.turn('L', 2));
-        commandMap.put("L'", () -> currCube.turn('L', -1));
-        commandMap.put("F", () -> currCube.turn('F', 1));
-        commandMap.put("F2", () -> currCube.turn('F', 2));
-        commandMap.put("F'", () -> currCube.turn('F', -1));
-        commandMap.put("R", () -> currCube.turn('R', 1));
-        commandMap.put("R2", () -> currCube.turn('R', 2));
-        commandMap.put("R'", () -> currCube.turn('R', -1));
-        commandMap.put("B", () -> currCube.turn('B', 1));
-        commandMap.put("B2", () -> currCube.turn('B', 2));
-        commandMap.put("B'", () -> currCube.turn('B', -1));
-        commandMap.put("D", () -> currCube.turn('D', 1));
-        commandMap.put("D2", () -> currCube.turn('D', 2));
-        commandMap.put("D'", () -> currCube.turn('D', -1));
-
-        commandMap.put("x", () -> {
-            currCube.turn('R', 1);
-            currCube.turn('L', -1);
-        });
-
-        commandMap.put("x'", () -> {
-            currCube.turn('R', -1);
-            currCube.turn('L', 1);
-        });
-
-        commandMap.put("x2", () -> {
-            currCube.turn('R', 2);
-            currCube.turn('L', 2);
-        });
-
-        commandMap.put("y", () -> {
-            currCube.turn('U', 1);
-            currCube.turn('D', -1);
-        });
-
-        commandMap.put("y'", () -> {
-            currCube.turn('U', -1);
-            currCube.turn('D', 1);
-        });
-
-        commandMap.put("y2", () -> {
-            currCube.turn('U', 2);
-            currCube.turn('D', 2);
-        });
-
-        commandMap.put("z", () -> {
-            currCube.turn('F', 1);
-            currCube.turn('B', -1);
-        });
-
-        commandMap.put("z'", () -> {
-            currCube.turn('F', -1);
-            currCube.turn('B', 1);
-        });
-
-        commandMap.put("z2", () -> {
-            currCube.turn('F', 2);
-            currCube.turn('B', 2);
-        });
-
-        // There should not be empty strings in the instruction array but if
-        // there are, then do nothing
-        commandMap.put("", () -> {
-        });
-
-        return commandMap;
+        } catch (Exception e) {
+            out.flush();
+            e.printStackTrace();
+            pc = program.length();
+        } finally {
+            out.flush();
+        }
     }
 
-    void processNextCommand() throws EOFException,
-            UnsupportedOperationException {
-        if (pc >= instructions.length)
-            throw new EOFException("Attempted to process command past the end");
+    /**
+     * Puts the program back where it was at a checkpoint, whose cubes have
+     * already been read back into the trie, skipping the input it had read.
+     */
+    void restore(CheckpointFile.Position position) {
+        pc = position.pc;
+        currCube = position.currCube;
+        in.skipChars(position.inputChars);
+    }
 
-        Runnable instruction = commandMap.get(instructions[pc]);
-        if (instruction == null)
-            throw new UnsupportedOperationException(
-                    "Invalid command '" + instructions[pc] + "' at pc = " + pc);
-        else
-            instruction.run();
+    /**
+     * Runs the rest of the program like processRemainingCommands, but
+     * compiled into JVM bytecode by BytecodeCompiler instead of interpreted.
+     * Programs too large to compile are interpreted.
+     */
+    private void runCompiled() {
+        if (pc != 0) {
+            processRemainingCommands();
+            return;
+        }
 
-        pc++;
+        CompiledProgram compiled;
+        try {
+            compiled = BytecodeCompiler.compile(program);
+        } catch (UnsupportedOperationException e) {
+            processRemainingCommands();
+            return;
+        }
+
+        try {
+            currCube = compiled.run(trie, in, out, currCube);
+            pc = program.length();
+        } catch (CompiledProgram.Abort abort) {
+            currCube = abort.getCube();
+
+            // errors escape, as they do from processRemainingCommands
+            if (abort.getCause() instanceof Error)
+                throw (Error) abort.getCause();
+
+            out.flush();
+            abort.getCause().printStackTrace();
+            pc = program.length();
+        } finally {
+            out.flush();
+        }
     }
 
     /**
-     * If called without any previous calls to processNextCommand, this method
-     * runs the whole RubikTreeLang program from start to finish. Otherwise,
-     * this method runs the program from where the interpreter last stopped.
+     * Writes out any output the program has buffered.
      */
-    private void processRemainingCommands() {
-        while (pc < instructions.length)
-            try {
-                processNextCommand();
-            } catch (Exception e) {
-                e.printStackTrace();
-                pc = instructions.length;
-            }
+    void flushOutput() {
+        out.flush();
     }
 
     /***** These getters are for the visualizer *****/
@@ -432,24 +596,328 @@ public class Interpreter {
     }
 
     RubiksCube getCurrCube() {
-        return currCube;
+        return new RubiksCube(trie, currCube);
+    }
+
+    Program getProgram() {
+        return program;
+    }
+
+    /**
+     * @return source text of the next instruction to be run
+     */
+    String getCurrentInstruction() {
+        return program.getSourceText(pc);
     }
 
     String[] getInstructions() {
-        return instructions;
+        return program.getTokens();
     }
 
+    /**
+     * @return index of the token the next instruction was decoded from, which
+     * is the number of tokens once the program has finished
+     */
     int getProgramCounter() {
-        return pc;
+        return program.getSourcePc(pc);
+    }
+
+    boolean isFinished() {
+        return pc >= program.length();
     }
 
+    /**
+     * @return how many steps run has run
+     */
+    long getStepsRun() {
+        return stepsRun;
+    }
+
+    private static final int DEFAULT_CHECKPOINT_SECONDS = 60;
+
+    private static final String USAGE =
+            "Usage: java Interpreter [--mapped[=directory]] "
+            + "[--output-buffer=bytes] [--jit] [--bf]\n"
+            + "\t[--rtlc=rtlcFilePath [--no-source-map]] "
+            + "[--profile[=jsonFilePath]]\n"
+            + "\t[--no-superinstructions] [--compact-at=megabytes]\n"
+            + "\t[--checkpoint=file [--checkpoint-steps=n] "
+            + "[--checkpoint-seconds=s] [--resume]]\n"
+            + "\trtlFilePath\n"
+            + "\t--mapped: keep the trie in a memory-mapped file in "
+            + "directory (by default\n\t\tthe system's temporary "
+            + "directory) instead of on the Java heap\n"
+            + "\t--output-buffer: buffer up to about this many bytes of "
+            + "output before\n\t\twriting it (default "
+            + OutputSink.DEFAULT_FLUSH_THRESHOLD + ")\n"
+            + "\t--jit: compile the program into JVM bytecode before "
+            + "running it\n"
+            + "\t--bf: the file is a BF program; run what the Converter "
+            + "would convert it\n\t\tinto without writing out the .rtl "
+            + "file\n"
+            + "\t--rtlc: save the decoded program as a .rtlc file, which "
+            + "loads much\n\t\tfaster, instead of running it. A file "
+            + "ending in .rtlc is always\n\t\tloaded as one\n"
+            + "\t--no-source-map: leave the program's tokens out of the "
+            + ".rtlc file\n"
+            + "\t--profile: count what the program does and print a report "
+            + "of where it\n\t\tspent its time to standard error when it "
+            + "ends, or write the report\n\t\tto jsonFilePath as JSON. "
+            + "Cannot be combined with --jit\n"
+            + "\t--no-superinstructions: run the shapes of code the "
+            + "Converter writes\n\t\tinstruction by instruction instead "
+            + "of as one superinstruction\n"
+            + "\t--compact-at: once the heap holds this many megabytes, "
+            + "make cubes with\n\t\tthe same stickers share them "
+            + "whenever the trie needs more room,\n\t\tand print how "
+            + "much memory that freed to standard error when\n\t\tthe "
+            + "program ends. Cannot be combined with --mapped\n"
+            + "\t--checkpoint: save the program's state to file every "
+            + "n steps, every s\n\t\tseconds (60 if neither is given), "
+            + "and when it ends\n"
+            + "\t--resume: carry on from the last checkpoint in file, if "
+            + "there is one,\n\t\tskipping the input read before it. "
+            + "Output written after it is\n\t\twritten again. Neither "
+            + "option can be combined with --jit or --profile";
+
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java Interpreter rtlFilePath");
+        String codePath = null;
+        Path mappedDirectory = null;
+        int outputBufferSize = OutputSink.DEFAULT_FLUSH_THRESHOLD;
+        boolean jit = false;
+        boolean bf = false;
+        Path rtlcPath = null;
+        boolean sourceMap = true;
+        boolean profile = false;
+        Path profilePath = null;
+        Path checkpointPath = null;
+        long checkpointSteps = 0;
+        long checkpointSeconds = 0;
+        boolean resume = false;
+        boolean superinstructions = true;
+        long compactAt = 0;
+
+        for (String arg : args) {
+            if (arg.equals("--mapped"))
+                mappedDirectory =
+                        Paths.get(System.getProperty("java.io.tmpdir"));
+            else if (arg.startsWith("--mapped="))
+                mappedDirectory =
+                        Paths.get(arg.substring("--mapped=".length()));
+            else if (arg.equals("--jit"))
+                jit = true;
+            else if (arg.equals("--bf"))
+                bf = true;
+            else if (arg.startsWith("--rtlc="))
+                rtlcPath = Paths.get(arg.substring("--rtlc=".length()));
+            else if (arg.equals("--no-source-map"))
+                sourceMap = false;
+            else if (arg.equals("--profile"))
+                profile = true;
+            else if (arg.startsWith("--profile=")) {
+                profile = true;
+                profilePath =
+                        Paths.get(arg.substring("--profile=".length()));
+            }
+            else if (arg.startsWith("--checkpoint="))
+                checkpointPath =
+                        Paths.get(arg.substring("--checkpoint=".length()));
+            else if (arg.startsWith("--checkpoint-steps=")) {
+                checkpointSteps = parseCount(
+                        arg.substring("--checkpoint-steps=".length()));
+                if (checkpointSteps <= 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (arg.startsWith("--checkpoint-seconds=")) {
+                checkpointSeconds = parseCount(
+                        arg.substring("--checkpoint-seconds=".length()));
+                if (checkpointSeconds <= 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (arg.equals("--resume"))
+                resume = true;
+            else if (arg.equals("--no-superinstructions"))
+                superinstructions = false;
+            else if (arg.startsWith("--compact-at=")) {
+                compactAt = parseCount(
+                        arg.substring("--compact-at=".length()));
+                if (compactAt <= 0 || compactAt > Long.MAX_VALUE >> 20) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+            else if (arg.startsWith("--output-buffer=")) {
+                try {
+                    outputBufferSize = Integer.parseInt(
+                            arg.substring("--output-buffer=".length()));
+                } catch (NumberFormatException e) {
+                    outputBufferSize = -1;
+                }
+
+                if (outputBufferSize < 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (codePath == null && !arg.startsWith("--"))
+                codePath = arg;
+            else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        boolean checkpointing = checkpointPath != null;
+        if (codePath == null || (!sourceMap && rtlcPath == null)
+                || (profile && jit)
+                || (compactAt > 0 && mappedDirectory != null)
+                || (checkpointing && (profile || jit))
+                || (!checkpointing && (resume || checkpointSteps > 0
+                || checkpointSeconds > 0))) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        if (checkpointing && checkpointSteps == 0 && checkpointSeconds == 0)
+            checkpointSeconds = DEFAULT_CHECKPOINT_SECONDS;
+
+        if (rtlcPath != null) {
+            saveRtlc(Paths.get(codePath), bf, rtlcPath, sourceMap);
             return;
         }
 
-        Interpreter interp = new Interpreter(Paths.get(args[0]));
-        interp.processRemainingCommands();
+        TrieStorage storage;
+        ArrayTrieStorage arrayStorage = null;
+        try {
+            storage = mappedDirectory == null
+                    ? arrayStorage = new ArrayTrieStorage(compactAt << 20)
+                    : new MappedTrieStorage(mappedDirectory);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // checkpoints only write the cubes that changed
+        TrackedTrieStorage tracked = null;
+        if (checkpointing)
+            storage = tracked = new TrackedTrieStorage(storage);
+        RubiksTrie trie = new RubiksTrie(storage);
+
+        InputSource in = InputSource.standardInput();
+        OutputSink out = new OutputSink(System.out, outputBufferSize,
+                Charset.defaultCharset());
+
+        Interpreter interp;
+        try {
+            if (bf) {
+                Program program;
+                try (FileChannel bfFile = FileChannel.open(
+                        Paths.get(codePath))) {
+                    program = Converter.convertToProgram(bfFile, true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                interp = new Interpreter(program, trie, in, out);
+            } else {
+                interp = new Interpreter(Paths.get(codePath), trie, in, out);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        } catch (UncheckedIOException e) {
+            e.getCause().printStackTrace();
+            return;
+        }
+
+        interp.setSuperinstructions(superinstructions);
+        if (checkpointing) {
+            try (CheckpointFile checkpoints = new CheckpointFile(
+                    checkpointPath, interp.program, trie, tracked,
+                    checkpointSteps, checkpointSeconds)) {
+                if (resume && Files.exists(checkpointPath))
+                    interp.restore(checkpoints.resume());
+                else
+                    checkpoints.start();
+
+                interp.processRemainingCommands(checkpoints);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (profile) {
+            Profile programProfile = new Profile(interp.program);
+            interp.processRemainingCommands(programProfile);
+            saveProfile(programProfile, profilePath);
+        } else if (jit) {
+            interp.runCompiled();
+        } else {
+            interp.processRemainingCommands();
+        }
+
+        if (compactAt > 0)
+            System.err.println(arrayStorage.getCompactionReport());
+    }
+
+    /**
+     * Parses a command-line count, as the BatchRunner does too.
+     *
+     * @return the number in text, or -1 if it is not one
+     */
+    static long parseCount(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param path where to write the profile as JSON, or null to print it
+     *             to standard error
+     */
+    private static void saveProfile(Profile profile, Path path) {
+        if (path == null) {
+            System.err.print(profile.report());
+            return;
+        }
+
+        try {
+            Files.write(path, profile.toJson()
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Decodes a program and writes it to a .rtlc file.
+     *
+     * @param codePath  the .rtl, .rtlc, or (if bf) BF file to decode
+     * @param rtlcPath  where to write the .rtlc file
+     * @param sourceMap whether the .rtlc file should include the tokens
+     */
+    private static void saveRtlc(Path codePath, boolean bf, Path rtlcPath,
+                                 boolean sourceMap) {
+        try {
+            Program program;
+            if (bf) {
+                try (FileChannel bfFile = FileChannel.open(codePath)) {
+                    program = Converter.convertToProgram(bfFile, true);
+                }
+            } else {
+                program = loadProgram(codePath);
+            }
+
+            RtlcFile.write(program, rtlcPath, sourceMap);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (UncheckedIOException e) {
+            e.getCause().printStackTrace();
+        }
     }
 }
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Splits the text of a .rtl file into tokens in a single pass, decoding it a
+ * buffer at a time. This replaces reading the whole file into a String and
+ * running regexes to strip comments and split it, which copied the text
+ * several times over; here memory use does not grow with the file, and
+ * commands, moves and small numbers come back as shared Strings without a
+ * new one being made for them.
+ * <p>
+ * The tokens are exactly the ones the regexes produced: comments run from #
+ * to the end of the line (\n, \r, U+0085, U+2028 or U+2029) and are removed
+ * wherever they are, tokens are separated by runs of Java whitespace, and a
+ * file that is empty or starts with whitespace that \s does not match has an
+ * empty first token.
+ * <p>
+ * The line and column (both starting at 1, and counting chars) of each token
+ * are kept so that errors can say where in the file they are.
+ */
+final class Lexer {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // open-addressed hash table of the tokens that are never copied
+    private static final String[] VOCABULARY = createVocabulary();
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer bytes; // undecoded text, ready to be read
+    private final CharsetDecoder decoder;
+    private final char[] chars; // decoded text is chars[position, limit)
+    private final CharBuffer charBuffer; // chars, for the decoder
+    private int position;
+    private int limit;
+    private boolean channelDone;
+    private boolean endOfInput;
+
+    private int line = 1; // position of chars[position]
+    private int column = 1;
+    private boolean afterCarriageReturn;
+
+    private char[] token = new char[64];
+    private int tokenLine;
+    private int tokenColumn;
+    private boolean started;
+
+    /**
+     * @param channel where to read the text from, which is not closed
+     * @param charset how to decode it into chars
+     */
+    Lexer(ReadableByteChannel channel, Charset charset) {
+        this(channel, ByteBuffer.allocateDirect(BUFFER_SIZE).flip(),
+                charset);
+    }
+
+    /**
+     * @param text    the contents of a .rtl file
+     * @param charset how to decode it into chars
+     */
+    Lexer(byte[] text, Charset charset) {
+        this(null, ByteBuffer.wrap(text), charset);
+    }
+
+    /**
+     * @param bytes the start of the text, ready to be read
+     */
+    private Lexer(ReadableByteChannel channel, ByteBuffer bytes,
+                  Charset charset) {
+        this.channel = channel;
+        this.bytes = bytes;
+        channelDone = channel == null;
+        chars = new char[BUFFER_SIZE];
+        charBuffer = CharBuffer.wrap(chars);
+
+        // new String(bytes) replaces malformed input too
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static String[] createVocabulary() {
+        String[] table = new String[1 << 10];
+
+        for (String token : Program.getCanonicalTokens())
+            addToVocabulary(table, token);
+        for (int i = Byte.MIN_VALUE; i <= 0xff; i++)
+            addToVocabulary(table, Integer.toString(i));
+
+        return table;
+    }
+
+    private static void addToVocabulary(String[] table, String token) {
+        int i = token.hashCode() & (table.length - 1);
+        while (table[i] != null)
+            i = (i + 1) & (table.length - 1);
+
+        table[i] = token;
+    }
+
+    /**
+     * @return the token in token[0, length) as a String, which is shared if
+     * it is in the vocabulary
+     */
+    private String intern(int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + token[i];
+
+        for (int i = hash & (VOCABULARY.length - 1); VOCABULARY[i] != null;
+             i = (i + 1) & (VOCABULARY.length - 1)) {
+            String word = VOCABULARY[i];
+            if (word.length() == length && matches(word, length))
+                return word;
+        }
+
+        return new String(token, 0, length);
+    }
+
+    private boolean matches(String word, int length) {
+        for (int i = 0; i < length; i++)
+            if (word.charAt(i) != token[i])
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Decodes more text into chars, which must all have been read.
+     *
+     * @return false if the text is at its end
+     * @throws IOException if the channel cannot be read
+     */
+    private boolean fill() throws IOException {
+        if (endOfInput)
+            return false;
+
+        charBuffer.clear();
+        while (charBuffer.position() == 0) {
+            if (channelDone) {
+                // all of the text may not fit in chars at once
+                if (!decoder.decode(bytes, charBuffer, true).isOverflow()) {
+                    decoder.flush(charBuffer);
+                    endOfInput = true;
+                }
+                break;
+            }
+
+            bytes.compact();
+            int read = channel.read(bytes);
+            bytes.flip();
+
+            if (read < 0)
+                channelDone = true;
+            else
+                decoder.decode(bytes, charBuffer, false);
+        }
+
+        position = 0;
+        limit = charBuffer.position();
+        return limit > 0;
+    }
+
+    /**
+     * @return the next char without consuming it, or -1 at the end of the
+     * text
+     */
+    private int peek() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+
+        return chars[position];
+    }
+
+    /**
+     * Consumes the char last returned by peek.
+     */
+    private void skip() {
+        char c = chars[position++];
+
+        if (c == '\n' && afterCarriageReturn) {
+            // the rest of a \r\n
+            afterCarriageReturn = false;
+        } else if (isLineSeparator(c)) {
+            line++;
+            column = 1;
+            afterCarriageReturn = c == '\r';
+        } else {
+            column++;
+            afterCarriageReturn = false;
+        }
+    }
+
+    private static boolean isLineSeparator(int c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+                || c == '\u2029';
+    }
+
+    /**
+     * @return whether c is matched by \s, which was all that used to be
+     * stripped from the start of the file
+     */
+    private static boolean isAsciiWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+                || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Skips a comment if there is one, stopping before the end of its line.
+     */
+    private void skipComment() throws IOException {
+        if (peek() != '#')
+            return;
+
+        int c;
+        while ((c = peek()) != -1 && !isLineSeparator(c))
+            skip();
+    }
+
+    /**
+     * Skips whitespace and comments.
+     *
+     * @param asciiOnly whether to stop at whitespace \s does not match
+     */
+    private void skipWhitespace(boolean asciiOnly) throws IOException {
+        int c;
+        while ((c = peek()) != -1) {
+            if (c == '#')
+                skipComment();
+            else if (asciiOnly ? isAsciiWhitespace(c)
+                    : Character.isWhitespace(c))
+                skip();
+            else
+                break;
+        }
+    }
+
+    /**
+     * @return the next token, or null at the end of the text
+     * @throws IOException if the channel cannot be read
+     */
+    String next() throws IOException {
+        if (!started) {
+            started = true;
+            skipWhitespace(true);
+            tokenLine = line;
+            tokenColumn = column;
+
+            if (peek() == -1)
+                return "";
+
+            if (Character.isWhitespace(peek())) {
+                skipWhitespace(false);
+                return peek() == -1 ? null : "";
+            }
+        }
+
+        skipWhitespace(false);
+        if (peek() == -1)
+            return null;
+
+        tokenLine = line;
+        tokenColumn = column;
+
+        int length = 0;
+        int c;
+        while ((c = peek()) != -1) {
+            if (c == '#') {
+                // the token goes on after the comment unless the comment
+                // ended it
+                skipComment();
+                continue;
+            }
+            if (Character.isWhitespace(c))
+                break;
+
+            if (length == token.length)
+                token = Arrays.copyOf(token, 2 * length);
+            token[length++] = (char) c;
+            skip();
+        }
+
+        return intern(length);
+    }
+
+    /**
+     * @return line of the token last returned by next
+     */
+    int getLine() {
+        return tokenLine;
+    }
+
+    /**
+     * @return column of the token last returned by next
+     */
+    int getColumn() {
+        return tokenColumn;
+    }
+}
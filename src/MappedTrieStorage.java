@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Stores cubes outside the Java heap in a memory-mapped temporary file, so a
+ * trie can grow past -Xmx and never makes the garbage collector do any work.
+ * <p>
+ * Every cube is a fixed-size 128 byte record at offset 128 * id:
+ * <p>
+ * - bytes 0-3: ID of the parent, or NO_CUBE for the root
+ * - bytes 4-7: PermutationTable state
+ * - bytes 8-31: the payloads of slots 0 through 23
+ * - bytes 32-127: the IDs of the children of slots 0 through 23, or 0 for
+ * none (the root has ID 0 and can never be a child)
+ * <p>
+ * A fresh record is all zeros except for its parent, and the operating system
+ * hands out zeroed pages of the file lazily, so only pages holding created
+ * cubes take up memory or disk. The file is mapped in segments of
+ * CUBES_PER_SEGMENT records as the trie grows, and is deleted when the JVM
+ * exits.
+ */
+class MappedTrieStorage implements TrieStorage {
+
+    private static final int RECORD_SIZE = 128;
+    private static final int STATE_OFFSET = 4;
+    private static final int PAYLOAD_OFFSET = 8;
+    private static final int CHILD_OFFSET = 32;
+
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int CUBES_PER_SEGMENT = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = CUBES_PER_SEGMENT - 1;
+    private static final long SEGMENT_SIZE =
+            (long) RECORD_SIZE * CUBES_PER_SEGMENT;
+
+    private final FileChannel channel;
+    private MappedByteBuffer[] segments;
+    private int numCubes;
+
+    /**
+     * @param directory where to create the file backing the trie
+     * @throws IOException if the file cannot be created
+     */
+    MappedTrieStorage(Path directory) throws IOException {
+        Path file = Files.createTempFile(directory, "rubiktrie", ".cubes");
+        channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        file.toFile().deleteOnExit();
+
+        segments = new MappedByteBuffer[0];
+        numCubes = 0;
+    }
+
+    /**
+     * @return the segment holding the cube's record
+     */
+    private MappedByteBuffer segment(int cube) {
+        return segments[cube >>> SEGMENT_SHIFT];
+    }
+
+    /**
+     * @return offset of the cube's record within its segment
+     */
+    private static int offset(int cube) {
+        return (cube & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    public int createCube(int parent) {
+        if (numCubes == Integer.MAX_VALUE)
+            throw new OutOfMemoryError("Too many Rubik's Cubes");
+
+        int id = numCubes;
+        if ((id >>> SEGMENT_SHIFT) == segments.length) {
+            try {
+                MappedByteBuffer segment = channel.map(
+                        FileChannel.MapMode.READ_WRITE,
+                        segments.length * SEGMENT_SIZE, SEGMENT_SIZE);
+                segment.order(ByteOrder.nativeOrder());
+                segments = Arrays.copyOf(segments, segments.length + 1);
+                segments[segments.length - 1] = segment;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        numCubes++;
+        segment(id).putInt(offset(id), parent);
+        return id;
+    }
+
+    public int getNumCubes() {
+        return numCubes;
+    }
+
+    public void removeLastCube() {
+        int id = --numCubes;
+
+        int parent = getParent(id);
+        for (int slot = 0; slot < RubiksTrie.STICKERS; slot++)
+            if (getChild(parent, slot) == id)
+                setChild(parent, slot, 0);
+
+        // back to the zeros of a fresh record
+        MappedByteBuffer segment = segment(id);
+        for (int i = 0; i < RECORD_SIZE; i += Long.BYTES)
+            segment.putLong(offset(id) + i, 0);
+    }
+
+    public int getParent(int cube) {
+        return segment(cube).getInt(offset(cube));
+    }
+
+    public int getState(int cube) {
+        return segment(cube).getInt(offset(cube) + STATE_OFFSET);
+    }
+
+    public void setState(int cube, int state) {
+        segment(cube).putInt(offset(cube) + STATE_OFFSET, state);
+    }
+
+    public byte getPayload(int cube, int slot) {
+        return segment(cube).get(offset(cube) + PAYLOAD_OFFSET + slot);
+    }
+
+    public void setPayload(int cube, int slot, byte b) {
+        segment(cube).put(offset(cube) + PAYLOAD_OFFSET + slot, b);
+    }
+
+    public int getChild(int cube, int slot) {
+        int child = segment(cube).getInt(offset(cube) + CHILD_OFFSET
+                + 4 * slot);
+        return child == 0 ? RubiksTrie.NO_CUBE : child;
+    }
+
+    public void setChild(int cube, int slot, int child) {
+        segment(cube).putInt(offset(cube) + CHILD_OFFSET + 4 * slot, child);
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, since a trie is only
+     *                                       mapped because it is too big to
+     *                                       copy
+     */
+    public TrieStorage fork() {
+        throw new UnsupportedOperationException("A memory-mapped trie cannot "
+                + "be forked");
+    }
+
+    /**
+     * @return 0, since every cube has a record of the same size in the file
+     */
+    public long compact() {
+        return 0;
+    }
+}
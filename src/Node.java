@@ -1,36 +1,42 @@
+/**
+ * A handle onto one sticker of a cube stored in a RubiksTrie. A Node refers to
+ * a slot rather than a position, so it follows its sticker around as the cube
+ * is turned.
+ */
 public class Node {
 
-    private byte payload;
-    private RubiksCube cube;
-    private RubiksCube child;
     private RubiksTrie trie;
+    private int cube;
+    private int slot;
 
-    public Node(RubiksCube cube, RubiksTrie trie) {
-        payload = 0;
-        this.cube = cube;
-        child = null;
+    Node(RubiksTrie trie, int cube, int slot) {
         this.trie = trie;
+        this.cube = cube;
+        this.slot = slot;
     }
 
     void setPayload(byte b) {
-        payload = b;
+        trie.setPayload(cube, slot, b);
     }
 
     byte getPayload() {
-        return payload;
+        return trie.getPayload(cube, slot);
     }
 
     RubiksCube getChild() {
-        return child;
+        int child = trie.getChild(cube, slot);
+        return child == RubiksTrie.NO_CUBE ? null
+                : new RubiksCube(trie, child);
     }
 
     void initializeChildRubiksCube() {
-        child = new RubiksCube(cube, trie);
+        trie.getOrCreateChild(cube, slot);
     }
 
     public String toString() {
-        return String.format("%02x", payload)
+        int child = trie.getChild(cube, slot);
+        return String.format("%02x", getPayload())
                 + "|"
-                + ((child == null) ? "." : child.getID());
+                + ((child == RubiksTrie.NO_CUBE) ? "." : child);
     }
 }
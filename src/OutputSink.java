@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+
+/**
+ * Buffers the output of the output_ commands and formats payloads into bytes
+ * directly instead of going through String.format and a PrintStream call for
+ * every byte. Nothing is allocated per write.
+ * <p>
+ * Buffered bytes are written to the underlying stream once at least
+ * flushThreshold of them have piled up, or when flush is called. The
+ * Interpreter flushes when the program ends and before every input_ command,
+ * and the Visualizer flushes after every step, so output still shows up in
+ * the same order relative to everything else written to the stream.
+ * <p>
+ * The bytes written are exactly what System.out's print, println and format
+ * would have written for the same commands, assuming System.out encodes with
+ * the charset given to the constructor.
+ */
+class OutputSink {
+
+    static final int DEFAULT_FLUSH_THRESHOLD = 8192;
+
+    // longest write: 8 binary digits and a line separator
+    private static final int MAX_WRITE_SIZE = 16;
+
+    private static final byte[] LOWER_HEX_DIGITS =
+            {'0', '1', '2', '3', '4', '5', '6', '7',
+                    '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private static final byte[] UPPER_HEX_DIGITS =
+            {'0', '1', '2', '3', '4', '5', '6', '7',
+                    '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final int flushThreshold;
+    private int length;
+
+    private final byte[] lineSeparator;
+
+    // outputc prints (char) payload, which is a char between U+FF80 and
+    // U+FFFF for payloads with the leading bit set. These are their
+    // encodings, indexed by payload & 0x7f.
+    private final byte[][] negativeCharEncodings;
+
+    /**
+     * @param out            where to write the output to
+     * @param flushThreshold how many bytes to buffer before writing them to
+     *                       out, with 0 writing after every command
+     * @param charset        how out would have encoded a char
+     */
+    OutputSink(OutputStream out, int flushThreshold, Charset charset) {
+        this.out = out;
+        this.flushThreshold = flushThreshold;
+        buffer = new byte[flushThreshold + MAX_WRITE_SIZE];
+        length = 0;
+
+        lineSeparator = System.lineSeparator().getBytes(charset);
+
+        negativeCharEncodings = new byte[128][];
+        for (int i = 0; i < 128; i++)
+            negativeCharEncodings[i] =
+                    String.valueOf((char) (byte) (i | 0x80)).getBytes(charset);
+    }
+
+    OutputSink(OutputStream out) {
+        this(out, DEFAULT_FLUSH_THRESHOLD, Charset.defaultCharset());
+    }
+
+    /**
+     * Writes everything buffered so far to the underlying stream.
+     */
+    void flush() {
+        try {
+            out.write(buffer, 0, length);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            length = 0;
+        }
+    }
+
+    private void flushIfFull() {
+        if (length >= flushThreshold)
+            flush();
+    }
+
+    private void appendLineSeparator() {
+        for (byte b : lineSeparator)
+            buffer[length++] = b;
+    }
+
+    /**
+     * outputc: the payload as a char, with no new line.
+     */
+    void writeChar(byte payload) {
+        if (payload >= 0) {
+            buffer[length++] = payload;
+        } else {
+            for (byte b : negativeCharEncodings[payload & 0x7f])
+                buffer[length++] = b;
+        }
+
+        flushIfFull();
+    }
+
+    /**
+     * outputd: the unsigned payload in decimal and a new line.
+     */
+    void writeDecimalLine(byte payload) {
+        int value = payload & 0xff;
+
+        if (value >= 100)
+            buffer[length++] = (byte) ('0' + value / 100);
+        if (value >= 10)
+            buffer[length++] = (byte) ('0' + value / 10 % 10);
+        buffer[length++] = (byte) ('0' + value % 10);
+
+        appendLineSeparator();
+        flushIfFull();
+    }
+
+    /**
+     * outputx and outputX: the unsigned payload in hexadecimal with no
+     * leading zeroes and a new line.
+     *
+     * @param upperCase whether to use uppercase digits
+     */
+    void writeHexLine(byte payload, boolean upperCase) {
+        byte[] digits = upperCase ? UPPER_HEX_DIGITS : LOWER_HEX_DIGITS;
+        int value = payload & 0xff;
+
+        if (value >= 0x10)
+            buffer[length++] = digits[value >>> 4];
+        buffer[length++] = digits[value & 0xf];
+
+        appendLineSeparator();
+        flushIfFull();
+    }
+
+    /**
+     * outputb: the payload as 8 binary digits and a new line.
+     */
+    void writeBinaryLine(byte payload) {
+        for (int bit = 7; bit >= 0; bit--)
+            buffer[length++] = (byte) ('0' + ((payload >>> bit) & 1));
+
+        appendLineSeparator();
+        flushIfFull();
+    }
+}
@@ -0,0 +1,465 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the sticker permutations a RubiksCube can be twisted into. A cube
+ * stores which of these states it is in as a single int instead of moving its
+ * Nodes around, and turning it is a lookup in a transition table that is
+ * filled in the first time a (state, move) pair is seen.
+ * <p>
+ * A state maps each position in the layout documented in RubiksCube to the
+ * slot of the Node that is currently there, so position 0 (the read-write
+ * head) of a cube in state s is slot getSlot(s, 0). Moves map positions to
+ * the positions their stickers came from: applying move m to the permutation
+ * p gives the permutation q with q[i] = p[m[i]].
+ * <p>
+ * Moves 0 through 26 are the moves and rotations in Program.MOVE_NAMES, in
+ * that order. More moves, such as the composition of a sequence of moves, can
+ * be added with registerMove. The tables are shared by every cube in the JVM
+ * and are safe to use from multiple threads: lookups never lock, and misses
+ * are filled in under the class lock, which every thread running a cube
+ * contends for until the states and transitions it uses are in the table.
+ * <p>
+ * Every move keeps the stickers of each corner together, so a state is a
+ * permutation of the 8 corners plus how far each is twisted, and there are
+ * 8! * 3^8 of them: too many to intern all. Only the first
+ * MAX_INTERNED_STATES states are interned, which bounds the tables at
+ * MAX_INTERNED_STATES permutations plus one row of as many transitions per
+ * move (and moves are only registered for the distinct runs of moves in the
+ * programs loaded). Any other state's ID is MAX_INTERNED_STATES plus its
+ * index among all the permutations of corners and twists, so it needs no
+ * table: its slots are worked out from the index without allocating, and
+ * moves on it are composed each time without taking the lock.
+ */
+final class PermutationTable {
+
+    static final int IDENTITY = 0;
+    static final int NUM_STICKERS = 24;
+    static final int NUM_BASIC_MOVES = 27;
+    // the system property rubiktreelang.maxInternedStates lowers the cap, so
+    // that tests reach states past it without visiting 65536 states first
+    static final int MAX_INTERNED_STATES = Math.max(1, Integer.getInteger(
+            "rubiktreelang.maxInternedStates", 1 << 16));
+
+    // the stickers of each corner, in an order that every move keeps: a move
+    // takes them to another corner's stickers, turned cyclically
+    private static final byte[][] CORNERS = {{0, 1, 20}, {2, 3, 18},
+            {4, 21, 17}, {15, 5, 12}, {7, 6, 13}, {14, 9, 8}, {16, 11, 10},
+            {23, 19, 22}};
+    private static final int NUM_CORNERS = 8;
+    private static final int NUM_TWISTS = 6561; // 3^8
+    // 7!, 6!, ..., 0!: the place values of the digits of a Lehmer code
+    private static final int[] PLACE_VALUES = {5040, 720, 120, 24, 6, 2, 1,
+            1};
+    // sticker -> its corner, and its place in that corner's stickers
+    private static final byte[] CORNER_OF = new byte[NUM_STICKERS];
+    private static final byte[] TWIST_OF = new byte[NUM_STICKERS];
+
+    /**
+     * An interned permutation. The fields are final so that a state read
+     * through a data race is still seen fully constructed.
+     */
+    private static final class Permutation {
+        final byte[] slots;
+        final int rwSlot;
+
+        Permutation(byte[] slots) {
+            this.slots = slots;
+            rwSlot = slots[0];
+        }
+    }
+
+    // interned state ID -> permutation
+    private static volatile Permutation[] states = new Permutation[64];
+    private static volatile int numStates = 0;
+    private static final Map<String, Integer> stateIDs =
+            new ConcurrentHashMap<>();
+
+    // move ID -> permutation
+    private static volatile byte[][] moves = new byte[NUM_BASIC_MOVES][];
+    private static int numMoves = 0;
+    private static final Map<String, Integer> moveIDs = new HashMap<>();
+
+    // move ID -> interned state ID -> 1 + ID of the state the move leads to,
+    // or 0 if the transition has not been looked up yet
+    private static volatile int[][] transitions = new int[NUM_BASIC_MOVES][0];
+
+    static {
+        for (int corner = 0; corner < NUM_CORNERS; corner++) {
+            for (int twist = 0; twist < 3; twist++) {
+                CORNER_OF[CORNERS[corner][twist]] = (byte) corner;
+                TWIST_OF[CORNERS[corner][twist]] = (byte) twist;
+            }
+        }
+
+        byte[] identity = new byte[NUM_STICKERS];
+        for (int i = 0; i < NUM_STICKERS; i++)
+            identity[i] = (byte) i;
+        internState(identity);
+
+        for (char face : "ULFRBD".toCharArray()) {
+            byte[] quarter = identity;
+            for (int[] cycle : RubiksCube.getCycles(face))
+                quarter = compose(quarter, cycleMove(cycle));
+
+            byte[] half = compose(quarter, quarter);
+            registerMove(quarter);
+            registerMove(half);
+            registerMove(compose(half, quarter));
+        }
+
+        // x is R L', y is U D', and z is F B'
+        for (String rotation : new String[]{"RL", "UD", "FB"}) {
+            byte[] quarter = compose(moveOf(basicMove(rotation.charAt(0), 1)),
+                    moveOf(basicMove(rotation.charAt(1), -1)));
+
+            byte[] half = compose(quarter, quarter);
+            registerMove(quarter);
+            registerMove(half);
+            registerMove(compose(half, quarter));
+        }
+    }
+
+    private PermutationTable() {
+    }
+
+    /**
+     * @param face which face to turn: can be U, L, F, R, B, or D
+     * @param type number of 90 degree rotations; -1 or 3 can be used for prime
+     * @return the ID of the move
+     */
+    static int basicMove(char face, int type) {
+        int faceIndex = "ULFRBD".indexOf(face);
+        int numRotations = type & 3; // sign-agnostic modulo 4
+
+        if (faceIndex == -1)
+            throw new IllegalArgumentException("Invalid face to turn");
+        if (numRotations == 0)
+            throw new IllegalArgumentException("Turn must not be the identity");
+
+        return 3 * faceIndex + numRotations - 1;
+    }
+
+    /**
+     * Builds the permutation of one four-cycle of a turn: the sticker at
+     * cycle[i - 1] moves to cycle[i], and the sticker at the end of the cycle
+     * moves to its start.
+     */
+    private static byte[] cycleMove(int[] cycle) {
+        byte[] move = new byte[NUM_STICKERS];
+        for (int i = 0; i < NUM_STICKERS; i++)
+            move[i] = (byte) i;
+
+        int cycleSize = cycle.length;
+        for (int i = 0; i < cycleSize; i++)
+            move[cycle[i]] = (byte) cycle[(i + cycleSize - 1) % cycleSize];
+
+        return move;
+    }
+
+    /**
+     * @return the permutation that does first and then second
+     */
+    static byte[] compose(byte[] first, byte[] second) {
+        byte[] result = new byte[NUM_STICKERS];
+        for (int i = 0; i < NUM_STICKERS; i++)
+            result[i] = first[second[i]];
+
+        return result;
+    }
+
+    static boolean isIdentity(byte[] permutation) {
+        for (int i = 0; i < NUM_STICKERS; i++)
+            if (permutation[i] != i)
+                return false;
+
+        return true;
+    }
+
+    /**
+     * @return whether the array holds each of the 24 positions exactly once
+     * and keeps the stickers of each corner together, as every move does
+     */
+    static boolean isPermutation(byte[] permutation) {
+        if (permutation.length != NUM_STICKERS)
+            return false;
+
+        boolean[] seen = new boolean[NUM_STICKERS];
+        for (byte position : permutation) {
+            if (position < 0 || position >= NUM_STICKERS || seen[position])
+                return false;
+            seen[position] = true;
+        }
+
+        return indexOf(permutation) != -1;
+    }
+
+    /**
+     * @param slots a permutation of the 24 positions
+     * @return its index among the permutations that keep each corner's
+     * stickers together, from 0 to 8! * 3^8 - 1, or -1 if it does not
+     */
+    private static int indexOf(byte[] slots) {
+        int[] corners = new int[NUM_CORNERS];
+        int twists = 0;
+        for (int corner = NUM_CORNERS - 1; corner >= 0; corner--) {
+            byte[] positions = CORNERS[corner];
+            int slot = slots[positions[0]];
+            int to = CORNER_OF[slot];
+            int twist = TWIST_OF[slot];
+            for (int i = 1; i < 3; i++)
+                if (slots[positions[i]] != CORNERS[to][(twist + i) % 3])
+                    return -1;
+
+            corners[corner] = to;
+            twists = 3 * twists + twist;
+        }
+
+        // the corners' Lehmer code, as a mixed radix number
+        int rank = 0;
+        for (int i = 0; i < NUM_CORNERS; i++) {
+            int smaller = 0;
+            for (int j = i + 1; j < NUM_CORNERS; j++)
+                if (corners[j] < corners[i])
+                    smaller++;
+            rank = (NUM_CORNERS - i) * rank + smaller;
+        }
+
+        return NUM_TWISTS * rank + twists;
+    }
+
+    /**
+     * @param index an index returned by indexOf
+     * @return the permutation with that index
+     */
+    private static byte[] slotsOfIndex(int index) {
+        int rank = index / NUM_TWISTS;
+        int twists = index % NUM_TWISTS;
+
+        int[] smaller = new int[NUM_CORNERS];
+        for (int i = NUM_CORNERS - 1; i >= 0; i--) {
+            smaller[i] = rank % (NUM_CORNERS - i);
+            rank /= NUM_CORNERS - i;
+        }
+
+        byte[] slots = new byte[NUM_STICKERS];
+        boolean[] used = new boolean[NUM_CORNERS];
+        for (int corner = 0; corner < NUM_CORNERS; corner++) {
+            int to = 0;
+            for (int skipped = 0; used[to] || skipped < smaller[corner]; to++)
+                if (!used[to])
+                    skipped++;
+            used[to] = true;
+
+            int twist = twists % 3;
+            twists /= 3;
+            for (int i = 0; i < 3; i++)
+                slots[CORNERS[corner][i]] = CORNERS[to][(twist + i) % 3];
+        }
+
+        return slots;
+    }
+
+    /**
+     * Equivalent to slotsOfIndex(index)[position], without building the
+     * permutation, so that reading a cube past the interned states does not
+     * allocate.
+     */
+    private static int slotOfIndex(int index, int position) {
+        int rank = index / NUM_TWISTS;
+        int twists = index % NUM_TWISTS;
+        int corner = CORNER_OF[position];
+
+        // the corners before this one take the corners they go to first
+        int used = 0;
+        int to = 0;
+        for (int i = 0; i <= corner; i++) {
+            int smaller = rank / PLACE_VALUES[i] % (NUM_CORNERS - i);
+            to = 0;
+            while ((used & 1 << to) != 0 || smaller-- > 0)
+                to++;
+            used |= 1 << to;
+        }
+
+        for (int i = 0; i < corner; i++)
+            twists /= 3;
+
+        return CORNERS[to][(twists % 3 + TWIST_OF[position]) % 3];
+    }
+
+    /**
+     * Adds a move to the table, or finds it if it is already there.
+     *
+     * @param move a permutation of the 24 positions
+     * @return the move's ID, usable with apply
+     */
+    static synchronized int registerMove(byte[] move) {
+        String key = new String(move, StandardCharsets.ISO_8859_1);
+        Integer id = moveIDs.get(key);
+        if (id != null)
+            return id;
+
+        byte[][] moves = PermutationTable.moves;
+        int[][] transitions = PermutationTable.transitions;
+        if (numMoves == moves.length) {
+            moves = Arrays.copyOf(moves, 2 * numMoves);
+            transitions = Arrays.copyOf(transitions, 2 * numMoves);
+        }
+
+        moves[numMoves] = move.clone();
+        transitions[numMoves] = new int[0];
+        PermutationTable.moves = moves;
+        PermutationTable.transitions = transitions;
+
+        moveIDs.put(key, numMoves);
+        return numMoves++;
+    }
+
+    /**
+     * @return a copy of the permutation of a registered move
+     */
+    static byte[] moveOf(int move) {
+        return moves[move].clone();
+    }
+
+    /**
+     * @param slots a permutation, as checked by isPermutation, that is not
+     *              changed afterwards
+     * @return the ID of the state, which is interned if the table is not
+     * full
+     */
+    private static int internState(byte[] slots) {
+        String key = new String(slots, StandardCharsets.ISO_8859_1);
+        Integer id = stateIDs.get(key);
+        if (id != null)
+            return id;
+
+        // once the table is full it never changes again, but the state may
+        // have been the last one added since it was looked up
+        if (numStates == MAX_INTERNED_STATES) {
+            id = stateIDs.get(key);
+            return id != null ? id : MAX_INTERNED_STATES + indexOf(slots);
+        }
+
+        return addState(key, slots);
+    }
+
+    private static synchronized int addState(String key, byte[] slots) {
+        Integer id = stateIDs.get(key);
+        if (id != null)
+            return id;
+        if (numStates == MAX_INTERNED_STATES)
+            return MAX_INTERNED_STATES + indexOf(slots);
+
+        Permutation[] states = PermutationTable.states;
+        if (numStates == states.length)
+            states = Arrays.copyOf(states, 2 * numStates);
+
+        int state = numStates;
+        states[state] = new Permutation(slots);
+        PermutationTable.states = states;
+
+        stateIDs.put(key, state);
+        numStates = state + 1;
+        return state;
+    }
+
+    /**
+     * @return a copy of the permutation of a state, which unlike its ID is
+     * the same in every run
+     */
+    static byte[] slotsOf(int state) {
+        return stateOf(state).slots.clone();
+    }
+
+    /**
+     * Finds the state with the given permutation, adding it to the table if
+     * no cube has been in it yet and the table is not full.
+     *
+     * @param slots a permutation, as checked by isPermutation
+     * @return the state's ID
+     */
+    static int stateWithSlots(byte[] slots) {
+        return internState(slots.clone());
+    }
+
+    private static Permutation stateOf(int state) {
+        if (state >= MAX_INTERNED_STATES)
+            return new Permutation(slotsOfIndex(state - MAX_INTERNED_STATES));
+
+        Permutation[] states = PermutationTable.states;
+        Permutation permutation = state < states.length ? states[state] : null;
+        if (permutation != null)
+            return permutation;
+
+        synchronized (PermutationTable.class) {
+            return PermutationTable.states[state];
+        }
+    }
+
+    /**
+     * @param state    a state ID
+     * @param position a position in the layout documented in RubiksCube
+     * @return the slot of the Node at that position when in the state
+     */
+    static int getSlot(int state, int position) {
+        if (state >= MAX_INTERNED_STATES)
+            return slotOfIndex(state - MAX_INTERNED_STATES, position);
+
+        return stateOf(state).slots[position];
+    }
+
+    /**
+     * Equivalent to getSlot(state, 0).
+     */
+    static int getRWSlot(int state) {
+        // position 0 is the first sticker of corner 0, which goes to the
+        // corner given by the top digit of the Lehmer code, twisted by the
+        // bottom digit of the twists
+        if (state >= MAX_INTERNED_STATES) {
+            int index = state - MAX_INTERNED_STATES;
+            return CORNERS[index / (PLACE_VALUES[0] * NUM_TWISTS)][index % 3];
+        }
+
+        return stateOf(state).rwSlot;
+    }
+
+    /**
+     * @param state a state ID
+     * @param move  a move ID
+     * @return the ID of the state a cube in the given state is in after the
+     * move
+     */
+    static int apply(int state, int move) {
+        if (state >= MAX_INTERNED_STATES)
+            return internState(compose(stateOf(state).slots, moves[move]));
+
+        int[] row = transitions[move];
+        if (row != null && state < row.length) {
+            int next = row[state];
+            if (next != 0)
+                return next - 1;
+        }
+
+        return applyAndRecord(state, move);
+    }
+
+    private static synchronized int applyAndRecord(int state, int move) {
+        int next = internState(compose(stateOf(state).slots, moves[move]));
+
+        int[][] transitions = PermutationTable.transitions;
+        int[] row = transitions[move];
+        if (state >= row.length)
+            row = Arrays.copyOf(row, Math.max(2 * row.length,
+                    Math.max(state + 1, 16)));
+
+        row[state] = next + 1;
+        transitions[move] = row;
+        PermutationTable.transitions = transitions;
+
+        return next;
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts what a program does while the Interpreter runs it with --profile:
+ * how many times each instruction runs, how long the input and output
+ * commands take and how many cubes v and ptc create. Counts per opcode and
+ * per loop are worked out from the counts per instruction afterwards, so
+ * counting costs one array increment per instruction.
+ * <p>
+ * A loop is a pair of brackets. It is entered each time its open bracket is
+ * reached without skipping it, and goes around once each time its close
+ * bracket runs, so both counts come from the counts of its brackets. A
+ * superinstruction counts as one instruction, except that the [ of the block
+ * a DISPATCH jumps into is counted too, since that block was entered.
+ */
+final class Profile {
+
+    // how many instructions and loops the report lists
+    private static final int TEXT_REPORT_SIZE = 20;
+    private static final int JSON_REPORT_SIZE = 100;
+
+    private final Program program;
+    private final long[] counts; // times each instruction ran
+    private long ioNanos;
+    private long cubesCreatedByDown;
+    private long cubesCreatedByPtc;
+    private long startNanos;
+    private long nanos;
+
+    /**
+     * @param program the program that is going to be profiled
+     */
+    Profile(Program program) {
+        this.program = program;
+        counts = new long[program.length()];
+    }
+
+    /**
+     * @return whether the time taken by an opcode is counted as I/O
+     */
+    static boolean isIO(int opcode) {
+        return opcode >= Program.INPUTB && opcode <= Program.OUTPUTX_UPPER;
+    }
+
+    void start() {
+        startNanos = System.nanoTime();
+    }
+
+    void stop() {
+        nanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Counts a run of the instruction at pc.
+     */
+    void count(int pc) {
+        counts[pc]++;
+    }
+
+    void addIOTime(long nanos) {
+        ioNanos += nanos;
+    }
+
+    /**
+     * @param opcode  DOWN or PTC
+     * @param created how many cubes the instruction created
+     */
+    void addCubes(int opcode, int created) {
+        if (opcode == Program.DOWN)
+            cubesCreatedByDown += created;
+        else
+            cubesCreatedByPtc += created;
+    }
+
+    /**
+     * A loop and what it cost.
+     */
+    private static final class Loop {
+        final int open;
+        final int close;
+        final long entries;
+        final long iterations;
+        final long instructions; // run inside the loop, brackets included
+
+        Loop(int open, int close, long entries, long iterations,
+             long instructions) {
+            this.open = open;
+            this.close = close;
+            this.entries = entries;
+            this.iterations = iterations;
+            this.instructions = instructions;
+        }
+    }
+
+    private long totalInstructions() {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+
+        return total;
+    }
+
+    private long[] countsPerOpcode() {
+        long[] perOpcode = new long[Program.NUM_OPCODES];
+        for (int pc = 0; pc < counts.length; pc++)
+            perOpcode[program.getOpcode(pc)] += counts[pc];
+
+        return perOpcode;
+    }
+
+    private long ioCommands() {
+        long[] perOpcode = countsPerOpcode();
+        long total = 0;
+        for (int opcode = 0; opcode < perOpcode.length; opcode++)
+            if (isIO(opcode))
+                total += perOpcode[opcode];
+
+        return total;
+    }
+
+    /**
+     * @return opcodes that ran, most run first
+     */
+    private Integer[] rankedOpcodes(long[] perOpcode) {
+        List<Integer> opcodes = new ArrayList<>();
+        for (int opcode = 0; opcode < perOpcode.length; opcode++)
+            if (perOpcode[opcode] > 0)
+                opcodes.add(opcode);
+
+        opcodes.sort((a, b) -> Long.compare(perOpcode[b], perOpcode[a]));
+        return opcodes.toArray(new Integer[0]);
+    }
+
+    /**
+     * @return the pcs of the instructions run most, most run first
+     */
+    private int[] hottestInstructions(int limit) {
+        Integer[] pcs = new Integer[counts.length];
+        int numRun = 0;
+        for (int pc = 0; pc < counts.length; pc++)
+            if (counts[pc] > 0)
+                pcs[numRun++] = pc;
+
+        Arrays.sort(pcs, 0, numRun,
+                (a, b) -> Long.compare(counts[b], counts[a]));
+
+        int[] hottest = new int[Math.min(limit, numRun)];
+        for (int i = 0; i < hottest.length; i++)
+            hottest[i] = pcs[i];
+
+        return hottest;
+    }
+
+    /**
+     * @return the loops that ran the most instructions, most first
+     */
+    private List<Loop> hottestLoops(int limit) {
+        // instructions run before each pc
+        long[] runBefore = new long[counts.length + 1];
+        for (int pc = 0; pc < counts.length; pc++)
+            runBefore[pc + 1] = runBefore[pc] + counts[pc];
+
+        List<Loop> loops = new ArrayList<>();
+        for (int open = 0; open < counts.length; open++) {
+            if (!Program.isOpenBracket(program.getOpcode(open))
+                    || counts[open] == 0)
+                continue;
+
+            int close = program.getOperand(open);
+            long iterations = counts[close];
+            loops.add(new Loop(open, close, counts[open] - iterations,
+                    iterations, runBefore[close + 1] - runBefore[open]));
+        }
+
+        loops.sort((a, b) -> Long.compare(b.instructions, a.instructions));
+        return loops.subList(0, Math.min(limit, loops.size()));
+    }
+
+    private static String percent(long part, long whole) {
+        return String.format("%5.1f%%", whole == 0 ? 0.0
+                : 100.0 * part / whole);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+
+    /**
+     * @return where an instruction came from, for a person to read
+     */
+    private String describe(int pc) {
+        return "pc " + program.getSourcePc(pc) + ": "
+                + program.getSourceText(pc);
+    }
+
+    /**
+     * @return a ranked report of where the program spent its time
+     */
+    String report() {
+        long total = totalInstructions();
+        long[] perOpcode = countsPerOpcode();
+        StringBuilder report = new StringBuilder();
+        String newline = System.lineSeparator();
+
+        report.append("Ran ").append(total).append(" instructions in ")
+                .append(millis(nanos)).append(newline);
+        report.append("I/O: ").append(ioCommands()).append(" commands in ")
+                .append(millis(ioNanos)).append(newline);
+        report.append("Cubes created: ").append(cubesCreatedByDown)
+                .append(" by v, ").append(cubesCreatedByPtc)
+                .append(" by ptc").append(newline);
+        report.append(program.getSuperinstructionReport()).append(newline);
+
+        report.append(newline).append("Opcodes:").append(newline);
+        for (int opcode : rankedOpcodes(perOpcode))
+            report.append(String.format("%14d %s  %s", perOpcode[opcode],
+                    percent(perOpcode[opcode], total),
+                    Program.getOpcodeName(opcode))).append(newline);
+
+        report.append(newline).append("Hottest instructions:")
+                .append(newline);
+        for (int pc : hottestInstructions(TEXT_REPORT_SIZE))
+            report.append(String.format("%14d %s  %s", counts[pc],
+                    percent(counts[pc], total), describe(pc)))
+                    .append(newline);
+
+        report.append(newline).append("Hottest loops (instructions, "
+                + "iterations, entries):").append(newline);
+        for (Loop loop : hottestLoops(TEXT_REPORT_SIZE))
+            report.append(String.format("%14d %s %12d %10d  %s to %s",
+                    loop.instructions, percent(loop.instructions, total),
+                    loop.iterations, loop.entries, describe(loop.open),
+                    describe(loop.close))).append(newline);
+
+        return report.toString();
+    }
+
+    /**
+     * @return the same report as a JSON object
+     */
+    String toJson() {
+        long total = totalInstructions();
+        long[] perOpcode = countsPerOpcode();
+        StringBuilder json = new StringBuilder("{\n");
+
+        json.append("  \"instructions\": ").append(total).append(",\n");
+        json.append("  \"nanoseconds\": ").append(nanos).append(",\n");
+        json.append("  \"ioCommands\": ").append(ioCommands()).append(",\n");
+        json.append("  \"ioNanoseconds\": ").append(ioNanos).append(",\n");
+        json.append("  \"cubesCreated\": {\"v\": ").append(cubesCreatedByDown)
+                .append(", \"ptc\": ").append(cubesCreatedByPtc)
+                .append("},\n");
+        json.append("  \"superinstructions\": {\"dispatch\": ")
+                .append(program.getNumSuperinstructions(Program.DISPATCH))
+                .append(", \"+chain\": ").append(program
+                        .getNumSuperinstructions(Program.INCREMENT_CHAIN))
+                .append(", \"-chain\": ").append(program
+                        .getNumSuperinstructions(Program.DECREMENT_CHAIN))
+                .append("},\n");
+
+        json.append("  \"opcodes\": [");
+        String separator = "\n";
+        for (int opcode : rankedOpcodes(perOpcode)) {
+            json.append(separator).append("    {\"opcode\": ")
+                    .append(quote(Program.getOpcodeName(opcode)))
+                    .append(", \"count\": ").append(perOpcode[opcode])
+                    .append('}');
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+
+        json.append("  \"hottestInstructions\": [");
+        separator = "\n";
+        for (int pc : hottestInstructions(JSON_REPORT_SIZE)) {
+            json.append(separator).append("    {");
+            appendInstruction(json, pc);
+            json.append(", \"count\": ").append(counts[pc]).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+
+        json.append("  \"hottestLoops\": [");
+        separator = "\n";
+        for (Loop loop : hottestLoops(JSON_REPORT_SIZE)) {
+            json.append(separator).append("    {\"open\": {");
+            appendInstruction(json, loop.open);
+            json.append("}, \"close\": {");
+            appendInstruction(json, loop.close);
+            json.append("}, \"instructions\": ").append(loop.instructions)
+                    .append(", \"iterations\": ").append(loop.iterations)
+                    .append(", \"entries\": ").append(loop.entries)
+                    .append('}');
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+
+        return json.toString();
+    }
+
+    private void appendInstruction(StringBuilder json, int pc) {
+        json.append("\"pc\": ").append(pc).append(", \"sourcePc\": ")
+                .append(program.getSourcePc(pc)).append(", \"source\": ")
+                .append(quote(program.getSourceText(pc)));
+    }
+
+    private static String quote(String string) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,879 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A RubikTreeLang program decoded ahead of time from the tokens produced by
+ * Lexer. Each instruction is an int opcode with an int
+ * operand that has already been parsed (set arguments, move indices, etc.), so
+ * the Interpreter never has to hash or parse a String while running.
+ * <p>
+ * Instruction indices are not token indices since arguments like the 25 in
+ * "setd 25" are folded into their command's operand. getSourcePc maps an
+ * instruction back to the token it came from for the Visualizer, and getPc
+ * maps a token to the instruction decoded from it.
+ * <p>
+ * Runs of consecutive moves are fused into a single move while decoding, so
+ * "F x" turns a cube once. Brackets are matched once while decoding, so
+ * entering, skipping, or repeating a loop is a single jump no matter how
+ * deeply loops are nested.
+ * <p>
+ * The Converter writes some shapes of code over and over, so the decoder
+ * also looks for those and puts a superinstruction in place of the [ that
+ * starts each one, which does what the whole shape does in one step:
+ * <ul>
+ * <li>DISPATCH starts a [ ... ] g-- block followed by another [ block, as in
+ * the chains of 24 blocks that run one block chosen by the global byte. It
+ * skips every block up to the one the global byte counts down to at once,
+ * instead of testing and decrementing through them one at a time.</li>
+ * <li>INCREMENT_CHAIN and DECREMENT_CHAIN start the chain of 24
+ * [ ptg g++ gtp gsetd 24 ] g-- blocks (or g--) that the unoptimized
+ * Converter writes for + and -, and run the whole chain.</li>
+ * </ul>
+ * A superinstruction is still an open bracket whose partner is the ] of the
+ * [ it replaced, and the instructions of the shape are left after it, so
+ * jumps into the shape still work and anything that does not know about
+ * superinstructions (like BytecodeCompiler) can treat it as a [. .rtlc files
+ * store it as a [ and it is matched again when they are loaded. The
+ * Interpreter can be told to run superinstructions as the [ they stand for,
+ * which the Visualizer does so that it steps through every instruction.
+ * <p>
+ * A Program can also be saved to and loaded from a binary .rtlc file (see
+ * RtlcFile), which may leave out the source map. The source map of a program
+ * loaded from one is only read from the file if something asks for it, and a
+ * program saved without one is shown as one disassembled token per
+ * instruction instead.
+ * <p>
+ * A Program never changes once it is decoded, so one can be shared by any
+ * number of Interpreters running it at the same time on different threads.
+ * Each Interpreter keeps all of its own state.
+ */
+public class Program {
+
+    /***** Opcodes *****/
+
+    static final int NOP = 0;
+    static final int ERROR = 1; // operand indexes into errors
+    static final int SET = 2; // operand is the byte to set
+    static final int GSET = 3;
+    static final int GTP = 4;
+    static final int PTG = 5;
+    static final int INPUTB = 6;
+    static final int INPUTC = 7;
+    static final int INPUTD = 8;
+    static final int INPUTX = 9;
+    static final int OUTPUTB = 10;
+    static final int OUTPUTC = 11;
+    static final int OUTPUTD = 12;
+    static final int OUTPUTX_LOWER = 13;
+    static final int OUTPUTX_UPPER = 14;
+    static final int ADD = 15;
+    static final int SUBTRACT = 16;
+    static final int MULTIPLY = 17;
+    static final int DIVIDE = 18;
+    static final int MOD = 19;
+    // Every open bracket opcode is even and is one less than its close
+    // bracket's opcode. The operand of a bracket is the pc of its partner.
+    static final int OPEN_GLOBAL_NONZERO = 20; // {
+    static final int CLOSE_GLOBAL_NONZERO = 21; // }
+    static final int OPEN_GLOBAL_ZERO = 22; // [
+    static final int CLOSE_GLOBAL_ZERO = 23; // ]
+    static final int OPEN_LOCAL_NONZERO = 24; // <
+    static final int CLOSE_LOCAL_NONZERO = 25; // >
+    static final int OPEN_LOCAL_ZERO = 26; // (
+    static final int CLOSE_LOCAL_ZERO = 27; // )
+    static final int DOWN = 28;
+    static final int UP = 29;
+    static final int PTC = 30;
+    static final int CTP = 31;
+    static final int GLOBAL_INCREMENT = 32;
+    static final int GLOBAL_DECREMENT = 33;
+    static final int MOVE = 34; // operand is a PermutationTable move ID
+    // Superinstructions, which stand in for a [ and so have the same operand
+    static final int DISPATCH = 35;
+    static final int INCREMENT_CHAIN = 36;
+    static final int DECREMENT_CHAIN = 37;
+    static final int NUM_OPCODES = 38;
+
+    // how many blocks INCREMENT_CHAIN and DECREMENT_CHAIN stand for, and how
+    // many instructions that is
+    static final int CHAIN_BLOCKS = 24;
+    static final int CHAIN_LENGTH = 7 * CHAIN_BLOCKS;
+
+    /**
+     * Every move and whole cube rotation, indexed by move index. A move index
+     * is 3 * (index of the face in MOVE_FACES) + (0 for a clockwise quarter
+     * turn, 1 for a half turn, 2 for a counterclockwise quarter turn), and is
+     * also the move's ID in PermutationTable.
+     */
+    static final String[] MOVE_NAMES = {
+            "U", "U2", "U'", "L", "L2", "L'", "F", "F2", "F'",
+            "R", "R2", "R'", "B", "B2", "B'", "D", "D2", "D'",
+            "x", "x2", "x'", "y", "y2", "y'", "z", "z2", "z'"};
+
+    static final String MOVE_FACES = "ULFRBDxyz";
+
+    // opcodes of the commands that take no argument
+    private static final Map<String, Integer> SIMPLE_OPCODES =
+            createSimpleOpcodeMap();
+
+    // opcodes of the commands that take one argument
+    private static final Map<String, Integer> ARGUMENT_OPCODES =
+            createArgumentOpcodeMap();
+
+    // a single copy of each command and move, for Decoder to keep
+    private static final Map<String, String> CANONICAL_TOKENS =
+            createCanonicalTokenMap();
+
+    // a command for each opcode, indexed by opcode
+    private static final String[] OPCODE_NAMES = createOpcodeNames();
+
+    /**
+     * The tokens a program was decoded from, and which of them each
+     * instruction was decoded from.
+     */
+    static final class SourceMap {
+        final String[] tokens;
+        final int[] sourcePcs; // one longer than the program
+
+        SourceMap(String[] tokens, int[] sourcePcs) {
+            this.tokens = tokens;
+            this.sourcePcs = sourcePcs;
+        }
+    }
+
+    private volatile SourceMap sourceMap; // created on first use if null
+    // null once it has been used; guarded by this
+    private Supplier<SourceMap> sourceMapReader;
+    private final boolean hasSourceMap;
+    private final int[] opcodes;
+    private final int[] operands;
+    private final RuntimeException[] errors;
+
+    // number of move tokens, and number of move instructions left after runs
+    // of them were fused
+    private final int numMoves;
+    private final int numFusedMoves;
+
+    // number of each superinstruction, indexed by opcode - DISPATCH
+    private final int[] numSuperinstructions;
+
+    /**
+     * For Decoder, and for RtlcFile, which has already checked that the
+     * brackets match. Superinstructions are matched here, so opcodes must
+     * not already have any.
+     *
+     * @param sourceMapReader creates the source map when it is first needed,
+     *                        or null if the program has no source map
+     */
+    Program(Supplier<SourceMap> sourceMapReader, int[] opcodes,
+            int[] operands, RuntimeException[] errors, int numMoves,
+            int numFusedMoves) {
+        this.sourceMapReader = sourceMapReader != null ? sourceMapReader
+                : this::disassemble;
+        hasSourceMap = sourceMapReader != null;
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.errors = errors;
+        this.numMoves = numMoves;
+        this.numFusedMoves = numFusedMoves;
+        numSuperinstructions = matchSuperinstructions(opcodes, operands);
+    }
+
+    private static Map<String, Integer> createSimpleOpcodeMap() {
+        Map<String, Integer> opcodeMap = new HashMap<>();
+
+        opcodeMap.put("gtp", GTP);
+        opcodeMap.put("ptg", PTG);
+        opcodeMap.put("inputb", INPUTB);
+        opcodeMap.put("inputc", INPUTC);
+        opcodeMap.put("inputd", INPUTD);
+        opcodeMap.put("inputx", INPUTX);
+        opcodeMap.put("outputb", OUTPUTB);
+        opcodeMap.put("outputc", OUTPUTC);
+        opcodeMap.put("outputd", OUTPUTD);
+        opcodeMap.put("outputx", OUTPUTX_LOWER);
+        opcodeMap.put("outputX", OUTPUTX_UPPER);
+        opcodeMap.put("+", ADD);
+        opcodeMap.put("-", SUBTRACT);
+        opcodeMap.put("*", MULTIPLY);
+        opcodeMap.put("/", DIVIDE);
+        opcodeMap.put("%", MOD);
+        opcodeMap.put("{", OPEN_GLOBAL_NONZERO);
+        opcodeMap.put("}", CLOSE_GLOBAL_NONZERO);
+        opcodeMap.put("[", OPEN_GLOBAL_ZERO);
+        opcodeMap.put("]", CLOSE_GLOBAL_ZERO);
+        opcodeMap.put("<", OPEN_LOCAL_NONZERO);
+        opcodeMap.put(">", CLOSE_LOCAL_NONZERO);
+        opcodeMap.put("(", OPEN_LOCAL_ZERO);
+        opcodeMap.put(")", CLOSE_LOCAL_ZERO);
+        opcodeMap.put("v", DOWN);
+        opcodeMap.put("^", UP);
+        opcodeMap.put("ptc", PTC);
+        opcodeMap.put("ctp", CTP);
+        opcodeMap.put("g++", GLOBAL_INCREMENT);
+        opcodeMap.put("g--", GLOBAL_DECREMENT);
+
+        // There should not be empty strings in the instruction array but if
+        // there are, then do nothing
+        opcodeMap.put("", NOP);
+
+        return opcodeMap;
+    }
+
+    private static Map<String, Integer> createArgumentOpcodeMap() {
+        Map<String, Integer> opcodeMap = new HashMap<>();
+
+        opcodeMap.put("setc", SET);
+        opcodeMap.put("setd", SET);
+        opcodeMap.put("setx", SET);
+        opcodeMap.put("gsetc", GSET);
+        opcodeMap.put("gsetd", GSET);
+        opcodeMap.put("gsetx", GSET);
+
+        return opcodeMap;
+    }
+
+    private static String[] createOpcodeNames() {
+        String[] names = new String[NUM_OPCODES];
+        for (Map.Entry<String, Integer> entry : SIMPLE_OPCODES.entrySet())
+            names[entry.getValue()] = entry.getKey();
+        names[ERROR] = "error";
+        names[SET] = "setd";
+        names[GSET] = "gsetd";
+        names[MOVE] = "move";
+        names[DISPATCH] = "dispatch";
+        names[INCREMENT_CHAIN] = "+chain";
+        names[DECREMENT_CHAIN] = "-chain";
+
+        return names;
+    }
+
+    private static Map<String, String> createCanonicalTokenMap() {
+        Map<String, String> tokenMap = new HashMap<>();
+
+        for (String token : SIMPLE_OPCODES.keySet())
+            tokenMap.put(token, token);
+        for (String token : ARGUMENT_OPCODES.keySet())
+            tokenMap.put(token, token);
+        for (String token : MOVE_NAMES)
+            tokenMap.put(token, token);
+
+        return tokenMap;
+    }
+
+    /**
+     * Parses the argument of a set command the same way regardless of whether
+     * the payload or the global byte is being set.
+     *
+     * @param command  the set command, which ends in c, d, or x
+     * @param argument the token following the command
+     * @return the byte to set, widened to an int
+     */
+    private static int decodeSetArgument(String command, String argument) {
+        switch (command.charAt(command.length() - 1)) {
+            case 'c':
+                return (byte) argument.charAt(0);
+            case 'd':
+                // can cause overflow and throw an exception
+                return (byte) Integer.parseInt(argument);
+            default:
+                return Integer.decode("0x" + argument).byteValue();
+        }
+    }
+
+    /**
+     * Recreates an error that decoding found, from its class name and
+     * message. Only the exceptions Decoder throws or records are recreated,
+     * so that a name read from a file cannot make this load any other class.
+     *
+     * @param className name of the error's class
+     * @param message   the error's message
+     * @return the error, or null if decoding never finds one of that class
+     */
+    static RuntimeException newError(String className, String message) {
+        switch (className == null ? "" : className) {
+            case "java.lang.NumberFormatException":
+                return new NumberFormatException(message);
+            case "java.lang.UnsupportedOperationException":
+                return new UnsupportedOperationException(message);
+            case "java.lang.ArrayIndexOutOfBoundsException":
+                return new ArrayIndexOutOfBoundsException(message);
+            case "java.lang.StringIndexOutOfBoundsException":
+                return new StringIndexOutOfBoundsException(message);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return every command and move, which Lexer shares instead of copying
+     */
+    static Collection<String> getCanonicalTokens() {
+        return CANONICAL_TOKENS.keySet();
+    }
+
+    /**
+     * Decodes a RubikTreeLang program. Commands that would have failed when
+     * run (unknown commands, missing or malformed arguments) are decoded into
+     * ERROR instructions that throw the same exception once they are reached,
+     * so a bad command only stops a program at the point it would have
+     * stopped before. Error messages give the line and column of the token
+     * at fault.
+     *
+     * @param lexer the program's text, split into tokens
+     * @return the decoded program
+     * @throws IllegalArgumentException if the brackets are unbalanced or a
+     *                                  close bracket is of a different kind
+     *                                  than the open bracket it closes
+     * @throws IOException              if the text cannot be read
+     */
+    static Program decode(Lexer lexer) throws IOException,
+            IllegalArgumentException {
+        Decoder decoder = new Decoder();
+        String token;
+        while ((token = lexer.next()) != null)
+            decoder.add(token, lexer.getLine(), lexer.getColumn());
+
+        return decoder.finish();
+    }
+
+    /**
+     * Decodes a program one token at a time, the same way decode does, so
+     * that a program generated on the fly (like the Converter's output) can
+     * be run without ever existing as text.
+     */
+    static final class Decoder {
+        private String[] tokens;
+        private int numTokens;
+        private int[] opcodes;
+        private int[] operands;
+        private int[] sourcePcs;
+        private int[] lines; // where each token is in the text, if known
+        private int[] columns;
+        private int n; // number of instructions decoded so far
+        private final List<RuntimeException> errors;
+        private String pendingCommand; // a set command waiting for its argument
+
+        Decoder() {
+            int capacity = 1024;
+            tokens = new String[capacity];
+            opcodes = new int[capacity];
+            operands = new int[capacity];
+            sourcePcs = new int[capacity + 1];
+            errors = new ArrayList<>();
+        }
+
+        /**
+         * Decodes the next token of the program, which is at the given line
+         * and column of its text.
+         */
+        void add(String token, int line, int column) {
+            if (lines == null) {
+                lines = new int[tokens.length];
+                columns = new int[tokens.length];
+            } else if (numTokens == lines.length) {
+                lines = Arrays.copyOf(lines, 2 * numTokens);
+                columns = Arrays.copyOf(columns, 2 * numTokens);
+            }
+            lines[numTokens] = line;
+            columns[numTokens] = column;
+
+            add(token);
+        }
+
+        /**
+         * Decodes the next token of the program.
+         */
+        void add(String token) {
+            if (numTokens == tokens.length)
+                tokens = Arrays.copyOf(tokens, 2 * numTokens);
+            int tokenPc = numTokens++;
+
+            if (pendingCommand != null) {
+                // the instruction was started by the command
+                tokens[tokenPc] = token;
+                try {
+                    operands[n - 1] = decodeSetArgument(pendingCommand, token);
+                    opcodes[n - 1] = ARGUMENT_OPCODES.get(pendingCommand);
+                } catch (NumberFormatException e) {
+                    setError(n - 1, lines == null ? e
+                            : new NumberFormatException(e.getMessage()
+                            + " at " + locate(tokenPc, lines, columns)));
+                } catch (RuntimeException e) {
+                    setError(n - 1, e);
+                }
+
+                pendingCommand = null;
+                return;
+            }
+
+            // keep one copy of each command and move
+            String canonical = CANONICAL_TOKENS.get(token);
+            tokens[tokenPc] = canonical != null ? canonical : token;
+
+            if (n == opcodes.length) {
+                opcodes = Arrays.copyOf(opcodes, 2 * n);
+                operands = Arrays.copyOf(operands, 2 * n);
+                sourcePcs = Arrays.copyOf(sourcePcs, 2 * n + 1);
+            }
+            sourcePcs[n] = tokenPc;
+
+            Integer opcode = SIMPLE_OPCODES.get(token);
+            int move = moveIndex(token);
+
+            if (opcode != null) {
+                opcodes[n] = opcode;
+                operands[n] = 0;
+            } else if (ARGUMENT_OPCODES.containsKey(token)) {
+                pendingCommand = token;
+            } else if (move != -1) {
+                opcodes[n] = MOVE;
+                operands[n] = move;
+            } else {
+                setError(n, new UnsupportedOperationException(
+                        "Invalid command '" + token + "' at "
+                        + locate(tokenPc, lines, columns)));
+            }
+
+            n++;
+        }
+
+        private void setError(int pc, RuntimeException e) {
+            opcodes[pc] = ERROR;
+            operands[pc] = errors.size();
+            errors.add(e);
+        }
+
+        /**
+         * @return the decoded program
+         * @throws IllegalArgumentException if the brackets are unbalanced or
+         *                                  a close bracket is of a different
+         *                                  kind than the open bracket it
+         *                                  closes
+         */
+        Program finish() throws IllegalArgumentException {
+            if (pendingCommand != null) {
+                // what reading the argument past the end of the token array
+                // has always thrown
+                setError(n - 1, new ArrayIndexOutOfBoundsException("Index "
+                        + numTokens + " out of bounds for length "
+                        + numTokens));
+                pendingCommand = null;
+            }
+            sourcePcs[n] = numTokens;
+            String[] allTokens = Arrays.copyOf(tokens, numTokens);
+
+            int numMoves = count(opcodes, n, MOVE);
+            int length = fuseMoves(opcodes, operands, sourcePcs, n);
+            int numFusedMoves = count(opcodes, length, MOVE);
+
+            matchBrackets(opcodes, operands, length, allTokens, sourcePcs,
+                    lines, columns);
+
+            SourceMap sourceMap = new SourceMap(allTokens,
+                    Arrays.copyOf(sourcePcs, length + 1));
+            return new Program(() -> sourceMap,
+                    Arrays.copyOf(opcodes, length),
+                    Arrays.copyOf(operands, length),
+                    errors.toArray(new RuntimeException[0]), numMoves,
+                    numFusedMoves);
+        }
+    }
+
+    private static int count(int[] opcodes, int length, int opcode) {
+        int count = 0;
+        for (int pc = 0; pc < length; pc++)
+            if (opcodes[pc] == opcode)
+                count++;
+
+        return count;
+    }
+
+    /**
+     * Collapses every maximal run of consecutive moves into a single move
+     * whose permutation is the composition of the run, and drops runs that
+     * leave the cube the way it was (e.g. R R'). Only the first instruction of
+     * a run can be jumped to, so this never changes what a program does.
+     *
+     * @param opcodes   decoded opcodes, modified in place
+     * @param operands  decoded operands, modified in place
+     * @param sourcePcs source pc of each instruction, modified in place
+     * @param length    number of decoded instructions
+     * @return number of instructions left
+     */
+    private static int fuseMoves(int[] opcodes, int[] operands,
+                                 int[] sourcePcs, int length) {
+        int newLength = 0;
+
+        for (int pc = 0; pc < length; ) {
+            int start = pc;
+
+            if (opcodes[pc] != MOVE) {
+                pc++;
+            } else {
+                byte[] run = PermutationTable.moveOf(operands[pc]);
+                for (pc++; pc < length && opcodes[pc] == MOVE; pc++)
+                    run = PermutationTable.compose(run,
+                            PermutationTable.moveOf(operands[pc]));
+
+                if (pc - start > 1) {
+                    if (PermutationTable.isIdentity(run))
+                        continue;
+
+                    operands[start] = PermutationTable.registerMove(run);
+                }
+            }
+
+            opcodes[newLength] = opcodes[start];
+            operands[newLength] = operands[start];
+            sourcePcs[newLength] = sourcePcs[start];
+            newLength++;
+        }
+
+        sourcePcs[newLength] = sourcePcs[length];
+        return newLength;
+    }
+
+    /**
+     * Puts a superinstruction in place of the [ at the start of each shape
+     * that has one. Chains are matched first, so the [ of a chain is never
+     * a DISPATCH, but the blocks after it are.
+     *
+     * @param opcodes  opcodes with matched brackets, modified in place
+     * @param operands operands with matched brackets
+     * @return number of each superinstruction, indexed by opcode - DISPATCH
+     */
+    private static int[] matchSuperinstructions(int[] opcodes,
+                                                int[] operands) {
+        int[] matched = new int[NUM_OPCODES - DISPATCH];
+
+        for (int pc = 0; pc + CHAIN_LENGTH <= opcodes.length; pc++) {
+            int step = opcodes[pc + 2];
+            if ((step == GLOBAL_INCREMENT || step == GLOBAL_DECREMENT)
+                    && isChain(opcodes, operands, pc, step)) {
+                opcodes[pc] = step == GLOBAL_INCREMENT ? INCREMENT_CHAIN
+                        : DECREMENT_CHAIN;
+                matched[opcodes[pc] - DISPATCH]++;
+                pc += CHAIN_LENGTH - 1;
+            }
+        }
+
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            if (opcodes[pc] != OPEN_GLOBAL_ZERO)
+                continue;
+
+            int next = operands[pc] + 2; // past the ] and the g--
+            if (next < opcodes.length
+                    && opcodes[next - 1] == GLOBAL_DECREMENT
+                    && (opcodes[next] == OPEN_GLOBAL_ZERO
+                    || opcodes[next] >= DISPATCH)) {
+                opcodes[pc] = DISPATCH;
+                matched[0]++;
+            }
+        }
+
+        return matched;
+    }
+
+    /**
+     * @param step GLOBAL_INCREMENT or GLOBAL_DECREMENT
+     * @return whether a chain of [ ptg step gtp gsetd 24 ] g-- blocks starts
+     * at pc
+     */
+    private static boolean isChain(int[] opcodes, int[] operands, int pc,
+                                   int step) {
+        for (int block = pc; block < pc + CHAIN_LENGTH; block += 7)
+            if (opcodes[block] != OPEN_GLOBAL_ZERO
+                    || operands[block] != block + 5
+                    || opcodes[block + 1] != PTG
+                    || opcodes[block + 2] != step
+                    || opcodes[block + 3] != GTP
+                    || opcodes[block + 4] != GSET
+                    || operands[block + 4] != CHAIN_BLOCKS
+                    || opcodes[block + 6] != GLOBAL_DECREMENT)
+                return false;
+
+        return true;
+    }
+
+    /**
+     * @param opcode an opcode
+     * @return a command with that opcode (e.g. "setd" for SET), or "move" or
+     * "error" for those, "" for NOP, or the name of a superinstruction
+     */
+    static String getOpcodeName(int opcode) {
+        return OPCODE_NAMES[opcode];
+    }
+
+    /**
+     * @return the opcode an instruction was decoded with, which is [ for a
+     * superinstruction
+     */
+    static int plainOpcode(int opcode) {
+        return opcode >= DISPATCH ? OPEN_GLOBAL_ZERO : opcode;
+    }
+
+    static boolean isOpenBracket(int opcode) {
+        return (opcode >= OPEN_GLOBAL_NONZERO && opcode <= CLOSE_LOCAL_ZERO
+                && (opcode & 1) == 0) || opcode >= DISPATCH;
+    }
+
+    static boolean isCloseBracket(int opcode) {
+        return opcode >= OPEN_GLOBAL_NONZERO && opcode <= CLOSE_LOCAL_ZERO
+                && (opcode & 1) == 1;
+    }
+
+    /**
+     * @param tokenPc index of a token
+     * @param lines   line of each token, or null if not known
+     * @param columns column of each token
+     * @return where the token is, for an error message
+     */
+    private static String locate(int tokenPc, int[] lines, int[] columns) {
+        if (lines == null)
+            return "pc = " + tokenPc;
+
+        return "pc = " + tokenPc + " (line " + lines[tokenPc] + ", column "
+                + columns[tokenPc] + ")";
+    }
+
+    /**
+     * Sets the operand of every bracket to the pc of its partner.
+     *
+     * @param opcodes   decoded opcodes
+     * @param operands  decoded operands, modified in place
+     * @param length    number of decoded instructions
+     * @param tokens    source tokens, used for error messages
+     * @param sourcePcs source pc of each instruction, used for error messages
+     * @param lines     line of each token, used for error messages if not
+     *                  null
+     * @param columns   column of each token, used for error messages
+     */
+    private static void matchBrackets(int[] opcodes, int[] operands,
+                                      int length, String[] tokens,
+                                      int[] sourcePcs, int[] lines,
+                                      int[] columns) {
+        int[] openBracketLocations = new int[16];
+        int depth = 0;
+
+        for (int pc = 0; pc < length; pc++) {
+            if (isOpenBracket(opcodes[pc])) {
+                if (depth == openBracketLocations.length)
+                    openBracketLocations =
+                            Arrays.copyOf(openBracketLocations, 2 * depth);
+                openBracketLocations[depth++] = pc;
+            } else if (isCloseBracket(opcodes[pc])) {
+                if (depth == 0)
+                    throw new IllegalArgumentException("Unmatched '"
+                            + tokens[sourcePcs[pc]] + "' at "
+                            + locate(sourcePcs[pc], lines, columns));
+
+                int open = openBracketLocations[--depth];
+                if (opcodes[open] + 1 != opcodes[pc])
+                    throw new IllegalArgumentException("'"
+                            + tokens[sourcePcs[pc]] + "' at "
+                            + locate(sourcePcs[pc], lines, columns)
+                            + " does not match '" + tokens[sourcePcs[open]]
+                            + "' at "
+                            + locate(sourcePcs[open], lines, columns));
+
+                operands[open] = pc;
+                operands[pc] = open;
+            }
+        }
+
+        if (depth != 0) {
+            int open = openBracketLocations[depth - 1];
+            throw new IllegalArgumentException("Unmatched '"
+                    + tokens[sourcePcs[open]] + "' at "
+                    + locate(sourcePcs[open], lines, columns));
+        }
+    }
+
+    /**
+     * @param token a move such as U, R2, or x'
+     * @return the move's index in MOVE_NAMES, or -1 if token is not a move
+     */
+    static int moveIndex(String token) {
+        if (token.isEmpty() || token.length() > 2)
+            return -1;
+
+        int face = MOVE_FACES.indexOf(token.charAt(0));
+        if (face == -1)
+            return -1;
+
+        if (token.length() == 1)
+            return 3 * face;
+        else if (token.charAt(1) == '2')
+            return 3 * face + 1;
+        else if (token.charAt(1) == '\'')
+            return 3 * face + 2;
+        else
+            return -1;
+    }
+
+    /***** Accessors for the Interpreter and Visualizer *****/
+
+    int length() {
+        return opcodes.length;
+    }
+
+    int getOpcode(int pc) {
+        return opcodes[pc];
+    }
+
+    int getOperand(int pc) {
+        return operands[pc];
+    }
+
+    RuntimeException getError(int index) {
+        return errors[index];
+    }
+
+    int getNumErrors() {
+        return errors.length;
+    }
+
+    /**
+     * @return whether the program knows which tokens it was decoded from,
+     * rather than showing disassembled instructions in their place
+     */
+    boolean hasSourceMap() {
+        return hasSourceMap;
+    }
+
+    /**
+     * @param pc an instruction index between 0 and length() inclusive
+     * @return index of the token the instruction was decoded from, or the
+     * number of tokens if pc is the end of the program
+     */
+    int getSourcePc(int pc) {
+        return getSourceMap().sourcePcs[pc];
+    }
+
+    /**
+     * @param sourcePc a token index
+     * @return index of the instruction decoded from the token, length() if
+     * sourcePc is the number of tokens, or -1 if no instruction starts at the
+     * token (as for the 25 in "setd 25" or the x in a fused "F x")
+     */
+    int getPc(int sourcePc) {
+        // instructions start at increasing tokens
+        int pc = Arrays.binarySearch(getSourceMap().sourcePcs, sourcePc);
+        return pc >= 0 ? pc : -1;
+    }
+
+    /**
+     * @param pc an instruction index less than length()
+     * @return the token the instruction was decoded from
+     */
+    String getSourceToken(int pc) {
+        return getTokens()[getSourcePc(pc)];
+    }
+
+    /**
+     * @param pc an instruction index less than length()
+     * @return the tokens the instruction was decoded from, without arguments
+     * (e.g. "setd" for setd 25 but "F x" for a fused run of moves)
+     */
+    String getSourceText(int pc) {
+        if (opcodes[pc] != MOVE)
+            return getSourceToken(pc);
+
+        String[] tokens = getSourceMap().tokens;
+        int[] sourcePcs = getSourceMap().sourcePcs;
+        StringBuilder text = new StringBuilder(tokens[sourcePcs[pc]]);
+        for (int i = sourcePcs[pc] + 1; i < sourcePcs[pc + 1]; i++)
+            text.append(' ').append(tokens[i]);
+
+        return text.toString();
+    }
+
+    String[] getTokens() {
+        return getSourceMap().tokens;
+    }
+
+    SourceMap getSourceMap() {
+        SourceMap map = sourceMap;
+        if (map == null) {
+            // only one thread creates it, however many ask at once
+            synchronized (this) {
+                map = sourceMap;
+                if (map == null) {
+                    map = sourceMapReader.get();
+                    sourceMap = map;
+                    sourceMapReader = null;
+                }
+            }
+        }
+
+        return map;
+    }
+
+    /**
+     * Stands in for the source map of a program without one.
+     *
+     * @return one token per instruction naming what it does, such as
+     * "setd 25" or "R2" (a fused run of moves is just "move"), with each
+     * instruction mapped to its own token
+     */
+    private SourceMap disassemble() {
+        String[] disassembled = new String[opcodes.length];
+        int[] sourcePcs = new int[opcodes.length + 1];
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            sourcePcs[pc] = pc;
+            int opcode = opcodes[pc];
+            int operand = operands[pc];
+
+            if (opcode == SET || opcode == GSET)
+                disassembled[pc] = OPCODE_NAMES[opcode] + " " + operand;
+            else if (opcode == MOVE && operand < MOVE_NAMES.length)
+                disassembled[pc] = MOVE_NAMES[operand];
+            else
+                disassembled[pc] = OPCODE_NAMES[plainOpcode(opcode)];
+        }
+        sourcePcs[opcodes.length] = opcodes.length;
+
+        return new SourceMap(disassembled, sourcePcs);
+    }
+
+    int getNumMoves() {
+        return numMoves;
+    }
+
+    int getNumFusedMoves() {
+        return numFusedMoves;
+    }
+
+    /**
+     * @param opcode DISPATCH, INCREMENT_CHAIN or DECREMENT_CHAIN
+     * @return how many of that superinstruction the program has
+     */
+    int getNumSuperinstructions(int opcode) {
+        return numSuperinstructions[opcode - DISPATCH];
+    }
+
+    /**
+     * @return a one-line summary of how many moves were fused together
+     */
+    String getFusionReport() {
+        return "Fused " + numMoves + " moves into " + numFusedMoves
+                + " move instructions.";
+    }
+
+    /**
+     * @return a one-line summary of how many superinstructions were matched
+     */
+    String getSuperinstructionReport() {
+        return "Matched " + getNumSuperinstructions(DISPATCH)
+                + " dispatch blocks, " + getNumSuperinstructions(
+                INCREMENT_CHAIN) + " + chains and "
+                + getNumSuperinstructions(DECREMENT_CHAIN) + " - chains.";
+    }
+}
@@ -0,0 +1,433 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Reads and writes .rtlc files, which hold a decoded Program so that it can
+ * be run again without parsing or decoding its .rtl file. A .rtlc file is
+ * memory-mapped when it is loaded and its instructions are copied out of the
+ * mapping in bulk, so loading even a very large program takes little more
+ * than reading it from disk.
+ * <p>
+ * All numbers are big-endian ints, and every string is an int length
+ * followed by that many bytes of UTF-8 (a length of -1 is null). In order, a
+ * .rtlc file holds:
+ * <ul>
+ * <li>the magic number "RTLC", the format version and a flags word (bit 0 is
+ * set if there is a source map)</li>
+ * <li>the number of instructions, and the number of moves before and after
+ * they were fused</li>
+ * <li>the move table: a count, then the 24-byte permutation of every move
+ * the program makes. The operand of a MOVE instruction is an index into this
+ * table, since PermutationTable's move IDs differ from one run to the
+ * next</li>
+ * <li>the errors ERROR instructions throw: a count, then the class name and
+ * message of each. Only the classes of the errors decoding finds are
+ * accepted</li>
+ * <li>one byte per opcode, padded with zeros to a multiple of four
+ * bytes</li>
+ * <li>one int per operand, so the operand of each bracket is the pc of its
+ * partner and the bracket jump table is stored with the instructions</li>
+ * <li>if there is a source map: for every instruction and for the end of the
+ * program, how many tokens its source pc is past the previous one's, as a
+ * byte (or 255 followed by an int); the distinct source tokens (a count, then
+ * the strings); and the index into them of each token of the source (a
+ * count, then the indices, each 1, 2, or 4 bytes long depending on how many
+ * distinct tokens there are)</li>
+ * </ul>
+ */
+final class RtlcFile {
+
+    private static final int MAGIC = 0x52544C43; // "RTLC"
+    private static final int VERSION = 1;
+    private static final int FLAG_SOURCE_MAP = 1;
+    private static final int LONG_DELTA = 255;
+
+    private RtlcFile() {
+    }
+
+    /**
+     * @param path a file name
+     * @return whether the name has the .rtlc extension
+     */
+    static boolean isRtlcFile(Path path) {
+        return path.getFileName() != null
+                && path.getFileName().toString().endsWith(".rtlc");
+    }
+
+    /**
+     * Writes a program to a .rtlc file, replacing the file if it exists.
+     *
+     * @param program       the program to write
+     * @param path          where to write it
+     * @param withSourceMap whether to include the tokens the program was
+     *                      decoded from, which the Visualizer shows and error
+     *                      messages refer to
+     */
+    static void write(Program program, Path path, boolean withSourceMap)
+            throws IOException {
+        int length = program.length();
+        withSourceMap &= program.hasSourceMap();
+
+        try (DataOutputStream file = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path),
+                        1 << 16))) {
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(withSourceMap ? FLAG_SOURCE_MAP : 0);
+            file.writeInt(length);
+            file.writeInt(program.getNumMoves());
+            file.writeInt(program.getNumFusedMoves());
+
+            // number the moves in the order they first appear
+            Map<Integer, Integer> moveIndices = new HashMap<>();
+            for (int pc = 0; pc < length; pc++)
+                if (program.getOpcode(pc) == Program.MOVE)
+                    moveIndices.putIfAbsent(program.getOperand(pc),
+                            moveIndices.size());
+
+            byte[][] moves = new byte[moveIndices.size()][];
+            for (Map.Entry<Integer, Integer> entry : moveIndices.entrySet())
+                moves[entry.getValue()] =
+                        PermutationTable.moveOf(entry.getKey());
+
+            file.writeInt(moves.length);
+            for (byte[] move : moves)
+                file.write(move);
+
+            file.writeInt(program.getNumErrors());
+            for (int i = 0; i < program.getNumErrors(); i++) {
+                RuntimeException error = program.getError(i);
+                writeString(file, error.getClass().getName());
+                writeString(file, error.getMessage());
+            }
+
+            for (int pc = 0; pc < length; pc++)
+                file.writeByte(Program.plainOpcode(program.getOpcode(pc)));
+            for (int pc = length; pc % 4 != 0; pc++)
+                file.writeByte(0);
+
+            for (int pc = 0; pc < length; pc++) {
+                int operand = program.getOperand(pc);
+                file.writeInt(program.getOpcode(pc) == Program.MOVE
+                        ? moveIndices.get(operand) : operand);
+            }
+
+            if (withSourceMap)
+                writeSourceMap(file, program);
+        }
+    }
+
+    private static void writeSourceMap(DataOutputStream file,
+                                       Program program) throws IOException {
+        Program.SourceMap sourceMap = program.getSourceMap();
+
+        int previous = 0;
+        for (int sourcePc : sourceMap.sourcePcs) {
+            int delta = sourcePc - previous;
+            if (delta < LONG_DELTA) {
+                file.writeByte(delta);
+            } else {
+                file.writeByte(LONG_DELTA);
+                file.writeInt(delta);
+            }
+            previous = sourcePc;
+        }
+
+        Map<String, Integer> tokenIndices = new HashMap<>();
+        for (String token : sourceMap.tokens)
+            tokenIndices.putIfAbsent(token, tokenIndices.size());
+
+        String[] distinctTokens = new String[tokenIndices.size()];
+        for (Map.Entry<String, Integer> entry : tokenIndices.entrySet())
+            distinctTokens[entry.getValue()] = entry.getKey();
+
+        file.writeInt(distinctTokens.length);
+        for (String token : distinctTokens)
+            writeString(file, token);
+
+        int indexSize = indexSize(distinctTokens.length);
+        file.writeInt(sourceMap.tokens.length);
+        for (String token : sourceMap.tokens) {
+            int index = tokenIndices.get(token);
+            if (indexSize == 1)
+                file.writeByte(index);
+            else if (indexSize == 2)
+                file.writeShort(index);
+            else
+                file.writeInt(index);
+        }
+    }
+
+    /**
+     * @return how many bytes each token index takes
+     */
+    private static int indexSize(int numDistinctTokens) {
+        if (numDistinctTokens <= 1 << 8)
+            return 1;
+        else if (numDistinctTokens <= 1 << 16)
+            return 2;
+        else
+            return 4;
+    }
+
+    private static void writeString(DataOutputStream file, String string)
+            throws IOException {
+        if (string == null) {
+            file.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        file.writeInt(bytes.length);
+        file.write(bytes);
+    }
+
+    /**
+     * Loads a program from a .rtlc file. The source tokens, if the file has
+     * them, are left in the file until something asks for them.
+     *
+     * @param path the file to load
+     * @return the program
+     * @throws IllegalArgumentException if the file is not a .rtlc file of
+     *                                  this version or is corrupt
+     */
+    static Program read(Path path) throws IOException,
+            IllegalArgumentException {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IllegalArgumentException(path
+                        + " is too large to be a .rtlc file");
+
+            // the mapping stays valid after the channel is closed
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+
+        try {
+            return read(file, path);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                 | NegativeArraySizeException e) {
+            throw new IllegalArgumentException(path + " is truncated");
+        }
+    }
+
+    private static Program read(ByteBuffer file, Path path) {
+        if (file.remaining() < 8 || file.getInt() != MAGIC)
+            throw new IllegalArgumentException(path + " is not a .rtlc file");
+        int version = file.getInt();
+        if (version != VERSION)
+            throw new IllegalArgumentException(path + " is a version "
+                    + version + " .rtlc file, but only version " + VERSION
+                    + " can be read");
+
+        int flags = file.getInt();
+        // an opcode byte and an operand int each
+        int length = count(file, 5, 16);
+        int numMoves = file.getInt();
+        int numFusedMoves = file.getInt();
+
+        int[] moveIDs = new int[count(file, 24, 0)];
+        byte[] move = new byte[24];
+        for (int i = 0; i < moveIDs.length; i++) {
+            file.get(move);
+            if (!PermutationTable.isPermutation(move))
+                throw corrupt(path, "move " + i + " is not a permutation");
+            moveIDs[i] = PermutationTable.registerMove(move);
+        }
+
+        // a class name and a message, each at least a length
+        RuntimeException[] errors = new RuntimeException[count(file, 8, 0)];
+        for (int i = 0; i < errors.length; i++) {
+            String className = readString(file);
+            errors[i] = Program.newError(className, readString(file));
+            if (errors[i] == null)
+                throw corrupt(path, "error " + i + " is of unknown class "
+                        + className);
+        }
+
+        int[] opcodes = new int[length];
+        for (int pc = 0; pc < length; pc++)
+            opcodes[pc] = file.get();
+        file.position(file.position() + (-length & 3));
+
+        int[] operands = new int[length];
+        readInts(file, operands);
+
+        SourceMapReader sourceMap = (flags & FLAG_SOURCE_MAP) != 0
+                ? new SourceMapReader(file.slice(), length, path) : null;
+
+        check(path, opcodes, operands, moveIDs, errors.length);
+        return new Program(sourceMap, opcodes, operands, errors, numMoves,
+                numFusedMoves);
+    }
+
+    /**
+     * Reads the number of things the file goes on to hold, making sure the
+     * file is long enough to hold them before anything is allocated for
+     * them, so that a corrupt count cannot run the JVM out of memory.
+     *
+     * @param bytesEach  the fewest bytes each thing takes
+     * @param bytesAfter the fewest bytes the file holds after the count
+     *                   besides the things
+     * @throws BufferUnderflowException if the file is too short
+     */
+    private static int count(ByteBuffer file, int bytesEach,
+                             int bytesAfter) {
+        int count = file.getInt();
+        if (count < 0 || count > (file.remaining() - bytesAfter) / bytesEach)
+            throw new BufferUnderflowException();
+
+        return count;
+    }
+
+    /**
+     * Copies ints out of the file in bulk, which is much faster than reading
+     * them one at a time.
+     */
+    private static void readInts(ByteBuffer file, int[] ints) {
+        file.asIntBuffer().get(ints);
+        file.position(file.position() + 4 * ints.length);
+    }
+
+    private static String readString(ByteBuffer file) {
+        if (file.getInt(file.position()) == -1) {
+            file.getInt();
+            return null;
+        }
+
+        byte[] bytes = new byte[count(file, 1, 0)];
+        file.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes sure that the program cannot jump or index outside of its
+     * arrays, and turns the operand of every MOVE from an index into the
+     * file's move table into a PermutationTable move ID.
+     *
+     * @throws IllegalArgumentException if it could
+     */
+    private static void check(Path path, int[] opcodes, int[] operands,
+                              int[] moveIDs, int numErrors) {
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            int opcode = opcodes[pc];
+            int operand = operands[pc];
+
+            if (opcode < 0 || opcode > Program.MOVE)
+                throw corrupt(path, "unknown opcode " + opcode + " at pc = "
+                        + pc);
+
+            boolean valid;
+            if (opcode == Program.MOVE) {
+                valid = operand >= 0 && operand < moveIDs.length;
+                if (valid)
+                    operands[pc] = moveIDs[operand];
+            } else if (opcode == Program.ERROR) {
+                valid = operand >= 0 && operand < numErrors;
+            } else if (Program.isOpenBracket(opcode)) {
+                valid = operand > pc && operand < opcodes.length
+                        && opcodes[operand] == opcode + 1
+                        && operands[operand] == pc;
+            } else if (Program.isCloseBracket(opcode)) {
+                valid = operand >= 0 && operand < pc
+                        && opcodes[operand] == opcode - 1
+                        && operands[operand] == pc;
+            } else {
+                valid = true;
+            }
+
+            if (!valid)
+                throw corrupt(path, "bad operand " + operand + " at pc = "
+                        + pc);
+        }
+    }
+
+    private static IllegalArgumentException corrupt(Path path,
+                                                    String problem) {
+        return new IllegalArgumentException(path + " is corrupt: " + problem);
+    }
+
+    /**
+     * Reads the source map out of the file's mapping when the program first
+     * needs it.
+     */
+    private static final class SourceMapReader
+            implements Supplier<Program.SourceMap> {
+        private final ByteBuffer sourceMap;
+        private final int length;
+        private final Path path;
+
+        /**
+         * @param sourceMap the file from the source map on
+         * @param length    number of instructions in the program
+         * @param path      the file, for error messages
+         */
+        SourceMapReader(ByteBuffer sourceMap, int length, Path path) {
+            this.sourceMap = sourceMap;
+            this.length = length;
+            this.path = path;
+        }
+
+        @Override
+        public Program.SourceMap get() {
+            try {
+                return read();
+            } catch (BufferUnderflowException | IndexOutOfBoundsException
+                     | NegativeArraySizeException e) {
+                throw new IllegalArgumentException(path + " is truncated");
+            }
+        }
+
+        private Program.SourceMap read() {
+            int[] sourcePcs = new int[length + 1];
+            int sourcePc = 0;
+            for (int pc = 0; pc <= length; pc++) {
+                int delta = sourceMap.get() & 0xff;
+                if (delta == LONG_DELTA)
+                    delta = sourceMap.getInt();
+                // every instruction is decoded from tokens of its own
+                if (delta < 0 || delta == 0 && pc > 0
+                        || sourcePc + delta < 0)
+                    throw corrupt(path, "bad source map");
+
+                sourcePc += delta;
+                sourcePcs[pc] = sourcePc;
+            }
+
+            // each at least a length
+            String[] distinctTokens = new String[count(sourceMap, 4, 0)];
+            for (int i = 0; i < distinctTokens.length; i++)
+                distinctTokens[i] = readString(sourceMap);
+
+            int indexSize = indexSize(distinctTokens.length);
+            String[] tokens = new String[count(sourceMap, indexSize, 0)];
+            for (int i = 0; i < tokens.length; i++) {
+                int index;
+                if (indexSize == 1)
+                    index = sourceMap.get() & 0xff;
+                else if (indexSize == 2)
+                    index = sourceMap.getShort() & 0xffff;
+                else
+                    index = sourceMap.getInt();
+
+                tokens[i] = distinctTokens[index];
+            }
+
+            if (sourcePc != tokens.length)
+                throw corrupt(path, "bad source map");
+
+            return new Program.SourceMap(tokens, sourcePcs);
+        }
+    }
+}
@@ -13,8 +13,10 @@ public class RubiksCube {
      * 15 16
      */
 
-    private Node[] cube;
-    private RubiksCube parent;
+    // A RubiksCube is a handle onto the cube with ID id, which is stored in
+    // trie's arrays. Handles are created as needed, so two handles can refer
+    // to the same cube.
+    private RubiksTrie trie;
     private int id;
 
     // Any turn comprises three four-cycles on the cube's cells
@@ -36,13 +38,33 @@ public class RubiksCube {
     private static final int[][] D =
             {{13, 14, 16, 15}, {7, 9, 11, 5}, {6, 8, 10, 12}};
 
-    public RubiksCube(RubiksCube parent, RubiksTrie trie) {
-        cube = new Node[24];
-        for (int i = 0; i < 24; i++)
-            cube[i] = new Node(this, trie);
+    RubiksCube(RubiksTrie trie, int id) {
+        this.trie = trie;
+        this.id = id;
+    }
 
-        this.parent = parent;
-        id = trie.assignCubeID();
+    /**
+     * @param face U, L, F, R, B, or D
+     * @return the three four-cycles on the cube's cells that make up a
+     * clockwise quarter turn of the face
+     */
+    static int[][] getCycles(char face) {
+        switch (face) {
+            case 'U':
+                return U;
+            case 'L':
+                return L;
+            case 'F':
+                return F;
+            case 'R':
+                return R;
+            case 'B':
+                return B;
+            case 'D':
+                return D;
+            default:
+                throw new IllegalArgumentException("Invalid face to turn");
+        }
     }
 
     int getID() {
@@ -50,28 +72,42 @@ public class RubiksCube {
     }
 
     Node getRWNode() {
-        return cube[0];
+        return new Node(trie, id, trie.getRWSlot(id));
+    }
+
+    /**
+     * @param position a position in the layout documented above
+     * @return the Node currently at that position
+     */
+    private Node getNode(int position) {
+        return new Node(trie, id, trie.getSlot(id, position));
     }
 
     RubiksCube getParent() {
-        return parent;
+        int parent = trie.getParent(id);
+        return parent == RubiksTrie.NO_CUBE ? null
+                : new RubiksCube(trie, parent);
     }
 
+    /**
+     * @return the cube's Nodes, indexed by their current position in the
+     * layout documented above
+     */
     Node[] getNodes() {
-        return cube;
-    }
+        Node[] nodes = new Node[24];
+        for (int i = 0; i < 24; i++)
+            nodes[i] = getNode(i);
 
-    // Modifies cube (Node array)
-    private void cyclePermute(int[] indices) {
-        int cycleSize = indices.length;
-        if (cycleSize == 0)
-            throw new IllegalArgumentException("Cycle must have non-zero size");
+        return nodes;
+    }
 
-        Node temp = cube[indices[cycleSize - 1]];
-        for (int i = cycleSize - 1; i > 0; i--) {
-            cube[indices[i]] = cube[indices[i - 1]];
-        }
-        cube[indices[0]] = temp;
+    /**
+     * Applies a move or rotation to the virtual Rubik's Cube.
+     *
+     * @param move a move ID from PermutationTable
+     */
+    void move(int move) {
+        trie.move(id, move);
     }
 
     /**
@@ -82,41 +118,20 @@ public class RubiksCube {
      *             -1 or 3 can be used for "prime".
      */
     void turn(char face, int type) {
-        int[][] cycles;
-
-        switch (face) {
-            case 'U':
-                cycles = U;
-                break;
-            case 'L':
-                cycles = L;
-                break;
-            case 'F':
-                cycles = F;
-                break;
-            case 'R':
-                cycles = R;
-                break;
-            case 'B':
-                cycles = B;
-                break;
-            case 'D':
-                cycles = D;
-                break;
-            default:
-                throw new IllegalArgumentException("Invalid face to turn");
+        if ((type & 3) == 0) {
+            // still reject invalid faces
+            getCycles(face);
+            return;
         }
 
-        int numRotations = type & 3; // sign-agnostic modulo 4
-        for (int i = 0; i < numRotations; i++)
-            for (int[] cycle : cycles)
-                cyclePermute(cycle);
+        move(PermutationTable.basicMove(face, type));
     }
 
     public String toString() {
         String parentID = getParent() == null ?
                 "current cube is the root and has no parent" :
                 String.valueOf(getParent().getID());
+        Node[] cube = getNodes();
 
         return "Rubik's Cube ID: " + getID() +
                 "\nParent Rubik's Cube ID: " + parentID +
@@ -1,21 +1,83 @@
+/**
+ * The trie of Rubik's Cubes a program runs on, plus the global byte. The
+ * cubes themselves live in a TrieStorage: by default an ArrayTrieStorage on
+ * the heap, or a MappedTrieStorage for tries too big for the heap. This class
+ * works out which slot is at which position as cubes are turned. RubiksCube
+ * and Node are just handles onto cubes for the Visualizer.
+ */
 public class RubiksTrie {
 
-    private RubiksCube root;
-    private int numCubes;
+    static final int NO_CUBE = -1;
+    static final int STICKERS = 24;
+
+    private TrieStorage storage;
     private byte global;
 
     public RubiksTrie() {
-        numCubes = 0;
-        root = new RubiksCube(null, this); // sets numCubes to 1
+        this(new ArrayTrieStorage());
+    }
+
+    /**
+     * @param storage empty storage to keep the trie's cubes in
+     */
+    RubiksTrie(TrieStorage storage) {
+        this.storage = storage;
+        storage.createCube(NO_CUBE); // the root, which gets ID 0
         global = 0;
     }
 
+    private RubiksTrie(TrieStorage storage, byte global) {
+        this.storage = storage;
+        this.global = global;
+    }
+
+    /**
+     * Makes a copy of the trie that can be changed without changing this
+     * one. Cubes are shared until one of the two tries changes them, so this
+     * takes constant time and a copy only uses memory for what it changes.
+     *
+     * @return the copy
+     * @throws UnsupportedOperationException if the trie is memory-mapped or
+     *                                       checkpointed
+     */
+    RubiksTrie fork() throws UnsupportedOperationException {
+        RubiksTrie fork = new RubiksTrie(storage.fork(), global);
+        storage = storage.fork(); // the storage both share must not change
+        return fork;
+    }
+
+    /**
+     * Makes cubes with the same stickers share their storage, if the storage
+     * can.
+     *
+     * @return how many bytes that freed
+     */
+    long compact() {
+        return storage.compact();
+    }
+
     RubiksCube getRoot() {
-        return root;
+        return new RubiksCube(this, 0);
+    }
+
+    /**
+     * @param id a cube ID
+     * @return a handle onto the cube with that ID, or null if there is none
+     */
+    RubiksCube getCube(int id) {
+        return id >= 0 && id < getNumCubes() ? new RubiksCube(this, id) : null;
     }
 
     int getNumCubes() {
-        return numCubes;
+        return storage.getNumCubes();
+    }
+
+    /**
+     * Removes the most recently created cube, which must have no children,
+     * for the Visualizer to undo the step that created it.
+     */
+    void removeLastCube() {
+        storage.removeLastCube();
     }
 
     void setGlobalByte(byte b) {
@@ -34,9 +96,93 @@ public class RubiksTrie {
         global--;
     }
 
-    int assignCubeID() {
-        int id = numCubes;
-        numCubes++;
-        return id;
+    /***** Access by cube ID and slot *****/
+
+    /**
+     * @param cube a cube ID
+     * @return the slot under the cube's read-write head
+     */
+    int getRWSlot(int cube) {
+        return PermutationTable.getRWSlot(storage.getState(cube));
+    }
+
+    /**
+     * @param cube     a cube ID
+     * @param position a position in the layout documented in RubiksCube
+     * @return the slot currently at that position
+     */
+    int getSlot(int cube, int position) {
+        return PermutationTable.getSlot(storage.getState(cube), position);
+    }
+
+    byte getPayload(int cube, int slot) {
+        return storage.getPayload(cube, slot);
+    }
+
+    void setPayload(int cube, int slot, byte b) {
+        storage.setPayload(cube, slot, b);
+    }
+
+    /**
+     * @return ID of the sticker's child cube, or NO_CUBE if it has none
+     */
+    int getChild(int cube, int slot) {
+        return storage.getChild(cube, slot);
+    }
+
+    /**
+     * @return ID of the sticker's child cube, which is created if the sticker
+     * has none
+     */
+    int getOrCreateChild(int cube, int slot) {
+        int child = storage.getChild(cube, slot);
+        if (child == NO_CUBE) {
+            child = storage.createCube(cube);
+            storage.setChild(cube, slot, child);
+        }
+
+        return child;
+    }
+
+    /**
+     * @return ID of the cube's parent, or NO_CUBE if it is the root
+     */
+    int getParent(int cube) {
+        return storage.getParent(cube);
+    }
+
+    /**
+     * @param cube a cube ID
+     * @return the cube's PermutationTable state
+     */
+    int getState(int cube) {
+        return storage.getState(cube);
+    }
+
+    void setState(int cube, int state) {
+        storage.setState(cube, state);
+    }
+
+    /**
+     * @param cube a cube ID
+     * @param move a PermutationTable move ID
+     */
+    void move(int cube, int move) {
+        storage.setState(cube,
+                PermutationTable.apply(storage.getState(cube), move));
+    }
+
+    /***** Access at the read-write head *****/
+
+    byte getPayload(int cube) {
+        return storage.getPayload(cube, getRWSlot(cube));
+    }
+
+    void setPayload(int cube, byte b) {
+        storage.setPayload(cube, getRWSlot(cube), b);
+    }
+
+    int getOrCreateChild(int cube) {
+        return getOrCreateChild(cube, getRWSlot(cube));
     }
 }
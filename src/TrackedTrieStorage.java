@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Keeps its cubes in another TrieStorage and remembers which of them have
+ * changed since clearChanged was last called, so that a CheckpointFile only
+ * has to write those. A cube counts as changed when it is created or when its
+ * state, one of its payloads or one of its children is set.
+ * <p>
+ * The changed cubes are a bit set indexed by cube ID, which costs one bit per
+ * cube and one bitwise or per write.
+ */
+final class TrackedTrieStorage implements TrieStorage {
+
+    private final TrieStorage storage;
+    private long[] changed;
+
+    /**
+     * @param storage empty storage to keep the cubes in
+     */
+    TrackedTrieStorage(TrieStorage storage) {
+        this.storage = storage;
+        changed = new long[16];
+    }
+
+    private void markChanged(int cube) {
+        int word = cube >>> 6;
+        if (word >= changed.length)
+            changed = Arrays.copyOf(changed,
+                    Math.max(2 * changed.length, word + 1));
+
+        changed[word] |= 1L << cube;
+    }
+
+    /**
+     * @return the smallest ID of a changed cube that is at least from, or
+     * RubiksTrie.NO_CUBE if there is none
+     */
+    int nextChanged(int from) {
+        int word = from >>> 6;
+        if (word >= changed.length)
+            return RubiksTrie.NO_CUBE;
+
+        long bits = changed[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == changed.length)
+                return RubiksTrie.NO_CUBE;
+            bits = changed[word];
+        }
+
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * @return how many cubes have changed, not counting removed ones
+     */
+    int countChanged() {
+        int count = 0;
+        for (int cube = nextChanged(0);
+             cube != RubiksTrie.NO_CUBE && cube < getNumCubes();
+             cube = nextChanged(cube + 1))
+            count++;
+
+        return count;
+    }
+
+    void clearChanged() {
+        Arrays.fill(changed, 0);
+    }
+
+    public int createCube(int parent) {
+        int id = storage.createCube(parent);
+        markChanged(id);
+        return id;
+    }
+
+    public int getNumCubes() {
+        return storage.getNumCubes();
+    }
+
+    public void removeLastCube() {
+        int parent = storage.getParent(storage.getNumCubes() - 1);
+        storage.removeLastCube();
+        markChanged(parent);
+    }
+
+    public int getParent(int cube) {
+        return storage.getParent(cube);
+    }
+
+    public int getState(int cube) {
+        return storage.getState(cube);
+    }
+
+    public void setState(int cube, int state) {
+        storage.setState(cube, state);
+        markChanged(cube);
+    }
+
+    public byte getPayload(int cube, int slot) {
+        return storage.getPayload(cube, slot);
+    }
+
+    public void setPayload(int cube, int slot, byte b) {
+        storage.setPayload(cube, slot, b);
+        markChanged(cube);
+    }
+
+    public int getChild(int cube, int slot) {
+        return storage.getChild(cube, slot);
+    }
+
+    public void setChild(int cube, int slot, int child) {
+        storage.setChild(cube, slot, child);
+        markChanged(cube);
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, since the changes are
+     *                                       tracked for one CheckpointFile
+     */
+    public TrieStorage fork() {
+        throw new UnsupportedOperationException("A checkpointed trie cannot "
+                + "be forked");
+    }
+
+    /**
+     * Compacting does not count as changing any cube, since each cube still
+     * holds the same.
+     */
+    public long compact() {
+        return storage.compact();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Where a RubiksTrie keeps its cubes. Cubes are identified by int IDs handed
+ * out in creation order, starting with 0 for the root, and each has a parent,
+ * a PermutationTable state, and 24 sticker slots that each hold a payload
+ * byte and possibly the ID of a child cube.
+ * <p>
+ * Slots are physical: turning a cube changes its state, not its slots. The
+ * RubiksTrie is in charge of mapping positions to slots.
+ */
+interface TrieStorage {
+
+    /**
+     * Adds a cube in the solved state whose payloads are all 0 and whose
+     * stickers have no children.
+     *
+     * @param parent ID of the new cube's parent, or RubiksTrie.NO_CUBE for the
+     *               root
+     * @return the new cube's ID, which is the number of cubes before the call
+     */
+    int createCube(int parent);
+
+    int getNumCubes();
+
+    /**
+     * Removes the most recently created cube, which must have no children,
+     * and unlinks it from its parent, so that the next cube created gets its
+     * ID and finds its storage as createCube expects.
+     */
+    void removeLastCube();
+
+    /**
+     * @return ID of the cube's parent, or RubiksTrie.NO_CUBE if it is the root
+     */
+    int getParent(int cube);
+
+    int getState(int cube);
+
+    void setState(int cube, int state);
+
+    byte getPayload(int cube, int slot);
+
+    void setPayload(int cube, int slot, byte b);
+
+    /**
+     * @return ID of the sticker's child cube, or RubiksTrie.NO_CUBE if it has
+     * none
+     */
+    int getChild(int cube, int slot);
+
+    void setChild(int cube, int slot, int child);
+
+    /**
+     * Makes a copy of the storage that shares its cubes until it changes
+     * them, cheaply enough to make many. Since the copy shares them, this
+     * storage must not be changed once it has been forked, but it can still
+     * be read and forked again: to go on changing it, fork it once more and
+     * change that copy instead.
+     *
+     * @return the copy
+     * @throws UnsupportedOperationException if this kind of storage cannot be
+     *                                       copied cheaply
+     */
+    TrieStorage fork() throws UnsupportedOperationException;
+
+    /**
+     * Makes cubes with the same stickers share their storage where this kind
+     * of storage can, without changing what any cube holds.
+     *
+     * @return how many bytes that freed, or 0 if nothing was freed or this
+     * kind of storage does not share
+     */
+    long compact();
+}
@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+/**
+ * A bounded record of what the Visualizer's steps changed, so that they can
+ * be undone one at a time without running the program again from the start.
+ * Each step takes one entry: where the program was (pc, current cube, global
+ * byte and number of cubes) before the step, and the one payload or cube
+ * state the step overwrote, if any. Cubes the step created are not recorded
+ * since they are always the last ones, and are removed by going back to the
+ * number of cubes before the step.
+ * <p>
+ * The entries are kept in a ring buffer: once it holds capacity entries,
+ * each new one replaces the oldest, so only the last capacity steps can be
+ * undone. The arrays grow as entries are added, so a short session does not
+ * pay for the whole capacity up front.
+ */
+final class UndoJournal {
+
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    // changedSlot of an entry that recorded a cube's state, not a payload
+    static final int STATE = -1;
+
+    private static final int INITIAL_SIZE = 1024;
+
+    private final int capacity;
+    private int[] pcs;
+    private int[] cubes;
+    private byte[] globals;
+    private int[] numCubes;
+    private int[] changedCubes; // RubiksTrie.NO_CUBE if nothing was changed
+    private int[] changedSlots;
+    private int[] oldValues;
+    private int oldest; // index of the oldest entry
+    private int size;
+
+    /**
+     * @param capacity how many steps can be undone at most
+     */
+    UndoJournal(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Journal capacity must be "
+                    + "positive");
+
+        this.capacity = capacity;
+        int length = Math.min(capacity, INITIAL_SIZE);
+        pcs = new int[length];
+        cubes = new int[length];
+        globals = new byte[length];
+        numCubes = new int[length];
+        changedCubes = new int[length];
+        changedSlots = new int[length];
+        oldValues = new int[length];
+    }
+
+    /**
+     * @return how many steps can be undone
+     */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        oldest = 0;
+        size = 0;
+    }
+
+    /**
+     * Adds an entry for a step that is about to run, replacing the oldest
+     * entry if the journal is full.
+     *
+     * @param pc          the program's pc
+     * @param cube        ID of the current cube
+     * @param global      the global byte
+     * @param numCubes    number of cubes in the trie
+     * @param changedCube the cube whose payload or state the step is going to
+     *                    overwrite, or RubiksTrie.NO_CUBE
+     * @param changedSlot the slot whose payload is overwritten, or STATE
+     * @param oldValue    the payload or state before the step
+     */
+    void record(int pc, int cube, byte global, int numCubes, int changedCube,
+                int changedSlot, int oldValue) {
+        if (size == pcs.length && size < capacity)
+            grow();
+
+        int i;
+        if (size == capacity) {
+            i = oldest;
+            oldest = (oldest + 1) % capacity;
+        } else {
+            i = (oldest + size) % pcs.length;
+            size++;
+        }
+
+        pcs[i] = pc;
+        cubes[i] = cube;
+        globals[i] = global;
+        this.numCubes[i] = numCubes;
+        changedCubes[i] = changedCube;
+        changedSlots[i] = changedSlot;
+        oldValues[i] = oldValue;
+    }
+
+    /**
+     * Makes room for more entries, unrolling the ring so the oldest entry is
+     * first.
+     */
+    private void grow() {
+        int length = (int) Math.min(2L * pcs.length, capacity);
+
+        pcs = unroll(pcs, length);
+        cubes = unroll(cubes, length);
+        numCubes = unroll(numCubes, length);
+        changedCubes = unroll(changedCubes, length);
+        changedSlots = unroll(changedSlots, length);
+        oldValues = unroll(oldValues, length);
+
+        byte[] newGlobals = new byte[length];
+        System.arraycopy(globals, oldest, newGlobals, 0, size - oldest);
+        System.arraycopy(globals, 0, newGlobals, size - oldest, oldest);
+        globals = newGlobals;
+
+        oldest = 0;
+    }
+
+    private int[] unroll(int[] entries, int length) {
+        int[] unrolled = Arrays.copyOfRange(entries, oldest,
+                oldest + length);
+        System.arraycopy(entries, 0, unrolled, size - oldest, oldest);
+        return unrolled;
+    }
+
+    /**
+     * Removes the newest entry so that its values can be read with the
+     * getters, which read the entry last removed until the next record.
+     *
+     * @return false if there are no entries
+     */
+    boolean pop() {
+        if (size == 0)
+            return false;
+
+        size--;
+        return true;
+    }
+
+    /**
+     * @param pc an instruction index, not the token index the Visualizer
+     *           shows (see Program.getPc)
+     * @return how many entries must be undone to get back to the newest step
+     *         recorded at pc, or -1 if no step the journal remembers was
+     */
+    int stepsBackTo(int pc) {
+        for (int steps = 1; steps <= size; steps++)
+            if (pcs[(oldest + size - steps) % pcs.length] == pc)
+                return steps;
+
+        return -1;
+    }
+
+    int getPc() {
+        return pcs[removed()];
+    }
+
+    int getCube() {
+        return cubes[removed()];
+    }
+
+    byte getGlobal() {
+        return globals[removed()];
+    }
+
+    int getNumCubes() {
+        return numCubes[removed()];
+    }
+
+    int getChangedCube() {
+        return changedCubes[removed()];
+    }
+
+    int getChangedSlot() {
+        return changedSlots[removed()];
+    }
+
+    int getOldValue() {
+        return oldValues[removed()];
+    }
+
+    /**
+     * @return index of the entry last removed by pop
+     */
+    private int removed() {
+        return (oldest + size) % pcs.length;
+    }
+}
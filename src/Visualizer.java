@@ -1,17 +1,18 @@
 import java.io.EOFException;
 import java.nio.file.Paths;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.Scanner;
 
 public class Visualizer {
 
     private Interpreter interp;
     private String path;
+    private UndoJournal journal; // the steps back can undo
 
-    private Visualizer(String path) {
+    private Visualizer(String path, int journalCapacity) {
         this.path = path;
         this.interp = new Interpreter(Paths.get(path));
+        interp.setSuperinstructions(false); // so each step is one instruction
+        this.journal = new UndoJournal(journalCapacity);
     }
 
     /**
@@ -29,8 +30,25 @@ public class Visualizer {
         System.out.println("\trun:");
         System.out.println("\t\tFinishes execution of the program and " +
                 "displays the program state at the end of each step.");
+        System.out.println("\tback n (n is a non-negative integer):");
+        System.out.println("\t\tUndoes at most n steps and displays the "
+                + "program state. Input and output are not undone.");
+        System.out.println("\tbackuntil pc (pc is a non-negative integer):");
+        System.out.println("\t\tUndoes steps until the program counter is "
+                + "back at the value pc and displays the program state. "
+                + "Does nothing if\n\t\tno step it remembers was at pc.");
         System.out.println("\tdisplaycube id (id is a non-negative integer):");
         System.out.println("\t\tDisplays the cube with ID id.");
+        System.out.println("\tdumpcubes from to (from and to are non-negative "
+                + "integers):");
+        System.out.println("\t\tDisplays every cube with an ID between from "
+                + "and to inclusive.");
+        System.out.println("\tchildren id (id is a non-negative integer):");
+        System.out.println("\t\tLists the children of the cube with ID id "
+                + "and the positions linking to them.");
+        System.out.println("\tcompact:");
+        System.out.println("\t\tMakes cubes with the same stickers share "
+                + "them and displays how much memory that freed.");
         System.out.println("\trestart:");
         System.out.println("\t\tResets the program's state/memory.");
         System.out.println("\tcode:");
@@ -50,6 +68,8 @@ public class Visualizer {
             if (pc % 8 == 7 || pc == instructions.length - 1)
                 System.out.println();
         }
+
+        System.out.println(interp.getProgram().getFusionReport());
     }
 
     /**
@@ -57,6 +77,8 @@ public class Visualizer {
      */
     private void restart() {
         interp = new Interpreter(Paths.get(path));
+        interp.setSuperinstructions(false);
+        journal.clear();
     }
 
     /**
@@ -70,9 +92,13 @@ public class Visualizer {
         System.out.println(
                 "----------------------------------------------------------\n");
         System.out.println("Consumed instruction "
-                + interp.getInstructions()[interp.getProgramCounter()]
+                + interp.getCurrentInstruction()
                 + " at pc = " + interp.getProgramCounter());
-        interp.processNextCommand();
+        try {
+            interp.processNextCommand(journal);
+        } finally {
+            interp.flushOutput();
+        }
         System.out.format("Global byte hex value: %x\n",
                 interp.getTrie().getGlobalByte());
         System.out.println(interp.getCurrCube());
@@ -104,7 +130,7 @@ public class Visualizer {
      */
     private void stepAtMost(int steps) {
         for (int i = 0; i < steps; i++) {
-            if (interp.getProgramCounter() >= interp.getInstructions().length) {
+            if (interp.isFinished()) {
                 System.out.println("step successfully executed "
                         + i + " steps before reaching the end of the program.");
                 return;
@@ -122,6 +148,68 @@ public class Visualizer {
         System.out.println("All " + steps + " steps executed successfully.");
     }
 
+    /**
+     * Displays the global byte, the current Rubik's Cube, and the instruction
+     * that runs next.
+     */
+    private void displayState() {
+        System.out.format("Global byte hex value: %x\n",
+                interp.getTrie().getGlobalByte());
+        System.out.println(interp.getCurrCube());
+
+        if (interp.isFinished())
+            System.out.println("The program has finished.");
+        else
+            System.out.println("Next instruction "
+                    + interp.getCurrentInstruction()
+                    + " at pc = " + interp.getProgramCounter());
+        System.out.println();
+    }
+
+    /**
+     * Undoes "steps" steps or every step in the journal, whichever are
+     * fewer.
+     *
+     * @param steps - maximum number of steps to undo
+     */
+    private void backAtMost(int steps) {
+        int undone = 0;
+        while (undone < steps && interp.undo(journal))
+            undone++;
+
+        if (undone < steps)
+            System.out.println("back undid " + undone + " steps before "
+                    + "reaching the oldest step it remembers.");
+        else
+            System.out.println("All " + steps + " steps undone successfully.");
+        displayState();
+    }
+
+    /**
+     * Undoes steps until the program's program counter is back at the value
+     * of pc. Nothing is undone if no step the journal remembers was at pc,
+     * since steps cannot be redone.
+     *
+     * @param endpc - stop once the program counter is pc
+     */
+    private void backUntil(int endpc) {
+        if (interp.getProgramCounter() != endpc) {
+            // the journal remembers instruction indices, not tokens
+            int pc = interp.getProgram().getPc(endpc);
+            int steps = pc == -1 ? -1 : journal.stepsBackTo(pc);
+            if (steps == -1) {
+                System.out.println("backuntil found no step it remembers at "
+                        + "pc = " + endpc + ", so nothing was undone.");
+                return;
+            }
+
+            for (int i = 0; i < steps; i++)
+                interp.undo(journal);
+        }
+
+        displayState();
+    }
+
     /**
      * Returns a pointer to the Rubik's Cube with ID id.
      *
@@ -129,21 +217,80 @@ public class Visualizer {
      * @return Desired Rubik's Cube if found, null otherwise.
      */
     private RubiksCube getCube(int id) {
-        // level order traversal
-        Queue<RubiksCube> q = new LinkedList<>();
-        q.add(interp.getTrie().getRoot());
-
-        while (!q.isEmpty()) {
-            RubiksCube curr = q.remove();
-            if (curr.getID() == id)
-                return curr;
-
-            for (Node n : curr.getNodes())
-                if (n.getChild() != null)
-                    q.add(n.getChild());
+        return interp.getTrie().getCube(id);
+    }
+
+    /**
+     * Displays every Rubik's Cube with an ID between from and to inclusive.
+     *
+     * @param from - first cube ID to display
+     * @param to   - last cube ID to display
+     */
+    private void displayCubes(int from, int to) {
+        int last = Math.min(to, interp.getTrie().getNumCubes() - 1);
+        for (int id = from; id <= last; id++)
+            System.out.println(getCube(id));
+
+        int firstMissing = Math.max(from, last + 1);
+        if (firstMissing == to)
+            System.out.println("Rubik's Cube with ID " + to
+                    + " does not exist.");
+        else if (firstMissing < to)
+            System.out.println("Rubik's Cubes with IDs " + firstMissing
+                    + " through " + to + " do not exist.");
+    }
+
+    /**
+     * Lists the children of a Rubik's Cube along with the positions (as
+     * numbered in RubiksCube) of the stickers that link to them.
+     *
+     * @param cube - whose children to list
+     */
+    private void displayChildren(RubiksCube cube) {
+        Node[] nodes = cube.getNodes();
+        int numChildren = 0;
+
+        for (int position = 0; position < nodes.length; position++) {
+            RubiksCube child = nodes[position].getChild();
+            if (child != null) {
+                System.out.println("Position " + position + ": Rubik's Cube "
+                        + child.getID());
+                numChildren++;
+            }
+        }
+
+        System.out.println("Rubik's Cube with ID " + cube.getID() + " has "
+                + numChildren + " children.");
+    }
+
+    /**
+     * Reads a cube ID argument and checks that the cube exists, printing an
+     * error message if not. Consumes the rest of the line on error.
+     *
+     * @param in - where to read the argument from
+     * @return the cube, or null if the argument was not a valid cube ID
+     */
+    private RubiksCube readCube(Scanner in) {
+        int id;
+
+        try {
+            id = in.nextInt();
+        } catch (Exception e) {
+            System.out.println("Argument must be an integer.");
+            in.nextLine();
+            return null;
         }
 
-        return null;
+        RubiksCube cube = null;
+        if (id < 0)
+            System.out.println("Argument must be non-negative.");
+        else if ((cube = getCube(id)) == null)
+            System.out.println("Rubik's Cube with ID " + id
+                    + " does not exist.");
+
+        if (cube == null)
+            in.nextLine();
+        return cube;
     }
 
     /**
@@ -202,31 +349,82 @@ public class Visualizer {
                     stepUntil(interp.getInstructions().length);
                     in.nextLine();
                     break;
-                case "displaycube":
-                    int id;
+                case "back":
+                    int numBack;
 
                     try {
-                        id = in.nextInt();
+                        numBack = in.nextInt();
                     } catch (Exception e) {
                         System.out.println("Argument must be an integer.");
                         in.nextLine();
                         break;
                     }
 
-                    if (id >= interp.getTrie().getNumCubes())
-                        System.out.println("Rubik's Cube with ID " + id
-                                + " does not exist.");
-                    else if (id < 0)
+                    if (numBack < 0)
                         System.out.println("Argument must be non-negative.");
-                    else {
-                        RubiksCube cube = getCube(id);
-                        if (cube == null)
-                            System.out.println("Rubik's Cube with ID " + id
-                                    + " does not exist.");
-                        else
-                            System.out.println(cube);
+                    else
+                        backAtMost(numBack);
+
+                    in.nextLine();
+                    break;
+                case "backuntil":
+                    int start;
+
+                    try {
+                        start = in.nextInt();
+                    } catch (Exception e) {
+                        System.out.println("Argument must be an integer.");
+                        in.nextLine();
+                        break;
                     }
 
+                    if (start < 0)
+                        System.out.println("Argument must be non-negative.");
+                    else
+                        backUntil(start);
+
+                    in.nextLine();
+                    break;
+                case "displaycube": {
+                    RubiksCube cube = readCube(in);
+                    if (cube == null)
+                        break;
+
+                    System.out.println(cube);
+                    in.nextLine();
+                    break;
+                }
+                case "dumpcubes":
+                    int from, to;
+
+                    try {
+                        from = in.nextInt();
+                        to = in.nextInt();
+                    } catch (Exception e) {
+                        System.out.println("Arguments must be integers.");
+                        in.nextLine();
+                        break;
+                    }
+
+                    if (from < 0 || to < 0)
+                        System.out.println("Arguments must be non-negative.");
+                    else
+                        displayCubes(from, to);
+
+                    in.nextLine();
+                    break;
+                case "children": {
+                    RubiksCube cube = readCube(in);
+                    if (cube == null)
+                        break;
+
+                    displayChildren(cube);
+                    in.nextLine();
+                    break;
+                }
+                case "compact":
+                    System.out.println("Reclaimed "
+                            + interp.getTrie().compact() + " bytes.");
                     in.nextLine();
                     break;
                 case "restart":
@@ -247,20 +445,58 @@ public class Visualizer {
         }
     }
 
+    private static final String USAGE =
+            "Usage: java Visualizer [--journal=steps] rtlFilePath\n"
+            + "\t--journal: remember at most this many steps for back and "
+            + "backuntil to undo\n\t\t(default "
+            + UndoJournal.DEFAULT_CAPACITY + ")";
+
     /**
-     * Runs the visualizer. Once compiled, this Visualizer takes exactly one
+     * Runs the visualizer. Once compiled, this Visualizer takes one
      * command-line argument corresponding to a project-relative path to the
-     * .rtl file to be run and visualized.
+     * .rtl file to be run and visualized, optionally preceded by
+     * --journal=steps.
      *
      * @param args command-line arguments
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java Visualizer rtlFilePath");
+        String path = null;
+        int journalCapacity = UndoJournal.DEFAULT_CAPACITY;
+
+        for (String arg : args) {
+            if (arg.startsWith("--journal=")) {
+                try {
+                    journalCapacity = Integer.parseInt(
+                            arg.substring("--journal=".length()));
+                } catch (NumberFormatException e) {
+                    journalCapacity = -1;
+                }
+
+                if (journalCapacity <= 0) {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } else if (path == null && !arg.startsWith("--")) {
+                path = arg;
+            } else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+
+        if (path == null) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        Visualizer v;
+        try {
+            v = new Visualizer(path, journalCapacity);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
             return;
         }
 
-        Visualizer v = new Visualizer(args[0]);
         v.run();
     }
 }